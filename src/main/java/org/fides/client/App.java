@@ -1,5 +1,6 @@
 package org.fides.client;
 
+import java.io.File;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
@@ -16,10 +17,12 @@ import org.apache.logging.log4j.Logger;
 import org.fides.client.connector.ServerConnector;
 import org.fides.client.encryption.EncryptionManager;
 import org.fides.client.encryption.InvalidPasswordException;
+import org.fides.client.encryption.KeyFileCache;
 import org.fides.client.files.FileManager;
 import org.fides.client.files.FileSyncManager;
 import org.fides.client.files.data.KeyFile;
 import org.fides.client.tools.CertificateUtil;
+import org.fides.client.tools.DirectoryDigests;
 import org.fides.client.tools.UserProperties;
 import org.fides.client.ui.AuthenticateUser;
 import org.fides.client.ui.CertificateValidationScreen;
@@ -41,6 +44,11 @@ public class App {
 	 */
 	private static final Logger LOG = LogManager.getLogger(App.class);
 
+	/**
+	 * The directory in the settings directory where the keyfile is cached
+	 */
+	private static final String KEY_FILE_CACHE_DIRECTORY = "KeyFileCache";
+
 	/**
 	 * Main
 	 * 
@@ -80,6 +88,7 @@ public class App {
 				}
 
 				encManager = new EncryptionManager(serverConnector, passwordString);
+				encManager.setKeyFileCache(new KeyFileCache(new File(UserProperties.SETTINGS_DIRECTORY, KEY_FILE_CACHE_DIRECTORY)));
 
 				if (!hasKeyFile) {
 					encManager.updateKeyFile(new KeyFile());
@@ -105,6 +114,7 @@ public class App {
 			serverConnector.disconnect();
 
 			FileManager fileManager = new FileManager();
+			fileManager.setDirectoryDigests(DirectoryDigests.getInstance());
 			FileSyncManager syncManager = new FileSyncManager(fileManager, encManager);
 
 			syncManager.removeGhostFiles();
@@ -9,8 +9,11 @@ import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.fides.client.connector.ConnectionPool;
 import org.fides.client.files.FileCheckTask;
 import org.fides.client.files.FileSyncManager;
+import org.fides.client.files.KeyFileCommitScheduler;
+import org.fides.client.files.KeyFileCommitTask;
 import org.fides.client.files.LocalFileChecker;
 import org.fides.client.tools.UserProperties;
 
@@ -33,6 +36,8 @@ public class ApplicationHandler {
 
 	private FileCheckTask fileCheckTask;
 
+	private KeyFileCommitTask commitTask;
+
 	/**
 	 * The constructor for the {@link ApplicationHandler}
 	 * 
@@ -62,7 +67,7 @@ public class ApplicationHandler {
 	}
 
 	/**
-	 * Starts the {@link LocalFileChecker} thread and the {@link FileCheckTask} thread.
+	 * Starts the {@link LocalFileChecker} thread, the {@link FileCheckTask} thread and the {@link KeyFileCommitTask}.
 	 * 
 	 * @return true if the application is started, false if already started
 	 */
@@ -81,13 +86,18 @@ public class ApplicationHandler {
 			checkTimer = new Timer("CheckTimer");
 			long timeCheck = TimeUnit.SECONDS.toMillis(UserProperties.getInstance().getCheckTimeInSeconds());
 			checkTimer.schedule(fileCheckTask, 0, timeCheck);
+
+			// Starting the commits of pending keyfile changes
+			commitTask = new KeyFileCommitTask(syncManager);
+			long commitDelay = KeyFileCommitScheduler.DEFAULT_MAX_DELAY;
+			checkTimer.schedule(commitTask, commitDelay, commitDelay);
 			return true;
 		}
 		return false;
 	}
 
 	/**
-	 * Stops the {@link LocalFileChecker} thread and the {@link FileCheckTask} thread.
+	 * Stops the {@link LocalFileChecker} thread, the {@link FileCheckTask} thread and the {@link KeyFileCommitTask}.
 	 * 
 	 * @return true if the application is stopped, false if already stopped
 	 */
@@ -100,6 +110,15 @@ public class ApplicationHandler {
 			} catch (InterruptedException e) {
 				LOG.error("Interrupted Exception while trying to safely stop the FileSyncManager");
 			}
+			// Committing the changes which are still pending
+			syncManager.commitPendingUpdates(true);
+
+			// Stopping the transfer workers
+			syncManager.stopTransfers();
+
+			// Closing the idle server connections
+			ConnectionPool.getInstance().closeAll();
+
 			// Stopping the File Changed Listener
 			fileChecker.stopHandling();
 			fileChecker = null;
@@ -108,9 +127,11 @@ public class ApplicationHandler {
 			checkTimer.cancel();
 			checkTimer.purge();
 			fileCheckTask.cancel();
+			commitTask.cancel();
 
 			checkTimer = null;
 			fileCheckTask = null;
+			commitTask = null;
 			return true;
 		}
 		return false;
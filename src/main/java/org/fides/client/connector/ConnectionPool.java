@@ -0,0 +1,202 @@
+package org.fides.client.connector;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps idle, logged in {@link ServerConnection}s open so the next {@link ServerConnector#connect()} does not need a new
+ * TCP connection, SSL handshake and login. Connections are checked before they are handed out and are closed when they
+ * have been idle for too long.
+ */
+public final class ConnectionPool {
+	/**
+	 * Log for this class
+	 */
+	private static final Logger LOG = LogManager.getLogger(ConnectionPool.class);
+
+	/**
+	 * The maximum amount of idle connections kept per server address
+	 */
+	private static final int MAX_IDLE_CONNECTIONS = 4;
+
+	/**
+	 * The time a connection may be idle before it is closed
+	 */
+	private static final long MAX_IDLE_TIME = TimeUnit.SECONDS.toMillis(30);
+
+	/**
+	 * The interval of the idle eviction
+	 */
+	private static final long EVICTION_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+	private static ConnectionPool instance;
+
+	/**
+	 * The idle connections per address, the most recently used connection is first
+	 */
+	private final Map<InetSocketAddress, Deque<ServerConnection>> idleConnections = new HashMap<>();
+
+	private final Timer evictionTimer;
+
+	/**
+	 * Constructor for ConnectionPool, starts the eviction of idle connections
+	 */
+	private ConnectionPool() {
+		evictionTimer = new Timer("ConnectionPoolEvictor", true);
+		evictionTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				evictIdleConnections();
+			}
+		}, EVICTION_INTERVAL, EVICTION_INTERVAL);
+	}
+
+	/**
+	 * Takes an idle connection to the given address out of the pool. Connections which are no longer alive are closed.
+	 *
+	 * @param address
+	 *            The address of the server
+	 * @param usernameHash
+	 *            The user the connection should be logged in with, a connection logged in as another user is not
+	 *            returned
+	 * @return An open {@link ServerConnection}, or null if none is available
+	 */
+	public ServerConnection checkOut(InetSocketAddress address, String usernameHash) {
+		while (true) {
+			ServerConnection connection = takeIdle(address, usernameHash);
+			if (connection == null) {
+				return null;
+			}
+			// Probe outside the lock, it waits on the network
+			if (connection.probe()) {
+				connection.touch();
+				return connection;
+			}
+			LOG.debug("Closing a dead pooled connection");
+			connection.close();
+		}
+	}
+
+	private synchronized ServerConnection takeIdle(InetSocketAddress address, String usernameHash) {
+		Deque<ServerConnection> connections = idleConnections.get(address);
+		if (connections == null) {
+			return null;
+		}
+		Iterator<ServerConnection> iterator = connections.iterator();
+		while (iterator.hasNext()) {
+			ServerConnection connection = iterator.next();
+			String loggedInUser = connection.getLoggedInUser();
+			if (loggedInUser == null || StringUtils.equals(loggedInUser, usernameHash)) {
+				iterator.remove();
+				return connection;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a connection to the pool. If the connection is not in a reusable state, or the pool is full, it will be
+	 * closed.
+	 *
+	 * @param connection
+	 *            The connection to return
+	 */
+	public void checkIn(ServerConnection connection) {
+		ServerConnection toClose = null;
+		if (!connection.isReusable()) {
+			toClose = connection;
+		} else {
+			connection.touch();
+			synchronized (this) {
+				Deque<ServerConnection> connections = idleConnections.get(connection.getAddress());
+				if (connections == null) {
+					connections = new ArrayDeque<>();
+					idleConnections.put(connection.getAddress(), connections);
+				}
+				connections.addFirst(connection);
+				if (connections.size() > MAX_IDLE_CONNECTIONS) {
+					toClose = connections.removeLast();
+				}
+			}
+		}
+		if (toClose != null) {
+			toClose.close();
+		}
+	}
+
+	/**
+	 * Closes all connections which have been idle for longer than the maximum idle time
+	 */
+	public void evictIdleConnections() {
+		long threshold = System.currentTimeMillis() - MAX_IDLE_TIME;
+		Deque<ServerConnection> toClose = new ArrayDeque<>();
+		synchronized (this) {
+			Iterator<Deque<ServerConnection>> addressIterator = idleConnections.values().iterator();
+			while (addressIterator.hasNext()) {
+				Deque<ServerConnection> connections = addressIterator.next();
+				// The oldest connections are last
+				while (!connections.isEmpty() && connections.peekLast().getLastUsed() < threshold) {
+					toClose.add(connections.removeLast());
+				}
+				if (connections.isEmpty()) {
+					addressIterator.remove();
+				}
+			}
+		}
+		for (ServerConnection connection : toClose) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Closes all idle connections
+	 */
+	public void closeAll() {
+		Deque<ServerConnection> toClose = new ArrayDeque<>();
+		synchronized (this) {
+			for (Deque<ServerConnection> connections : idleConnections.values()) {
+				toClose.addAll(connections);
+			}
+			idleConnections.clear();
+		}
+		for (ServerConnection connection : toClose) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Returns the amount of idle connections in the pool
+	 *
+	 * @return The amount of idle connections
+	 */
+	public synchronized int getIdleCount() {
+		int count = 0;
+		for (Deque<ServerConnection> connections : idleConnections.values()) {
+			count += connections.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the instance of the {@link ConnectionPool}, this is a singleton.
+	 *
+	 * @return The instance of the {@link ConnectionPool}
+	 */
+	public static synchronized ConnectionPool getInstance() {
+		if (instance == null) {
+			instance = new ConnectionPool();
+		}
+		return instance;
+	}
+}
@@ -0,0 +1,324 @@
+package org.fides.client.connector;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.security.cert.Certificate;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.fides.client.tools.CommunicationUtil;
+import org.fides.components.Actions;
+
+/**
+ * A single SSL connection to the server, together with the streams and the login state belonging to it. A
+ * {@link ServerConnection} can outlive the {@link ServerConnector} which opened it, when it is kept in the
+ * {@link ConnectionPool}.
+ */
+public class ServerConnection {
+	/**
+	 * Log for this class
+	 */
+	private static final Logger LOG = LogManager.getLogger(ServerConnection.class);
+
+	/**
+	 * The time in milliseconds to wait for data while probing an idle connection
+	 */
+	private static final int PROBE_TIMEOUT = 1;
+
+	/**
+	 * The maximum amount of bytes skipped when a response stream is closed before its end
+	 */
+	private static final int MAX_DRAIN = 64 * 1024;
+
+	private final InetSocketAddress address;
+
+	private final SSLSocket sslsocket;
+
+	private final DataInputStream in;
+
+	private final DataOutputStream out;
+
+	private final Certificate[] serverCertificates;
+
+	/**
+	 * The username hash this connection is logged in with, null if not logged in
+	 */
+	private String loggedInUser;
+
+	/**
+	 * Whether a request is still waiting for its stream to be read or its upload to be confirmed
+	 */
+	private boolean transferInProgress = false;
+
+	/**
+	 * Whether an error occurred which makes the state of the connection unknown
+	 */
+	private boolean broken = false;
+
+	private long lastUsed = System.currentTimeMillis();
+
+	/**
+	 * Constructor for ServerConnection
+	 *
+	 * @param address
+	 *            The address of the server
+	 * @param sslsocket
+	 *            The connected {@link SSLSocket}
+	 * @throws IOException
+	 */
+	ServerConnection(InetSocketAddress address, SSLSocket sslsocket) throws IOException {
+		this.address = address;
+		this.sslsocket = sslsocket;
+
+		SSLSession session = sslsocket.getSession();
+		serverCertificates = session.getPeerCertificates();
+
+		out = new DataOutputStream(sslsocket.getOutputStream());
+		in = new DataInputStream(sslsocket.getInputStream());
+	}
+
+	/**
+	 * Opens a new connection to the server, resuming a cached TLS session when possible
+	 *
+	 * @param address
+	 *            The {@link InetSocketAddress} of the server
+	 * @param timeout
+	 *            The connect timeout in milliseconds, 0 for no timeout
+	 * @return The opened {@link ServerConnection}
+	 * @throws UnknownHostException
+	 * @throws ConnectException
+	 */
+	public static ServerConnection open(InetSocketAddress address, int timeout) throws UnknownHostException, ConnectException {
+		SSLSocket sslsocket = null;
+		try {
+			sslsocket = TlsSessionCache.getInstance().createSocket(address, timeout);
+
+			return new ServerConnection(address, sslsocket);
+		} catch (ConnectException | UnknownHostException e) {
+			throw e;
+		} catch (IOException e) {
+			IOUtils.closeQuietly(sslsocket);
+			throw new ConnectException(e.getLocalizedMessage());
+		}
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	public SSLSocket getSocket() {
+		return sslsocket;
+	}
+
+	public DataInputStream getInputStream() {
+		return in;
+	}
+
+	public DataOutputStream getOutputStream() {
+		return out;
+	}
+
+	public Certificate[] getServerCertificates() {
+		return serverCertificates;
+	}
+
+	public String getLoggedInUser() {
+		return loggedInUser;
+	}
+
+	public void setLoggedInUser(String loggedInUser) {
+		this.loggedInUser = loggedInUser;
+	}
+
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Marks the moment this connection was last used
+	 */
+	public void touch() {
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Marks the start of a request whose response is streamed, the connection can not be reused until
+	 * {@link #endTransfer()} is called
+	 */
+	public void beginTransfer() {
+		transferInProgress = true;
+	}
+
+	/**
+	 * Marks the end of a streamed request
+	 */
+	public void endTransfer() {
+		transferInProgress = false;
+	}
+
+	/**
+	 * Marks the connection as broken, it will be closed instead of reused
+	 */
+	public void invalidate() {
+		broken = true;
+	}
+
+	/**
+	 * Whether the connection is in a known state and can be given to another {@link ServerConnector}
+	 *
+	 * @return true if the connection can be reused
+	 */
+	public boolean isReusable() {
+		return !broken && !transferInProgress && sslsocket.isConnected() && !sslsocket.isClosed() && !sslsocket.isInputShutdown()
+			&& !sslsocket.isOutputShutdown();
+	}
+
+	/**
+	 * Checks if an idle connection is still alive. The server should never send anything to an idle connection, so if
+	 * the connection was closed or data is waiting the connection can not be used anymore.
+	 *
+	 * @return true if the connection is still usable
+	 */
+	public boolean probe() {
+		if (!isReusable()) {
+			return false;
+		}
+		try {
+			if (in.available() > 0) {
+				return false;
+			}
+			sslsocket.setSoTimeout(PROBE_TIMEOUT);
+			// Any read result means the connection is closed or out of sync
+			in.read();
+			return false;
+		} catch (SocketTimeoutException e) {
+			// Nothing to read, the connection is still open
+			return resetTimeout();
+		} catch (IOException e) {
+			LOG.debug(e);
+			return false;
+		}
+	}
+
+	private boolean resetTimeout() {
+		try {
+			sslsocket.setSoTimeout(0);
+			return true;
+		} catch (IOException e) {
+			LOG.debug(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Wraps a stream that reads a response from this connection. The transfer ends when the stream is read until the
+	 * end. When it is closed earlier a small remainder is skipped, a larger remainder leaves unread data on the
+	 * connection and thus makes it not reusable. Closing the wrapped stream does not close the stream it wraps, that
+	 * stream reads from the connection which stays open for the next request.
+	 *
+	 * @param stream
+	 *            The stream reading from this connection
+	 * @return The wrapped stream
+	 */
+	public InputStream trackInput(InputStream stream) {
+		beginTransfer();
+		return new FilterInputStream(stream) {
+			private boolean finished = false;
+
+			private boolean closed = false;
+
+			@Override
+			public int read() throws IOException {
+				checkClosed();
+				return track(super.read());
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				checkClosed();
+				return track(super.read(b, off, len));
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				checkClosed();
+				return super.skip(n);
+			}
+
+			@Override
+			public int available() throws IOException {
+				checkClosed();
+				return super.available();
+			}
+
+			@Override
+			public void close() {
+				if (closed) {
+					return;
+				}
+				try {
+					long skipped = 0;
+					byte[] buffer = new byte[4096];
+					while (!finished && skipped < MAX_DRAIN) {
+						int n = read(buffer, 0, buffer.length);
+						if (n > 0) {
+							skipped += n;
+						}
+					}
+				} catch (IOException e) {
+					LOG.debug(e);
+				} finally {
+					closed = true;
+					// The connection is released, or closed with the connector when data is left on it
+					if (!finished) {
+						invalidate();
+					}
+				}
+			}
+
+			private void checkClosed() throws IOException {
+				if (closed) {
+					throw new IOException("Stream closed");
+				}
+			}
+
+			private int track(int result) {
+				if (result == -1 && !finished) {
+					finished = true;
+					endTransfer();
+				}
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * Closes the connection, telling the server when possible
+	 */
+	public void close() {
+		try {
+			if (!broken && !sslsocket.isClosed()) {
+				CommunicationUtil.requestAction(out, Actions.DISCONNECT);
+				out.flush();
+			}
+		} catch (IOException e) {
+			LOG.error(e);
+		} finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+			IOUtils.closeQuietly(sslsocket);
+		}
+	}
+
+}
@@ -2,7 +2,6 @@ package org.fides.client.connector;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -13,12 +12,9 @@ import java.net.UnknownHostException;
 import java.security.cert.Certificate;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Set;
 
-import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
@@ -82,58 +78,127 @@ public class ServerConnector {
 	private boolean loggedIn = false;
 
 	/**
-	 * Connect to the server with the given ip and port
+	 * The connection currently used
+	 */
+	private ServerConnection connection;
+
+	/**
+	 * Whether the current connection is returned to the {@link ConnectionPool} on disconnect
+	 */
+	private boolean pooled = false;
+
+	/**
+	 * Connect to the server with the given ip and port. This always opens a new connection, which is closed again on
+	 * {@link #disconnect()}.
 	 * 
 	 * @param address
 	 *            The {@link InetSocketAddress} with the server's address
 	 * @return true if the connection was successful
 	 */
 	public boolean init(InetSocketAddress address) throws UnknownHostException, ConnectException {
-		try {
-			SSLSocketFactory sslsocketfactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-
-			sslsocket = (SSLSocket) sslsocketfactory.createSocket();
-			sslsocket.connect(address, CONNECTTIMEOUT);
-
-			SSLSession session = sslsocket.getSession();
-			serverCertificates = session.getPeerCertificates();
-
-			out = new DataOutputStream(sslsocket.getOutputStream());
-			in = new DataInputStream(sslsocket.getInputStream());
-
-			return true;
-		} catch (ConnectException | UnknownHostException e) {
-			throw e;
-		} catch (IOException e) {
-			throw new ConnectException(e.getLocalizedMessage());
-		}
+		releaseConnection();
+		setConnection(ServerConnection.open(address, CONNECTTIMEOUT), false);
+		return true;
 	}
 
 	/**
-	 * Connects to the server which is set in the {@link ServerConnector#init(InetSocketAddress)} function.
+	 * Connects to the server which is set in the {@link ServerConnector#init(InetSocketAddress)} function. An idle
+	 * connection from the {@link ConnectionPool} is used when available, it is returned to the pool on
+	 * {@link #disconnect()}.
 	 * 
 	 * @throws UnknownHostException
 	 * @throws ConnectException
 	 */
 	public void connect() throws UnknownHostException, ConnectException {
-		try {
-			SSLSocketFactory sslsocketfactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+		releaseConnection();
+		UserProperties userProperties = UserProperties.getInstance();
+		InetSocketAddress address = userProperties.getServerAddress();
+		ServerConnection pooledConnection = ConnectionPool.getInstance().checkOut(address, userProperties.getUsernameHash());
+		if (pooledConnection == null) {
+			pooledConnection = ServerConnection.open(address, 0);
+		} else {
+			LOG.trace("Reusing a pooled connection");
+		}
+		setConnection(pooledConnection, true);
+	}
+
+	/**
+	 * Uses the given {@link ServerConnection} for all following requests
+	 * 
+	 * @param newConnection
+	 *            The connection to use
+	 * @param returnToPool
+	 *            Whether the connection should be returned to the {@link ConnectionPool} on disconnect
+	 */
+	private void setConnection(ServerConnection newConnection, boolean returnToPool) {
+		connection = newConnection;
+		pooled = returnToPool;
+		sslsocket = newConnection.getSocket();
+		serverCertificates = newConnection.getServerCertificates();
+		out = newConnection.getOutputStream();
+		in = newConnection.getInputStream();
+		loggedIn = newConnection.getLoggedInUser() != null;
+	}
+
+	/**
+	 * Returns the current connection to the {@link ConnectionPool} or closes it
+	 */
+	private void releaseConnection() {
+		if (connection != null) {
+			if (pooled) {
+				ConnectionPool.getInstance().checkIn(connection);
+			} else {
+				connection.close();
+			}
+		}
+		connection = null;
+		sslsocket = null;
+		in = null;
+		out = null;
+	}
 
-			sslsocket = (SSLSocket) sslsocketfactory.createSocket();
-			sslsocket.connect(UserProperties.getInstance().getServerAddress());
+	/**
+	 * Marks the current connection as broken, so it will not be reused
+	 */
+	private void invalidateConnection() {
+		if (connection != null) {
+			connection.invalidate();
+		}
+	}
 
-			SSLSession session = sslsocket.getSession();
-			serverCertificates = session.getPeerCertificates();
+	/**
+	 * Wraps a stream reading a response so the current connection knows when the response is fully read
+	 * 
+	 * @param stream
+	 *            The stream reading the response
+	 * @return The wrapped stream
+	 */
+	private InputStream trackInput(InputStream stream) {
+		if (connection != null) {
+			return connection.trackInput(stream);
+		}
+		return stream;
+	}
 
-			out = new DataOutputStream(sslsocket.getOutputStream());
-			in = new DataInputStream(sslsocket.getInputStream());
-		} catch (ConnectException | UnknownHostException e) {
-			throw e;
-		} catch (IOException e) {
-			throw new ConnectException(e.getLocalizedMessage());
+	/**
+	 * Marks the start of an upload on the current connection, it ends with {@link #confirmUpload(boolean)}
+	 */
+	private void beginUpload() {
+		if (connection != null) {
+			connection.beginTransfer();
 		}
 	}
 
+	/**
+	 * Returns if the current connection can take another request, a response which was not read until the end leaves
+	 * data on it
+	 * 
+	 * @return true if connected and the connection is in a known state
+	 */
+	public boolean isReusable() {
+		return connection != null && connection.isReusable();
+	}
+
 	/**
 	 * Returns if the connection is alive
 	 * 
@@ -169,9 +234,13 @@ public class ServerConnector {
 				} else {
 					loggedIn = false;
 				}
+				if (connection != null && loggedIn) {
+					connection.setLoggedInUser(usernameHash);
+				}
 
 			} catch (IOException e) {
 				LOG.error("IOException connection failed: ", e);
+				invalidateConnection();
 				loggedIn = false;
 			}
 		}
@@ -211,6 +280,7 @@ public class ServerConnector {
 
 			} catch (IOException e) {
 				LOG.error("IOException connection failed: ", e);
+				invalidateConnection();
 			}
 		}
 		return false;
@@ -228,20 +298,15 @@ public class ServerConnector {
 	}
 
 	/**
-	 * Disconnect the current connection
+	 * Disconnect the current connection. A pooled connection is returned to the {@link ConnectionPool} instead of being
+	 * closed.
 	 */
 	public void disconnect() {
 		try {
-			CommunicationUtil.requestAction(out, Actions.DISCONNECT);
-			out.flush();
-		} catch (IOException e) {
-			LOG.error(e);
+			releaseConnection();
 		} finally {
 			loggedIn = false;
 			errorMessages = new HashMap<>();
-			IOUtils.closeQuietly(in);
-			IOUtils.closeQuietly(out);
-			IOUtils.closeQuietly(sslsocket);
 		}
 	}
 
@@ -251,7 +316,7 @@ public class ServerConnector {
 	 * @return true if disconnected
 	 */
 	public boolean isDisconnected() {
-		return sslsocket != null && sslsocket.isClosed();
+		return sslsocket == null || sslsocket.isClosed();
 	}
 
 	/**
@@ -303,7 +368,7 @@ public class ServerConnector {
 				JsonObject requestResponse = new Gson().fromJson(in.readUTF(), JsonObject.class);
 				if (requestResponse.has(Responses.SUCCESSFUL)) {
 					if (requestResponse.get(Responses.SUCCESSFUL).getAsBoolean()) {
-						return new VirtualInputStream(in);
+						return trackInput(new VirtualInputStream(in));
 					} else {
 						errorMessages.put(Actions.GET_KEY_FILE, requestResponse.get(Responses.ERROR).getAsString());
 					}
@@ -313,6 +378,7 @@ public class ServerConnector {
 			}
 		} catch (IOException e) {
 			LOG.error(e.getMessage());
+			invalidateConnection();
 		}
 		return null;
 
@@ -332,6 +398,7 @@ public class ServerConnector {
 				JsonObject requestResponse = new Gson().fromJson(in.readUTF(), JsonObject.class);
 				if (requestResponse.has(Responses.SUCCESSFUL)) {
 					if (requestResponse.get(Responses.SUCCESSFUL).getAsBoolean()) {
+						beginUpload();
 						return new VirtualOutputStream(out);
 					} else {
 						errorMessages.put(Actions.UPDATE_KEY_FILE, requestResponse.get(Responses.ERROR).getAsString());
@@ -342,6 +409,7 @@ public class ServerConnector {
 			}
 		} catch (IOException e) {
 			LOG.error(e.getMessage());
+			invalidateConnection();
 		}
 		return null;
 	}
@@ -364,7 +432,7 @@ public class ServerConnector {
 				JsonObject requestResponse = new Gson().fromJson(in.readUTF(), JsonObject.class);
 				if (requestResponse.has(Responses.SUCCESSFUL)) {
 					if (requestResponse.get(Responses.SUCCESSFUL).getAsBoolean()) {
-						return new VirtualInputStream(in);
+						return trackInput(new VirtualInputStream(in));
 					} else {
 						errorMessages.put(Actions.GET_FILE, requestResponse.get(Responses.ERROR).getAsString());
 					}
@@ -374,6 +442,7 @@ public class ServerConnector {
 			}
 		} catch (IOException e) {
 			LOG.error(e.getMessage());
+			invalidateConnection();
 		}
 		return null;
 	}
@@ -394,6 +463,7 @@ public class ServerConnector {
 				if (requestResponse.has(Responses.SUCCESSFUL)) {
 					if (requestResponse.get(Responses.SUCCESSFUL).getAsBoolean() && requestResponse.has(Actions.Properties.LOCATION)) {
 						String location = requestResponse.get(Actions.Properties.LOCATION).getAsString();
+						beginUpload();
 						return new OutputStreamData(new VirtualOutputStream(out), location);
 					} else {
 						errorMessages.put(Actions.UPLOAD_FILE, requestResponse.get(Responses.ERROR).getAsString());
@@ -404,6 +474,7 @@ public class ServerConnector {
 			}
 		} catch (IOException e) {
 			LOG.error(e.getMessage());
+			invalidateConnection();
 		}
 		return null;
 	}
@@ -426,6 +497,7 @@ public class ServerConnector {
 				JsonObject requestResponse = new Gson().fromJson(in.readUTF(), JsonObject.class);
 				if (requestResponse.has(Responses.SUCCESSFUL)) {
 					if (requestResponse.get(Responses.SUCCESSFUL).getAsBoolean()) {
+						beginUpload();
 						return new VirtualOutputStream(out);
 					} else {
 						errorMessages.put(Actions.UPDATE_FILE, requestResponse.get(Responses.ERROR).getAsString());
@@ -436,6 +508,7 @@ public class ServerConnector {
 			}
 		} catch (IOException e) {
 			LOG.error(e.getMessage());
+			invalidateConnection();
 		}
 		return null;
 	}
@@ -468,6 +541,7 @@ public class ServerConnector {
 			}
 		} catch (IOException e) {
 			LOG.error(e.getMessage());
+			invalidateConnection();
 		}
 		return false;
 	}
@@ -486,6 +560,9 @@ public class ServerConnector {
 		try {
 			String message = in.readUTF();
 			JsonObject response = new Gson().fromJson(message, JsonObject.class);
+			if (connection != null) {
+				connection.endTransfer();
+			}
 			if (response.has(Responses.SUCCESSFUL)) {
 				if (response.get(Responses.SUCCESSFUL).getAsBoolean()) {
 					LOG.debug("Upload serverside was successful");
@@ -500,6 +577,7 @@ public class ServerConnector {
 			}
 		} catch (IOException e) {
 			LOG.error(e.getMessage());
+			invalidateConnection();
 		}
 		LOG.debug("The last upload was not successful");
 		return false;
@@ -538,6 +616,7 @@ public class ServerConnector {
 			}
 		} catch (IOException e) {
 			LOG.error(e.getMessage());
+			invalidateConnection();
 		}
 		return null;
 	}
@@ -0,0 +1,157 @@
+package org.fides.client.connector;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Creates the SSL sockets to the server from one client side {@link SSLContext}, so the TLS sessions negotiated with a
+ * server are cached and later connections to the same host and port can resume them with an abbreviated handshake.
+ * Keeps count of how many handshakes were resumed and how many were full handshakes.
+ */
+public final class TlsSessionCache {
+	/**
+	 * Log for this class
+	 */
+	private static final Logger LOG = LogManager.getLogger(TlsSessionCache.class);
+
+	/**
+	 * The amount of sessions kept in the cache
+	 */
+	private static final int SESSION_CACHE_SIZE = 32;
+
+	/**
+	 * The time in seconds a cached session may be resumed
+	 */
+	private static final int SESSION_TIMEOUT = (int) TimeUnit.HOURS.toSeconds(12);
+
+	private static TlsSessionCache instance;
+
+	private final SSLSocketFactory socketFactory;
+
+	/**
+	 * The id of the last session per host and port, used to recognize a resumed session
+	 */
+	private final Map<String, byte[]> lastSessionIds = new HashMap<>();
+
+	private final AtomicLong resumedHandshakes = new AtomicLong();
+
+	private final AtomicLong fullHandshakes = new AtomicLong();
+
+	/**
+	 * Constructor for TlsSessionCache, creates the {@link SSLContext}. If no context can be created the default
+	 * {@link SSLSocketFactory} is used.
+	 */
+	TlsSessionCache() {
+		SSLSocketFactory factory;
+		try {
+			// Uses the default key and trust managers, so the javax.net.ssl properties are still used
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, null, null);
+			SSLSessionContext sessionContext = context.getClientSessionContext();
+			sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+			sessionContext.setSessionTimeout(SESSION_TIMEOUT);
+			factory = context.getSocketFactory();
+		} catch (NoSuchAlgorithmException | KeyManagementException e) {
+			LOG.error(e);
+			factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+		}
+		socketFactory = factory;
+	}
+
+	/**
+	 * Opens an {@link SSLSocket} to the address and completes the handshake. The session is cached under the host and
+	 * port of the address.
+	 *
+	 * @param address
+	 *            The address of the server
+	 * @param timeout
+	 *            The connect timeout in milliseconds, 0 for no timeout
+	 * @return The connected {@link SSLSocket}
+	 * @throws IOException
+	 */
+	public SSLSocket createSocket(InetSocketAddress address, int timeout) throws IOException {
+		Socket plainSocket = new Socket();
+		SSLSocket sslsocket = null;
+		try {
+			plainSocket.setKeepAlive(true);
+			plainSocket.connect(address, timeout);
+
+			// Layering on a connected socket with the host and port makes them the key of the session cache
+			sslsocket = (SSLSocket) socketFactory.createSocket(plainSocket, address.getHostString(), address.getPort(), true);
+			long handshakeStart = System.currentTimeMillis();
+			sslsocket.startHandshake();
+			registerSession(address, sslsocket.getSession(), handshakeStart);
+			return sslsocket;
+		} catch (IOException e) {
+			IOUtils.closeQuietly(sslsocket);
+			IOUtils.closeQuietly(plainSocket);
+			throw e;
+		}
+	}
+
+	/**
+	 * Counts the handshake of a new session as resumed or full
+	 *
+	 * @param address
+	 *            The address of the server
+	 * @param session
+	 *            The negotiated session
+	 * @param handshakeStart
+	 *            The time the handshake started
+	 */
+	void registerSession(InetSocketAddress address, SSLSession session, long handshakeStart) {
+		String key = address.getHostString() + ":" + address.getPort();
+		byte[] sessionId = session.getId();
+		boolean resumed;
+		synchronized (lastSessionIds) {
+			byte[] lastSessionId = lastSessionIds.put(key, sessionId);
+			resumed = (lastSessionId != null && sessionId.length > 0 && Arrays.equals(lastSessionId, sessionId))
+				|| session.getCreationTime() < handshakeStart;
+		}
+		if (resumed) {
+			resumedHandshakes.incrementAndGet();
+		} else {
+			fullHandshakes.incrementAndGet();
+		}
+		LOG.debug((resumed ? "Resumed" : "Full") + " TLS handshake with " + key + " (resumed: " + resumedHandshakes.get() + ", full: "
+			+ fullHandshakes.get() + ")");
+	}
+
+	public long getResumedHandshakes() {
+		return resumedHandshakes.get();
+	}
+
+	public long getFullHandshakes() {
+		return fullHandshakes.get();
+	}
+
+	/**
+	 * Returns the instance of the {@link TlsSessionCache}, this is a singleton.
+	 *
+	 * @return The instance of the {@link TlsSessionCache}
+	 */
+	public static synchronized TlsSessionCache getInstance() {
+		if (instance == null) {
+			instance = new TlsSessionCache();
+		}
+		return instance;
+	}
+}
@@ -0,0 +1,163 @@
+package org.fides.client.encryption;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the chunks of a file in the chunked format and decrypts them on an {@link ExecutorService}. A limited amount
+ * of chunks is read and decrypted ahead of what is read from this stream. A chunk which is not authentic, missing or
+ * out of order fails the stream with an {@link IOException}.
+ */
+class ChunkedDecryptionInputStream extends InputStream {
+
+	private final DataInputStream in;
+
+	private final ChunkedEncryption.ChunkCipher cipher;
+
+	private final ExecutorService executor;
+
+	private final int maxPending;
+
+	/**
+	 * The chunks being decrypted, in the order of the file
+	 */
+	private final Queue<Future<byte[]>> pending = new ArrayDeque<>();
+
+	private int maxEncryptedLength = -1;
+
+	private byte[] chunk = new byte[0];
+
+	private int chunkPosition = 0;
+
+	private long chunkIndex = 0;
+
+	/**
+	 * Whether the last chunk is read from the {@link InputStream}
+	 */
+	private boolean lastRead = false;
+
+	/**
+	 * Constructor for ChunkedDecryptionInputStream
+	 *
+	 * @param in
+	 *            The {@link InputStream} positioned after the magic number
+	 * @param cipher
+	 *            The cipher of the file
+	 * @param executor
+	 *            The {@link ExecutorService} to decrypt on
+	 * @param maxPending
+	 *            The amount of chunks decrypted ahead of the stream
+	 */
+	ChunkedDecryptionInputStream(DataInputStream in, ChunkedEncryption.ChunkCipher cipher, ExecutorService executor, int maxPending) {
+		this.in = in;
+		this.cipher = cipher;
+		this.executor = executor;
+		this.maxPending = maxPending;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] single = new byte[1];
+		int read = read(single, 0, 1);
+		return read < 0 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		while (chunkPosition == chunk.length) {
+			if (!nextChunk()) {
+				return -1;
+			}
+		}
+		int read = Math.min(length, chunk.length - chunkPosition);
+		System.arraycopy(chunk, chunkPosition, bytes, offset, read);
+		chunkPosition += read;
+		return read;
+	}
+
+	@Override
+	public int available() {
+		return chunk.length - chunkPosition;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Future<byte[]> future : pending) {
+			future.cancel(true);
+		}
+		pending.clear();
+		in.close();
+	}
+
+	/**
+	 * Reads chunks ahead until the limit and takes the next decrypted chunk
+	 *
+	 * @return false at the end of the file
+	 */
+	private boolean nextChunk() throws IOException {
+		if (maxEncryptedLength < 0) {
+			int chunkSize = in.readInt();
+			if (chunkSize <= 0) {
+				throw new StreamCorruptedException("Invalid chunk size " + chunkSize);
+			}
+			maxEncryptedLength = chunkSize + ChunkedEncryption.TAG_SIZE;
+		}
+		while (!lastRead && pending.size() < maxPending) {
+			readChunk();
+		}
+		Future<byte[]> future = pending.poll();
+		if (future == null) {
+			return false;
+		}
+		try {
+			chunk = future.get();
+			chunkPosition = 0;
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while decrypting");
+		} catch (ExecutionException e) {
+			throw new IOException("Could not decrypt a chunk", e.getCause());
+		}
+	}
+
+	private void readChunk() throws IOException {
+		final byte flags;
+		try {
+			flags = in.readByte();
+		} catch (EOFException e) {
+			throw new EOFException("The file ends before its last chunk");
+		}
+		int length = in.readInt();
+		if (length < ChunkedEncryption.TAG_SIZE || length > maxEncryptedLength) {
+			throw new StreamCorruptedException("Invalid chunk length " + length);
+		}
+		final byte[] nonce = new byte[ChunkedEncryption.NONCE_SIZE];
+		in.readFully(nonce);
+		final byte[] encrypted = new byte[length];
+		in.readFully(encrypted);
+
+		final long index = chunkIndex++;
+		lastRead = (flags & ChunkedEncryption.LAST_CHUNK) != 0;
+		pending.add(executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return cipher.decrypt(index, flags, nonce, encrypted);
+			}
+		}));
+	}
+
+}
@@ -0,0 +1,294 @@
+package org.fides.client.encryption;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.fides.client.tools.BufferPool;
+import org.fides.encryption.EncryptionUtils;
+
+/**
+ * Encrypts files in chunks which are encrypted and decrypted in parallel. The format is:
+ * <ul>
+ * <li>The magic number and version, {@link #MAGIC}</li>
+ * <li>The size of the chunks</li>
+ * <li>The chunks, each with a flag byte, the length of the encrypted chunk, the nonce and the chunk encrypted with
+ * AES-GCM</li>
+ * </ul>
+ * The index of a chunk and its flags are authenticated with it, so chunks can not be reordered, and the last chunk is
+ * flagged, so a truncated file is noticed. A file always ends with a last chunk, which is empty for an empty file.
+ * <p>
+ * The nonce of a chunk is derived from the key, the index and the content of the chunk. Files are updated with the
+ * same key, so a random nonce would be the only way to avoid reusing a nonce, but the encryption of the same content
+ * with the same key is expected to be the same. A derived nonce only repeats for the same chunk, which gives the same
+ * encrypted chunk.
+ * <p>
+ * Files which do not start with the magic number are from before the chunked format and are decrypted with
+ * {@link EncryptionUtils}.
+ */
+public final class ChunkedEncryption {
+	/**
+	 * "FIDESCE" and version 1
+	 */
+	static final byte[] MAGIC = "FIDESCE\u0001".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * The size of the chunks, the last chunk can be smaller
+	 */
+	static final int CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * The flag of the last chunk
+	 */
+	static final byte LAST_CHUNK = 1;
+
+	static final int NONCE_SIZE = 12;
+
+	static final int TAG_SIZE = 16;
+
+	/**
+	 * The size of a chunk as it is written, with the largest content
+	 */
+	static final int ENCRYPTED_CHUNK_SIZE = 1 + 4 + NONCE_SIZE + CHUNK_SIZE + TAG_SIZE;
+
+	/**
+	 * The amount of chunks encrypted or decrypted ahead of the stream, for each thread
+	 */
+	private static final int CHUNKS_PER_THREAD = 2;
+
+	private static final String CIPHER = "AES/GCM/NoPadding";
+
+	private static final String MAC = "HmacSHA256";
+
+	private static final byte[] NONCE_KEY_LABEL = "Fides chunk nonce".getBytes(StandardCharsets.US_ASCII);
+
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+	private static ExecutorService executor;
+
+	private static ExecutorService writerExecutor;
+
+	/**
+	 * The amount of buffers of each kind in the pools of all streams together
+	 */
+	static final int POOLED_CHUNKS = 2 * THREADS * CHUNKS_PER_THREAD;
+
+	/**
+	 * The buffers for the content of chunks
+	 */
+	static final BufferPool CHUNK_BUFFERS = new BufferPool((long) POOLED_CHUNKS * CHUNK_SIZE);
+
+	/**
+	 * The buffers for chunks as they are written, the array is written to the stream
+	 */
+	static final BufferPool ENCRYPTED_BUFFERS = new BufferPool((long) POOLED_CHUNKS * ENCRYPTED_CHUNK_SIZE);
+
+	private static final ThreadLocal<Mac> MACS = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				return Mac.getInstance(MAC);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private ChunkedEncryption() {
+	}
+
+	/**
+	 * Returns an {@link OutputStream} which encrypts what is written to it in chunks and writes them to the given
+	 * {@link OutputStream}. Closing it writes the last chunk and closes the given {@link OutputStream}.
+	 *
+	 * @param out
+	 *            The {@link OutputStream} to write the encrypted file to
+	 * @param key
+	 *            The key of the file
+	 * @return The {@link OutputStream} to write the file to, null if the given {@link OutputStream} is null
+	 */
+	public static OutputStream getEncryptionStream(OutputStream out, Key key) {
+		if (out == null) {
+			return null;
+		}
+		return new ChunkedEncryptionOutputStream(out, new ChunkCipher(key), getExecutor(), getWriterExecutor(), THREADS
+			* CHUNKS_PER_THREAD);
+	}
+
+	/**
+	 * Returns an {@link InputStream} which decrypts a file in the chunked format, or in the format of
+	 * {@link EncryptionUtils} for files which do not start with the magic number.
+	 *
+	 * @param in
+	 *            The {@link InputStream} of the encrypted file
+	 * @param key
+	 *            The key of the file
+	 * @return The {@link InputStream} of the decrypted file, null if the given {@link InputStream} is null
+	 */
+	public static InputStream getDecryptionStream(InputStream in, Key key) {
+		if (in == null) {
+			return null;
+		}
+		PushbackInputStream pushbackIn = new PushbackInputStream(in, MAGIC.length);
+		try {
+			byte[] start = new byte[MAGIC.length];
+			int length = readFully(pushbackIn, start);
+			if (length == MAGIC.length && Arrays.equals(start, MAGIC)) {
+				return new ChunkedDecryptionInputStream(new DataInputStream(pushbackIn), new ChunkCipher(key), getExecutor(), THREADS
+					* CHUNKS_PER_THREAD);
+			}
+			pushbackIn.unread(start, 0, length);
+		} catch (IOException e) {
+			// The stream fails again when it is read
+		}
+		return EncryptionUtils.getDecryptionStream(pushbackIn, key);
+	}
+
+	private static int readFully(InputStream in, byte[] bytes) throws IOException {
+		int length = 0;
+		while (length < bytes.length) {
+			int read = in.read(bytes, length, bytes.length - length);
+			if (read < 0) {
+				break;
+			}
+			length += read;
+		}
+		return length;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Encryption Thread " + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Returns the {@link ExecutorService} for the writers of the encrypted chunks, a thread for every stream being
+	 * written. They wait on the encryption, so they do not run on its threads.
+	 */
+	private static synchronized ExecutorService getWriterExecutor() {
+		if (writerExecutor == null) {
+			writerExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Chunk Writer Thread " + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return writerExecutor;
+	}
+
+	/**
+	 * Encrypts and decrypts the chunks of one file, it can be used by several threads at the same time
+	 */
+	static final class ChunkCipher {
+		private final SecretKeySpec key;
+
+		private final SecretKeySpec nonceKey;
+
+		/**
+		 * Constructor for ChunkCipher
+		 *
+		 * @param fileKey
+		 *            The key of the file
+		 */
+		ChunkCipher(Key fileKey) {
+			key = new SecretKeySpec(fileKey.getEncoded(), EncryptionUtils.ALGORITHM);
+			try {
+				Mac mac = MACS.get();
+				mac.init(new SecretKeySpec(fileKey.getEncoded(), MAC));
+				nonceKey = new SecretKeySpec(mac.doFinal(NONCE_KEY_LABEL), MAC);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalArgumentException("Invalid key", e);
+			}
+		}
+
+		/**
+		 * Encrypts a chunk
+		 *
+		 * @param index
+		 *            The index of the chunk in the file
+		 * @param flags
+		 *            The flags of the chunk
+		 * @param chunk
+		 *            The content of the chunk, from its position to its limit
+		 * @param result
+		 *            The buffer to put the chunk as it is written in: flags, length, nonce and encrypted content. It
+		 *            is flipped, ready to be written.
+		 * @throws GeneralSecurityException
+		 */
+		void encrypt(long index, byte flags, ByteBuffer chunk, ByteBuffer result) throws GeneralSecurityException {
+			Mac mac = MACS.get();
+			mac.init(nonceKey);
+			mac.update(additionalData(index, flags));
+			mac.update(chunk.duplicate());
+			byte[] nonce = Arrays.copyOf(mac.doFinal(), NONCE_SIZE);
+
+			// A new Cipher for every chunk, a Cipher refuses to encrypt twice with the same nonce
+			Cipher cipher = Cipher.getInstance(CIPHER);
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+			cipher.updateAAD(additionalData(index, flags));
+			result.clear();
+			result.put(flags).putInt(cipher.getOutputSize(chunk.remaining())).put(nonce);
+			cipher.doFinal(chunk, result);
+			result.flip();
+		}
+
+		/**
+		 * Decrypts a chunk
+		 *
+		 * @param index
+		 *            The index of the chunk in the file
+		 * @param flags
+		 *            The flags of the chunk
+		 * @param nonce
+		 *            The nonce of the chunk
+		 * @param encrypted
+		 *            The encrypted content of the chunk
+		 * @return The content of the chunk
+		 * @throws GeneralSecurityException
+		 *             When the chunk is not authentic
+		 */
+		byte[] decrypt(long index, byte flags, byte[] nonce, byte[] encrypted) throws GeneralSecurityException {
+			Cipher cipher = Cipher.getInstance(CIPHER);
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+			cipher.updateAAD(additionalData(index, flags));
+			return cipher.doFinal(encrypted);
+		}
+
+		private static byte[] additionalData(long index, byte flags) {
+			return ByteBuffer.allocate(9).putLong(index).put(flags).array();
+		}
+	}
+
+}
@@ -0,0 +1,398 @@
+package org.fides.client.encryption;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.fides.client.tools.ChannelTarget;
+import org.fides.client.tools.CopyInterruptedException;
+
+/**
+ * Encrypts what is written to it in chunks on an {@link ExecutorService} and writes the encrypted chunks in order on a
+ * writer thread, so reading what is encrypted and sending the encrypted chunks overlap. A limited amount of chunks is
+ * encrypted or waiting to be sent ahead of the writer, writing to the stream waits for room when the limit is reached.
+ * <p>
+ * The chunks are pooled buffers. A file can be read into them with
+ * {@link #transferFrom(FileChannel, MessageDigest, AtomicBoolean)}, it is hashed there and encrypted from there into
+ * the buffer that is written, without other copies.
+ * <p>
+ * The pools have a hard cap shared by all streams, a stream waits for a buffer when the cap is reached. The buffer for
+ * the encrypted chunk is taken by the stream before the chunk is submitted, so the encryption threads never wait on a
+ * pool and every chunk in flight is finished and returns its buffers, also when the stream fails. The buffer of a
+ * chunk is only taken when something is written to it, so a stream which is never used holds no buffer.
+ */
+class ChunkedEncryptionOutputStream extends OutputStream implements ChannelTarget {
+
+	private final DataOutputStream out;
+
+	/**
+	 * Marks the end of the chunks for the writer
+	 */
+	private static final Future<ByteBuffer> END = new FutureTask<>(new Callable<ByteBuffer>() {
+		@Override
+		public ByteBuffer call() {
+			return null;
+		}
+	});
+
+	private final ChunkedEncryption.ChunkCipher cipher;
+
+	private final ExecutorService executor;
+
+	private final ExecutorService writerExecutor;
+
+	/**
+	 * The chunks being encrypted or waiting for the writer, in the order they are written
+	 */
+	private final BlockingQueue<Future<ByteBuffer>> pending;
+
+	/**
+	 * The writer of the encrypted chunks, started with the first chunk
+	 */
+	private Future<Void> writer;
+
+	/**
+	 * What the writer failed with, or the stream was closed by, after which it skips the chunks
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * The chunk being filled, null until something is written to it
+	 */
+	private ByteBuffer chunk;
+
+	private long chunkIndex = 0;
+
+	private boolean headerWritten = false;
+
+	private boolean closed = false;
+
+	/**
+	 * Constructor for ChunkedEncryptionOutputStream, the header of the format is written with the first chunk
+	 *
+	 * @param out
+	 *            The {@link OutputStream} to write the encrypted chunks to
+	 * @param cipher
+	 *            The cipher of the file
+	 * @param executor
+	 *            The {@link ExecutorService} to encrypt on
+	 * @param writerExecutor
+	 *            The {@link ExecutorService} to write the encrypted chunks on
+	 * @param maxPending
+	 *            The amount of chunks encrypted ahead of the writer
+	 */
+	ChunkedEncryptionOutputStream(OutputStream out, ChunkedEncryption.ChunkCipher cipher, ExecutorService executor, ExecutorService writerExecutor,
+		int maxPending) {
+		this.out = new DataOutputStream(out);
+		this.cipher = cipher;
+		this.executor = executor;
+		this.writerExecutor = writerExecutor;
+		this.pending = new ArrayBlockingQueue<>(maxPending);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		checkOpen();
+		writeHeader();
+		while (length > 0) {
+			// A full chunk is only encrypted when more follows, the last chunk is flagged
+			if (chunk != null && !chunk.hasRemaining()) {
+				submitChunk((byte) 0);
+			}
+			ensureChunk();
+			int copied = Math.min(length, chunk.remaining());
+			chunk.put(bytes, offset, copied);
+			offset += copied;
+			length -= copied;
+		}
+	}
+
+	@Override
+	public long transferFrom(FileChannel channel, MessageDigest digest, AtomicBoolean stopBoolean) throws IOException,
+		CopyInterruptedException {
+		checkOpen();
+		writeHeader();
+		long count = 0;
+		while (!stopBoolean.get()) {
+			if (chunk != null && !chunk.hasRemaining()) {
+				// Only encrypted when more follows, the last chunk is flagged
+				if (channel.position() >= channel.size()) {
+					break;
+				}
+				submitChunk((byte) 0);
+			}
+			ensureChunk();
+			int start = chunk.position();
+			int read = channel.read(chunk);
+			if (read < 0) {
+				break;
+			}
+			if (digest != null) {
+				ByteBuffer readPart = chunk.duplicate();
+				readPart.flip();
+				readPart.position(start);
+				digest.update(readPart);
+			}
+			count += read;
+		}
+		if (stopBoolean.get()) {
+			throw new CopyInterruptedException("The transfer got interrupted by the stopBoolean.");
+		}
+		return count;
+	}
+
+	/**
+	 * The encrypted chunks are written and flushed by the writer when it runs out of work, the chunk being written is
+	 * not complete and can not be flushed. This only reports a failure of the writer.
+	 */
+	@Override
+	public void flush() throws IOException {
+		checkOpen();
+	}
+
+	/**
+	 * Writes the last chunk and closes the {@link OutputStream} it writes to
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		boolean written = false;
+		try {
+			writeHeader();
+			ensureChunk();
+			submitChunk(ChunkedEncryption.LAST_CHUNK);
+			putPending(END);
+			waitForWriter();
+			checkOpen();
+			out.flush();
+			written = true;
+		} finally {
+			closed = true;
+			if (!written) {
+				stopWriter();
+			}
+			if (chunk != null) {
+				ChunkedEncryption.CHUNK_BUFFERS.release(chunk.array());
+				chunk = null;
+			}
+			out.close();
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		IOException writerFailure = failure;
+		if (writerFailure != null) {
+			throw new IOException("Could not write the encrypted file", writerFailure);
+		}
+	}
+
+	private void writeHeader() throws IOException {
+		if (!headerWritten) {
+			out.write(ChunkedEncryption.MAGIC);
+			out.writeInt(ChunkedEncryption.CHUNK_SIZE);
+			headerWritten = true;
+			// The writer uses the stream from here on
+			writer = writerExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					writeChunks();
+					return null;
+				}
+			});
+		}
+	}
+
+	private void submitChunk(final byte flags) throws IOException {
+		checkOpen();
+		final long index = chunkIndex++;
+		final ByteBuffer content = chunk;
+		content.flip();
+		// The chunk belongs to the encryption now, it returns it to the pool
+		chunk = null;
+		final ByteBuffer result = ByteBuffer.wrap(ChunkedEncryption.ENCRYPTED_BUFFERS.acquire(ChunkedEncryption.ENCRYPTED_CHUNK_SIZE));
+		putPending(executor.submit(new Callable<ByteBuffer>() {
+			@Override
+			public ByteBuffer call() throws Exception {
+				try {
+					cipher.encrypt(index, flags, content, result);
+					return result;
+				} catch (Exception e) {
+					ChunkedEncryption.ENCRYPTED_BUFFERS.release(result.array());
+					throw e;
+				} finally {
+					ChunkedEncryption.CHUNK_BUFFERS.release(content.array());
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Takes the buffer for the next chunk from the pool, when there is no chunk being filled
+	 */
+	private void ensureChunk() {
+		if (chunk == null) {
+			chunk = ByteBuffer.wrap(ChunkedEncryption.CHUNK_BUFFERS.acquire(ChunkedEncryption.CHUNK_SIZE));
+		}
+	}
+
+	/**
+	 * Adds a chunk for the writer, waiting when it is too far behind
+	 */
+	private void putPending(Future<ByteBuffer> future) throws IOException {
+		try {
+			pending.put(future);
+		} catch (InterruptedException e) {
+			discard(future);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while encrypting");
+		}
+	}
+
+	/**
+	 * Waits for a chunk which is not written and returns its buffer to the pool. Chunks are not cancelled, a cancelled
+	 * chunk would never return its buffers.
+	 */
+	private static void discard(Future<ByteBuffer> future) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					ChunkedEncryption.ENCRYPTED_BUFFERS.release(future.get().array());
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					// The encryption returned its buffers itself
+					return;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Runs on the writer thread: writes the chunks in order until the end, and flushes when no chunk is waiting. After a
+	 * failure the chunks are skipped, so the stream does not wait for room.
+	 */
+	private void writeChunks() {
+		while (true) {
+			Future<ByteBuffer> future;
+			try {
+				future = pending.take();
+			} catch (InterruptedException e) {
+				failure = new InterruptedIOException("Interrupted while writing");
+				return;
+			}
+			if (future == END) {
+				return;
+			}
+			if (failure != null) {
+				discard(future);
+				continue;
+			}
+			try {
+				writeChunk(future);
+				if (pending.isEmpty()) {
+					out.flush();
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * Waits until the writer has written all chunks
+	 */
+	private void waitForWriter() throws IOException {
+		try {
+			writer.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing");
+		} catch (ExecutionException e) {
+			throw new IOException("Could not write the encrypted file", e.getCause());
+		}
+	}
+
+	/**
+	 * Stops the writer after a failure of the stream, the chunks which are waiting are skipped
+	 */
+	private void stopWriter() {
+		if (failure == null) {
+			failure = new IOException("Stream closed");
+		}
+		if (writer != null && !writer.isDone()) {
+			discardPending();
+			pending.offer(END);
+			// The stream is closed after this, the writer may not use it anymore
+			boolean interrupted = false;
+			while (!writer.isDone()) {
+				try {
+					writer.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					break;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		// What the writer left behind when it stopped
+		discardPending();
+	}
+
+	private void discardPending() {
+		Future<ByteBuffer> future;
+		while ((future = pending.poll()) != null) {
+			if (future != END) {
+				discard(future);
+			}
+		}
+	}
+
+	private void writeChunk(Future<ByteBuffer> future) throws IOException {
+		try {
+			ByteBuffer result = future.get();
+			try {
+				out.write(result.array(), result.arrayOffset() + result.position(), result.remaining());
+			} finally {
+				ChunkedEncryption.ENCRYPTED_BUFFERS.release(result.array());
+			}
+		} catch (InterruptedException e) {
+			discard(future);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while encrypting");
+		} catch (ExecutionException e) {
+			throw new IOException("Could not encrypt a chunk", e.getCause());
+		}
+	}
+
+}
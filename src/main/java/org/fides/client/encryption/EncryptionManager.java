@@ -1,18 +1,30 @@
 package org.fides.client.encryption;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.StreamCorruptedException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -22,6 +34,8 @@ import org.fides.client.connector.ServerConnector;
 import org.fides.client.files.InvalidClientFileException;
 import org.fides.client.files.data.ClientFile;
 import org.fides.client.files.data.KeyFile;
+import org.fides.client.files.data.KeyFileSerializer;
+import org.fides.client.files.data.KeyFileUpdate;
 import org.fides.encryption.EncryptionUtils;
 import org.fides.encryption.KeyGenerator;
 
@@ -34,15 +48,48 @@ public class EncryptionManager {
 	/** Size of the salt used in generating the master key, it should NEVER change */
 	private static final int SALT_SIZE = 16; // 128 bit
 
+	/** Size of the unencrypted start of the keyfile, the rounds and the salt of the master key */
+	private static final int HEADER_SIZE = 4 + SALT_SIZE;
+
 	/**
 	 * Log for this class
 	 */
 	private static final Logger LOG = LogManager.getLogger(EncryptionManager.class);
 
+	/**
+	 * A {@link KeyFile} with at most this many entries is stored whole, a larger one in shards with a journal
+	 */
+	public static final int MAX_WHOLE_ENTRIES = 1024;
+
+	/**
+	 * A shard with more entries is split into shards for its subdirectories when it is compacted
+	 */
+	public static final int MAX_SHARD_ENTRIES = 1024;
+
+	/**
+	 * When the journal gets longer than this, it is compacted into the shards
+	 */
+	public static final int MAX_JOURNAL_SIZE = 4096;
+
 	private final ServerConnector connector;
 
+	/**
+	 * Loads the shards of a sharded {@link KeyFile} with the {@link ServerConnector}, it has to be connected
+	 */
+	private final KeyFile.ShardLoader shardLoader = new KeyFile.ShardLoader() {
+		@Override
+		public Collection<ClientFile> loadShard(ClientFile shard) throws IOException {
+			return requestShard(shard);
+		}
+	};
+
 	private String password;
 
+	/**
+	 * The cache of the keyfile, null when not cached
+	 */
+	private KeyFileCache keyFileCache;
+
 	/**
 	 * Constructor for EncryptionManager. Adds an encryption library to ensure these encryption methods are supported.
 	 * 
@@ -65,6 +112,28 @@ public class EncryptionManager {
 		this.password = password;
 	}
 
+	/**
+	 * Sets the cache used for the keyfile, it is shared with the sessions created after this
+	 * 
+	 * @param keyFileCache
+	 *            The {@link KeyFileCache}, null to not cache the keyfile
+	 */
+	public void setKeyFileCache(KeyFileCache keyFileCache) {
+		this.keyFileCache = keyFileCache;
+	}
+
+	/**
+	 * Creates a new {@link EncryptionManager} with the same password and its own {@link ServerConnector}, so it can be
+	 * used on another thread at the same time as this one.
+	 * 
+	 * @return The new {@link EncryptionManager}, its {@link ServerConnector} is not connected yet
+	 */
+	public EncryptionManager createSession() {
+		EncryptionManager session = new EncryptionManager(new ServerConnector(), password);
+		session.setKeyFileCache(keyFileCache);
+		return session;
+	}
+
 	/**
 	 * Requests the {@link KeyFile} from the {@link ServerConnector} and decrypts it
 	 * 
@@ -75,7 +144,12 @@ public class EncryptionManager {
 	}
 
 	/**
-	 * Requests the {@link KeyFile} from the {@link ServerConnector} and decrypts it
+	 * Requests the {@link KeyFile} from the {@link ServerConnector} and decrypts it. The shards of a sharded
+	 * {@link KeyFile} are requested when they are needed, while the {@link ServerConnector} is still connected.
+	 * <p>
+	 * With a {@link KeyFileCache} the decryption is skipped when the keyfile did not change since it was last requested,
+	 * and stored shards are not requested again. When the keyfile on the server is the last one this client uploaded,
+	 * only its start is read and the stored keyfile is used.
 	 * 
 	 * @param decryptionPassword
 	 *            for the decryption of the keyfile
@@ -89,20 +163,67 @@ public class EncryptionManager {
 			return null;
 		}
 
+		// Only the keyfile decrypted with the own password is cached
+		KeyFileCache cache = decryptionPassword.equals(password) ? keyFileCache : null;
+		String version = null;
+		byte[] encrypted = null;
 		DataInputStream din = null;
-		ObjectInputStream inDecrypted = null;
+		InputStream inDecrypted = null;
 		try {
-			din = new DataInputStream(in);
+			if (cache != null) {
+				byte[] header = new byte[HEADER_SIZE];
+				IOUtils.readFully(in, header);
+				encrypted = cache.getUploadedKeyFile();
+				if (encrypted != null && encrypted.length >= HEADER_SIZE && Arrays.equals(header, Arrays.copyOf(encrypted, HEADER_SIZE))) {
+					// The salt is only used by this client, the keyfile on the server is its last upload
+					IOUtils.closeQuietly(in);
+					if (!connector.isReusable()) {
+						// The rest of the keyfile is left on the connection, the shards are requested on a new one
+						connector.connect();
+					}
+				} else {
+					// The keyfile is small, a large keyfile is sharded
+					ByteArrayOutputStream encryptedOut = new ByteArrayOutputStream();
+					encryptedOut.write(header);
+					IOUtils.copy(in, encryptedOut);
+					encrypted = encryptedOut.toByteArray();
+					cache.putKeyFile(encrypted, false);
+				}
+				version = KeyFileCache.versionOf(encrypted);
+				byte[] content = cache.getContent(version);
+				if (content != null) {
+					return KeyFileSerializer.read(new ByteArrayInputStream(content), shardLoader);
+				}
+				din = new DataInputStream(new ByteArrayInputStream(encrypted));
+			} else {
+				din = new DataInputStream(in);
+			}
 
 			byte[] saltBytes = new byte[SALT_SIZE];
 			int pbkdf2Rounds = din.readInt();
 			din.read(saltBytes, 0, SALT_SIZE);
 
-			Key key = KeyGenerator.generateKey(decryptionPassword, saltBytes, pbkdf2Rounds, EncryptionUtils.KEY_SIZE);
+			Key key = MasterKeyCache.getInstance().getKey(decryptionPassword, saltBytes, pbkdf2Rounds);
 
-			inDecrypted = new ObjectInputStream(EncryptionUtils.getDecryptionStream(din, key));
-			KeyFile keyFile;
-			keyFile = (KeyFile) inDecrypted.readObject();
+			inDecrypted = EncryptionUtils.getDecryptionStream(din, key);
+			if (cache == null) {
+				return KeyFileSerializer.read(inDecrypted, shardLoader);
+			}
+
+			// The decrypted content is kept while it is read, so a wrong password is still noticed by the reading
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			InputStream teeIn = new TeeInputStream(inDecrypted, content);
+			KeyFile keyFile = KeyFileSerializer.read(teeIn, shardLoader);
+			IOUtils.copy(teeIn, new NullOutputStream());
+			cache.putContent(version, content.toByteArray());
+			Map<String, ClientFile> shards = keyFile.getShards();
+			List<String> shardLocations = new ArrayList<>();
+			if (shards != null) {
+				for (ClientFile shard : shards.values()) {
+					shardLocations.add(shard.getLocation());
+				}
+			}
+			cache.retainShards(shardLocations);
 			return keyFile;
 		} catch (ClassNotFoundException | StreamCorruptedException e) {
 			throw new InvalidPasswordException();
@@ -116,7 +237,54 @@ public class EncryptionManager {
 	}
 
 	/**
-	 * Encrypts the {@link KeyFile} and sends it to the {@link ServerConnector}
+	 * Requests a shard of a sharded {@link KeyFile} and decrypts it
+	 * 
+	 * @param shard
+	 *            The {@link ClientFile} with the location and key of the shard
+	 * @return The {@link ClientFile}s in the shard
+	 * @throws IOException
+	 *             When the shard could not be read
+	 */
+	private Collection<ClientFile> requestShard(ClientFile shard) throws IOException {
+		InputStream in = null;
+		KeyFileCache cache = keyFileCache;
+		if (cache != null && shard.getKey() != null) {
+			byte[] encrypted = cache.getShard(shard.getLocation());
+			if (encrypted == null) {
+				in = connector.requestFile(shard.getLocation());
+				if (in != null) {
+					try {
+						encrypted = IOUtils.toByteArray(in);
+					} finally {
+						IOUtils.closeQuietly(in);
+					}
+					cache.putShard(shard.getLocation(), encrypted);
+				}
+			}
+			in = encrypted == null ? null : new ByteArrayInputStream(encrypted);
+		} else {
+			in = connector.requestFile(shard.getLocation());
+		}
+		if (in == null || shard.getKey() == null) {
+			IOUtils.closeQuietly(in);
+			throw new IOException("Server connector does not give the keyfile shard " + shard.getLocation());
+		}
+
+		InputStream inDecrypted = null;
+		try {
+			inDecrypted = ChunkedEncryption.getDecryptionStream(in, shard.getKey());
+			return KeyFileSerializer.read(inDecrypted).getAllClientFiles().values();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		} finally {
+			IOUtils.closeQuietly(inDecrypted);
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Encrypts the whole {@link KeyFile} and sends it to the {@link ServerConnector}. A large or sharded
+	 * {@link KeyFile} is compacted, its changed shards are uploaded again and the journal is emptied.
 	 * 
 	 * @param keyFile
 	 *            The {@link KeyFile} to encrypt and send
@@ -125,26 +293,198 @@ public class EncryptionManager {
 		if (keyFile == null) {
 			throw new NullPointerException("No KeyFile");
 		}
+		synchronized (keyFile) {
+			if (keyFile.getShards() == null && keyFile.getAllClientFiles().size() <= MAX_WHOLE_ENTRIES) {
+				boolean successful = writeKeyFile(new KeyFileWriter() {
+					@Override
+					public void write(OutputStream out) throws IOException {
+						KeyFileSerializer.write(keyFile, out);
+					}
+				});
+				if (successful) {
+					keyFile.setStored(null, Collections.<KeyFileUpdate> emptyList(), null);
+				}
+				return successful;
+			}
+			return compact(keyFile, keyFile.getJournal());
+		}
+	}
+
+	/**
+	 * Sends changes of a {@link KeyFile} to the {@link ServerConnector}. When the {@link KeyFile} is sharded only the
+	 * journal with the changes is uploaded, otherwise or when the journal gets too long the whole {@link KeyFile} is.
+	 * 
+	 * @param keyFile
+	 *            The {@link KeyFile} to encrypt and send, the changes are already applied to it
+	 * @param updates
+	 *            The changes since the {@link KeyFile} was requested or updated
+	 * @return true if successful
+	 */
+	public boolean updateKeyFile(KeyFile keyFile, List<KeyFileUpdate> updates) {
+		if (keyFile == null) {
+			throw new NullPointerException("No KeyFile");
+		}
+		// Shards can not be loaded on the same connection while this is uploaded
+		synchronized (keyFile) {
+			Map<String, ClientFile> shards = keyFile.getShards();
+			List<KeyFileUpdate> journal = keyFile.getJournal();
+			journal.addAll(updates);
+			if (shards == null) {
+				return updateKeyFile(keyFile);
+			} else if (journal.size() > MAX_JOURNAL_SIZE) {
+				return compact(keyFile, journal);
+			}
+			if (writeSharded(shards, journal)) {
+				keyFile.setStored(shards, journal, shardLoader);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Uploads the shards changed by the journal, or all shards when the {@link KeyFile} is not sharded yet, and then
+	 * the {@link KeyFile} referring to them with an empty journal. The replaced shards are removed. A changed shard with
+	 * more than {@link #MAX_SHARD_ENTRIES} entries is split into shards for its subdirectories.
+	 * 
+	 * @param keyFile
+	 *            The {@link KeyFile} to compact
+	 * @param journal
+	 *            The changes since the shards were uploaded
+	 * @return true if successful
+	 */
+	private boolean compact(KeyFile keyFile, List<KeyFileUpdate> journal) {
+		Map<String, ClientFile> oldShards = keyFile.getShards();
+		Set<String> changedShards = new HashSet<>();
+		if (oldShards == null) {
+			// All files start in the root shard, which is split
+			changedShards.add("");
+		} else {
+			for (KeyFileUpdate update : journal) {
+				changedShards.add(keyFile.shardOf(update.getName()));
+			}
+		}
+
+		Map<String, List<ClientFile>> shardFiles;
+		try {
+			shardFiles = keyFile.getClientFilesByShard(changedShards, MAX_SHARD_ENTRIES);
+		} catch (IllegalStateException e) {
+			LOG.error(e);
+			return false;
+		}
+
+		// Shards which are uploaded but not used because of a failure are removed as ghost files
+		Map<String, ClientFile> newShards = oldShards == null ? new HashMap<String, ClientFile>() : new HashMap<>(oldShards);
+		List<ClientFile> replacedShards = new ArrayList<>();
+		for (String shardName : changedShards) {
+			ClientFile oldShard = newShards.remove(shardName);
+			if (oldShard != null) {
+				replacedShards.add(oldShard);
+			}
+		}
+		// The changed shards, and the shards split from them
+		for (Map.Entry<String, List<ClientFile>> files : shardFiles.entrySet()) {
+			ClientFile shard = uploadShard(files.getValue());
+			if (shard == null) {
+				return false;
+			}
+			newShards.put(files.getKey(), shard);
+		}
+
+		List<KeyFileUpdate> emptyJournal = Collections.emptyList();
+		if (!writeSharded(newShards, emptyJournal)) {
+			return false;
+		}
+		keyFile.setStored(newShards, emptyJournal, shardLoader);
+		for (ClientFile replacedShard : replacedShards) {
+			connector.removeFile(replacedShard.getLocation());
+		}
+		return true;
+	}
+
+	/**
+	 * Uploads a shard, encrypted with its own key like other files
+	 * 
+	 * @param files
+	 *            The {@link ClientFile}s in the shard
+	 * @return The {@link ClientFile} with the location and key of the shard, null if not successful
+	 */
+	private ClientFile uploadShard(Collection<ClientFile> files) {
+		EncryptedOutputStreamData outData = uploadFile();
+		if (outData == null) {
+			return null;
+		}
+		boolean uploadSuccessful = false;
+		OutputStream out = outData.getOutputStream();
+		try {
+			KeyFileSerializer.write(files, out);
+			out.close();
+			uploadSuccessful = true;
+		} catch (IOException e) {
+			LOG.error(e);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+		if (connector.confirmUpload(uploadSuccessful)) {
+			return new ClientFile(null, outData.getLocation(), outData.getKey(), null);
+		}
+		return null;
+	}
+
+	/**
+	 * Encrypts a sharded {@link KeyFile} and sends it to the {@link ServerConnector} as the keyfile
+	 * 
+	 * @param shards
+	 *            The {@link ClientFile}s with the location and key of the shards
+	 * @param journal
+	 *            The changes after the shards were uploaded
+	 * @return true if successful
+	 */
+	private boolean writeSharded(final Map<String, ClientFile> shards, final List<KeyFileUpdate> journal) {
+		return writeKeyFile(new KeyFileWriter() {
+			@Override
+			public void write(OutputStream out) throws IOException {
+				KeyFileSerializer.writeSharded(shards, journal, out);
+			}
+		});
+	}
+
+	/**
+	 * Encrypts the content written by a {@link KeyFileWriter} with the password and sends it to the
+	 * {@link ServerConnector} as the keyfile
+	 * 
+	 * @param writer
+	 *            The {@link KeyFileWriter} writing the content
+	 * @return true if successful
+	 */
+	private boolean writeKeyFile(KeyFileWriter writer) {
 		boolean successful = false;
+		KeyFileCache cache = keyFileCache;
+		if (cache != null) {
+			// Until the upload is confirmed it is not known which keyfile the server has
+			cache.removeKeyFile();
+		}
 		OutputStream out = connector.updateKeyFile();
 		if (out == null) {
 			LOG.error("ServerConnector does not provide an OutputStream for updating keyfile");
 		} else {
-			DataOutputStream dout = new DataOutputStream(out);
+			// The uploaded keyfile is kept, so requesting it again only has to read its start
+			ByteArrayOutputStream uploaded = cache == null ? null : new ByteArrayOutputStream();
+			DataOutputStream dout = new DataOutputStream(cache == null ? out : new TeeOutputStream(out, uploaded));
 			OutputStream outEncrypted = null;
 			boolean uploadeSuccessful = false;
 			try {
-				byte[] saltBytes = KeyGenerator.getSalt(SALT_SIZE);
+				// The salt is reused for a while, so the master key does not have to be derived for every write
 				int pbkdf2Rounds = KeyGenerator.getRounds();
+				byte[] saltBytes = MasterKeyCache.getInstance().getWriteSalt(password, pbkdf2Rounds, SALT_SIZE);
 
-				Key key = KeyGenerator.generateKey(password, saltBytes, pbkdf2Rounds, EncryptionUtils.KEY_SIZE);
+				Key key = MasterKeyCache.getInstance().getKey(password, saltBytes, pbkdf2Rounds);
 
 				dout.writeInt(pbkdf2Rounds);
 				dout.write(saltBytes, 0, SALT_SIZE);
 
 				outEncrypted = EncryptionUtils.getEncryptionStream(dout, key);
-				ObjectOutputStream objectOut = new ObjectOutputStream(outEncrypted);
-				objectOut.writeObject(keyFile);
+				writer.write(outEncrypted);
 				outEncrypted.flush();
 				dout.flush();
 				out.flush();
@@ -158,10 +498,20 @@ public class EncryptionManager {
 				IOUtils.closeQuietly(out);
 			}
 			successful = connector.confirmUpload(uploadeSuccessful);
+			if (successful && cache != null) {
+				cache.putKeyFile(uploaded.toByteArray(), true);
+			}
 		}
 		return successful;
 	}
 
+	/**
+	 * Writes the content of the keyfile
+	 */
+	private interface KeyFileWriter {
+		void write(OutputStream out) throws IOException;
+	}
+
 	/**
 	 * Decrypts an {@link InputStream} from the {@link ServerConnector} of a requested file
 	 * 
@@ -180,7 +530,7 @@ public class EncryptionManager {
 		InputStream in = connector.requestFile(clientFile.getLocation());
 
 		Key key = clientFile.getKey();
-		return EncryptionUtils.getDecryptionStream(in, key);
+		return ChunkedEncryption.getDecryptionStream(in, key);
 	}
 
 	/**
@@ -202,7 +552,7 @@ public class EncryptionManager {
 			return null;
 		}
 
-		OutputStream encryptOut = EncryptionUtils.getEncryptionStream(outStreamData.getOutputStream(), key);
+		OutputStream encryptOut = ChunkedEncryption.getEncryptionStream(outStreamData.getOutputStream(), key);
 		return new EncryptedOutputStreamData(encryptOut, outStreamData.getLocation(), key);
 	}
 
@@ -227,7 +577,7 @@ public class EncryptionManager {
 			return null;
 		}
 
-		return EncryptionUtils.getEncryptionStream(out, clientFile.getKey());
+		return ChunkedEncryption.getEncryptionStream(out, clientFile.getKey());
 	}
 
 	/**
@@ -0,0 +1,305 @@
+package org.fides.client.encryption;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.fides.client.files.HashAlgorithm;
+import org.fides.tools.HashUtils;
+
+/**
+ * Keeps the last decrypted keyfile so an unchanged keyfile does not have to be decrypted and loaded again. The version
+ * of the keyfile is the digest of its encrypted content, the same encrypted content always has the same decrypted
+ * content.
+ * <p>
+ * The encrypted keyfile is stored on disk with its version, and whether this client uploaded it. The server has no
+ * request for the version of the keyfile, so the start of the keyfile stands in for it: the rounds and salt of the
+ * master key. The salt is random for every client, so a keyfile on the server which starts like the last keyfile this
+ * client uploaded is that upload, and the rest of it does not have to be downloaded. The stored keyfile is removed
+ * while an upload is in progress, an upload of which the outcome is unknown is never taken for the last one.
+ * <p>
+ * The decrypted content of the keyfile is only kept in memory. The shards of a sharded keyfile are stored on disk as
+ * they are on the server, encrypted with their own key which is only in the keyfile. A shard never changes at a
+ * location, a changed shard is uploaded to a new location, so a stored shard is valid as long as the keyfile refers to
+ * its location.
+ */
+public class KeyFileCache {
+	/**
+	 * Log for this class
+	 */
+	private static final Logger LOG = LogManager.getLogger(KeyFileCache.class);
+
+	private static final String SHARD_EXTENSION = ".shard";
+
+	private static final String KEY_FILE_NAME = "keyfile";
+
+	private static final String VERSION_FILE_NAME = "keyfile.version";
+
+	private static final String PROPERTY_VERSION = "version";
+
+	private static final String PROPERTY_UPLOADED = "uploaded";
+
+	private final File directory;
+
+	private String version;
+
+	private byte[] content;
+
+	/**
+	 * The stored encrypted keyfile, null when it is not read from disk yet or not stored
+	 */
+	private byte[] encryptedKeyFile;
+
+	private String encryptedVersion;
+
+	private boolean uploaded;
+
+	private boolean keyFileRead = false;
+
+	/**
+	 * Constructor for KeyFileCache
+	 *
+	 * @param directory
+	 *            The directory to store the shards in, it is created when needed
+	 */
+	public KeyFileCache(File directory) {
+		if (directory == null) {
+			throw new NullPointerException();
+		}
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the version of an encrypted keyfile
+	 *
+	 * @param encrypted
+	 *            The encrypted keyfile as it is on the server
+	 * @return The version
+	 */
+	public static String versionOf(byte[] encrypted) {
+		MessageDigest digest = HashAlgorithm.SHA256.createDigest();
+		return HashAlgorithm.SHA256.format(digest.digest(encrypted));
+	}
+
+	/**
+	 * Returns the decrypted content of a keyfile if it is cached
+	 *
+	 * @param keyFileVersion
+	 *            The version of the keyfile
+	 * @return The decrypted content, null if another version is cached
+	 */
+	public synchronized byte[] getContent(String keyFileVersion) {
+		if (keyFileVersion.equals(version)) {
+			return content;
+		}
+		return null;
+	}
+
+	/**
+	 * Caches the decrypted content of a keyfile, replacing the cached version
+	 *
+	 * @param keyFileVersion
+	 *            The version of the keyfile
+	 * @param decrypted
+	 *            The decrypted content
+	 */
+	public synchronized void putContent(String keyFileVersion, byte[] decrypted) {
+		version = keyFileVersion;
+		content = decrypted;
+	}
+
+	/**
+	 * Returns the stored encrypted keyfile if this client uploaded it, it is read from disk the first time
+	 *
+	 * @return The encrypted keyfile, null if none is stored or another client uploaded it
+	 */
+	public synchronized byte[] getUploadedKeyFile() {
+		if (!keyFileRead) {
+			readKeyFile();
+			keyFileRead = true;
+		}
+		return uploaded ? encryptedKeyFile : null;
+	}
+
+	/**
+	 * Stores an encrypted keyfile with its version, replacing the stored keyfile. Failing to store it is logged, the
+	 * keyfile is then only kept in memory.
+	 *
+	 * @param encrypted
+	 *            The encrypted keyfile as it is on the server
+	 * @param uploadedByClient
+	 *            Whether this client uploaded it
+	 */
+	public synchronized void putKeyFile(byte[] encrypted, boolean uploadedByClient) {
+		String keyFileVersion = versionOf(encrypted);
+		if (keyFileVersion.equals(encryptedVersion) && uploadedByClient == uploaded) {
+			return;
+		}
+		encryptedKeyFile = encrypted;
+		encryptedVersion = keyFileVersion;
+		uploaded = uploadedByClient;
+		keyFileRead = true;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			LOG.error("Keyfile cache directory can not be created");
+			return;
+		}
+		Properties properties = new Properties();
+		properties.setProperty(PROPERTY_VERSION, keyFileVersion);
+		properties.setProperty(PROPERTY_UPLOADED, Boolean.toString(uploadedByClient));
+		// The version is written last, a keyfile without a matching version is ignored
+		new File(directory, VERSION_FILE_NAME).delete();
+		if (writeFile(KEY_FILE_NAME, encrypted)) {
+			ByteArrayOutputStream versionOut = new ByteArrayOutputStream();
+			try {
+				properties.store(versionOut, null);
+			} catch (IOException e) {
+				LOG.error(e);
+				return;
+			}
+			writeFile(VERSION_FILE_NAME, versionOut.toByteArray());
+		}
+	}
+
+	/**
+	 * Removes the stored keyfile, before an upload of which the outcome is not known yet
+	 */
+	public synchronized void removeKeyFile() {
+		encryptedKeyFile = null;
+		encryptedVersion = null;
+		uploaded = false;
+		keyFileRead = true;
+		File versionFile = new File(directory, VERSION_FILE_NAME);
+		if (versionFile.exists() && !versionFile.delete()) {
+			LOG.error("Could not remove the version of the cached keyfile");
+		}
+		new File(directory, KEY_FILE_NAME).delete();
+	}
+
+	/**
+	 * Reads the stored keyfile from disk, it is ignored when it does not match its version
+	 */
+	private void readKeyFile() {
+		File versionFile = new File(directory, VERSION_FILE_NAME);
+		File keyFile = new File(directory, KEY_FILE_NAME);
+		if (!versionFile.isFile() || !keyFile.isFile()) {
+			return;
+		}
+		try (InputStream in = new FileInputStream(versionFile)) {
+			Properties properties = new Properties();
+			properties.load(in);
+			byte[] encrypted = Files.readAllBytes(keyFile.toPath());
+			String keyFileVersion = versionOf(encrypted);
+			if (keyFileVersion.equals(properties.getProperty(PROPERTY_VERSION))) {
+				encryptedKeyFile = encrypted;
+				encryptedVersion = keyFileVersion;
+				uploaded = Boolean.parseBoolean(properties.getProperty(PROPERTY_UPLOADED));
+			} else {
+				LOG.warn("The cached keyfile does not match its version");
+			}
+		} catch (IOException e) {
+			LOG.error(e);
+		}
+	}
+
+	/**
+	 * Writes a file in the cache directory through a temporary file
+	 *
+	 * @param name
+	 *            The name of the file
+	 * @param bytes
+	 *            The content
+	 * @return true if successful
+	 */
+	private boolean writeFile(String name, byte[] bytes) {
+		File file = new File(directory, name);
+		File tempFile = new File(file.getPath() + ".tmp");
+		try {
+			Files.write(tempFile.toPath(), bytes);
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		} catch (IOException e) {
+			LOG.error(e);
+			tempFile.delete();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a stored shard
+	 *
+	 * @param location
+	 *            The location of the shard on the server
+	 * @return The encrypted shard, null if not stored
+	 */
+	public byte[] getShard(String location) {
+		File file = shardFile(location);
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			return Files.readAllBytes(file.toPath());
+		} catch (IOException e) {
+			LOG.error(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a shard, failing to store it is logged and otherwise ignored
+	 *
+	 * @param location
+	 *            The location of the shard on the server
+	 * @param encrypted
+	 *            The encrypted shard
+	 */
+	public void putShard(String location, byte[] encrypted) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			LOG.error("Keyfile cache directory can not be created");
+			return;
+		}
+		writeFile(shardFile(location).getName(), encrypted);
+	}
+
+	/**
+	 * Removes the stored shards which are not at one of the given locations anymore
+	 *
+	 * @param locations
+	 *            The locations of the shards of the current keyfile
+	 */
+	public void retainShards(Collection<String> locations) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Set<String> names = new HashSet<>();
+		for (String location : locations) {
+			names.add(shardFile(location).getName());
+		}
+		for (File file : files) {
+			// The stored keyfile is kept
+			if (file.getName().endsWith(SHARD_EXTENSION) && !names.contains(file.getName()) && !file.delete()) {
+				LOG.warn("Could not remove cached shard " + file.getName());
+			}
+		}
+	}
+
+	private File shardFile(String location) {
+		// The location is chosen by the server, only its digest is used as a file name
+		MessageDigest digest = HashAlgorithm.SHA256.createDigest();
+		String name = HashUtils.toHex(digest.digest(location.getBytes(StandardCharsets.UTF_8)));
+		return new File(directory, name + SHARD_EXTENSION);
+	}
+
+}
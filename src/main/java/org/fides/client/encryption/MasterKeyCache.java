@@ -0,0 +1,139 @@
+package org.fides.client.encryption;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.fides.client.files.HashAlgorithm;
+import org.fides.encryption.EncryptionUtils;
+import org.fides.encryption.KeyGenerator;
+import org.fides.tools.HashUtils;
+
+/**
+ * Keeps the master keys derived from the password, so the slow key derivation is done once for every salt instead of
+ * for every time the keyfile is read or written. The salt for writing the keyfile is reused for a limited amount of
+ * writes and a limited time, after that a new salt is generated.
+ */
+public final class MasterKeyCache {
+	/**
+	 * The amount of derived keys kept, the least recently used is removed first
+	 */
+	private static final int MAX_KEYS = 8;
+
+	/**
+	 * The amount of times a salt is used for writing the keyfile
+	 */
+	private static final int MAX_SALT_USES = 100;
+
+	/**
+	 * The time in milliseconds a salt is used for writing the keyfile
+	 */
+	private static final long MAX_SALT_AGE = 60 * 60 * 1000;
+
+	private static MasterKeyCache instance;
+
+	private final int maxSaltUses;
+
+	private final long maxSaltAge;
+
+	/**
+	 * The derived keys by the hash of the password, the salt and the rounds
+	 */
+	private final Map<String, Key> keys = new LinkedHashMap<String, Key>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Key> eldest) {
+			return size() > MAX_KEYS;
+		}
+	};
+
+	private String saltPassword;
+
+	private byte[] salt;
+
+	private int saltRounds;
+
+	private int saltUses;
+
+	private long saltCreated;
+
+	/**
+	 * Constructor for MasterKeyCache
+	 *
+	 * @param maxSaltUses
+	 *            The amount of times a salt is used for writing
+	 * @param maxSaltAge
+	 *            The time in milliseconds a salt is used for writing
+	 */
+	MasterKeyCache(int maxSaltUses, long maxSaltAge) {
+		this.maxSaltUses = maxSaltUses;
+		this.maxSaltAge = maxSaltAge;
+	}
+
+	/**
+	 * Returns the master key for a password and salt, it is only derived when not cached
+	 *
+	 * @param password
+	 *            The password
+	 * @param saltBytes
+	 *            The salt
+	 * @param rounds
+	 *            The amount of rounds of the key derivation
+	 * @return The master key
+	 */
+	public synchronized Key getKey(String password, byte[] saltBytes, int rounds) {
+		// The password itself is not kept in the cache
+		MessageDigest digest = HashAlgorithm.SHA256.createDigest();
+		String id = HashUtils.toHex(digest.digest(password.getBytes(StandardCharsets.UTF_8))) + ':' + HashUtils.toHex(saltBytes) + ':'
+			+ rounds;
+		Key key = keys.get(id);
+		if (key == null) {
+			key = KeyGenerator.generateKey(password, saltBytes, rounds, EncryptionUtils.KEY_SIZE);
+			keys.put(id, key);
+		}
+		return key;
+	}
+
+	/**
+	 * Returns the salt to write the keyfile with. The previous salt is reused unless it was used too often, is too
+	 * old or belongs to another password or amount of rounds.
+	 *
+	 * @param password
+	 *            The password the keyfile is written with
+	 * @param rounds
+	 *            The amount of rounds of the key derivation
+	 * @param size
+	 *            The size of the salt
+	 * @return A copy of the salt
+	 */
+	public synchronized byte[] getWriteSalt(String password, int rounds, int size) {
+		long now = System.currentTimeMillis();
+		if (salt == null || salt.length != size || saltRounds != rounds || !password.equals(saltPassword) || saltUses >= maxSaltUses
+			|| now - saltCreated >= maxSaltAge) {
+			salt = KeyGenerator.getSalt(size);
+			saltPassword = password;
+			saltRounds = rounds;
+			saltUses = 0;
+			saltCreated = now;
+		}
+		saltUses++;
+		return Arrays.copyOf(salt, salt.length);
+	}
+
+	/**
+	 * Returns the instance of {@link MasterKeyCache}
+	 *
+	 * @return The instance
+	 */
+	public static synchronized MasterKeyCache getInstance() {
+		if (instance == null) {
+			instance = new MasterKeyCache(MAX_SALT_USES, MAX_SALT_AGE);
+		}
+		return instance;
+	}
+
+}
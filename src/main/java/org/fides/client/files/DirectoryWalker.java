@@ -0,0 +1,448 @@
+package org.fides.client.files;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Walks a directory tree in parallel on a shared fork-join pool. Every directory is read with a {@link DirectoryStream}
+ * and the {@link BasicFileAttributes} of its entries are read in the same pass, so the visitors do not have to look at
+ * the files again to know what they are. The subdirectories are walked as tasks of their own, several directories are
+ * read at the same time.
+ * <p>
+ * A walk which has to visit the directories in its own order, like a compare, lists one directory at a time with
+ * {@link #list(Path, Listing)}. The entries are sorted by name, their attributes are read in parallel on the same pool.
+ * <p>
+ * A link is walked as what it links to, except a link to a directory above it, which would make the walk endless.
+ */
+public final class DirectoryWalker {
+	/**
+	 * Log for this class
+	 */
+	private static final Logger LOG = LogManager.getLogger(DirectoryWalker.class);
+
+	/**
+	 * The least amount of walking threads, reading directories waits on the disk more than on the processor
+	 */
+	private static final int MIN_THREADS = 4;
+
+	/**
+	 * The amount of entries of a listing of which one task reads the attributes
+	 */
+	private static final int ATTRIBUTES_PER_TASK = 64;
+
+	private static ForkJoinPool pool;
+
+	/**
+	 * Visits the directories of a walk, it is called from several threads at the same time
+	 */
+	public interface Visitor {
+		/**
+		 * Visits a directory with the files directly in it
+		 *
+		 * @param directory
+		 *            The directory
+		 * @param attributes
+		 *            The {@link BasicFileAttributes} of the directory
+		 * @param files
+		 *            The files in the directory mapped to their {@link BasicFileAttributes}
+		 * @return true to walk the subdirectories, false to stop walking below this directory
+		 */
+		boolean visitDirectory(Path directory, BasicFileAttributes attributes, Map<Path, BasicFileAttributes> files);
+	}
+
+	private DirectoryWalker() {
+	}
+
+	/**
+	 * Walks a directory tree and waits until it is done
+	 *
+	 * @param root
+	 *            The directory to walk
+	 * @param visitor
+	 *            The {@link Visitor} of the directories
+	 */
+	public static void walk(Path root, Visitor visitor) {
+		start(root, visitor).join();
+	}
+
+	/**
+	 * Starts walking a directory tree in the background
+	 *
+	 * @param root
+	 *            The directory to walk
+	 * @param visitor
+	 *            The {@link Visitor} of the directories
+	 * @return The {@link ForkJoinTask} of the walk, it is done when all directories are visited
+	 */
+	public static ForkJoinTask<Void> start(Path root, Visitor visitor) {
+		BasicFileAttributes attributes = readAttributes(root);
+		if (attributes == null || !attributes.isDirectory()) {
+			// Nothing to walk
+			return getPool().submit(ForkJoinTask.adapt(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}, (Void) null));
+		}
+		return getPool().submit(new WalkTask(root, attributes, visitor, null));
+	}
+
+	/**
+	 * Lists a directory with its entries sorted by name. The attributes of the entries are read in parallel on the
+	 * pool of the walks, a link is read as what it links to. A link to the directory itself or to one of the
+	 * directories of the listings above it is left out.
+	 *
+	 * @param directory
+	 *            The directory to list
+	 * @param parent
+	 *            The {@link Listing} of the directory above, null for the first directory
+	 * @return The {@link Listing}, null if the directory could not be read
+	 */
+	public static Listing list(Path directory, Listing parent) {
+		BasicFileAttributes attributes = readAttributes(directory);
+		if (attributes == null || !attributes.isDirectory()) {
+			return null;
+		}
+		List<Path> entries = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path entry : stream) {
+				entries.add(entry);
+			}
+		} catch (IOException e) {
+			LOG.error("Could not read directory " + directory, e);
+			return null;
+		}
+		Collections.sort(entries, new Comparator<Path>() {
+			@Override
+			public int compare(Path first, Path second) {
+				return first.getFileName().toString().compareTo(second.getFileName().toString());
+			}
+		});
+
+		Listing listing = new Listing(directory, identity(directory, attributes), parent, entries);
+		if (entries.size() <= ATTRIBUTES_PER_TASK) {
+			listing.readRange(0, entries.size());
+		} else {
+			getPool().invoke(new AttributesTask(listing, 0, entries.size()));
+		}
+		listing.removeUnread();
+		return listing;
+	}
+
+	/**
+	 * Reads the attributes of a path
+	 *
+	 * @param path
+	 *            The path
+	 * @param options
+	 *            The {@link LinkOption}s, links are followed without them
+	 * @return The {@link BasicFileAttributes}, null if they could not be read
+	 */
+	private static BasicFileAttributes readAttributes(Path path, LinkOption... options) {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class, options);
+		} catch (IOException e) {
+			// It was removed while walking
+			LOG.debug(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns what identifies the directory a path leads to, the same for every link to it
+	 *
+	 * @param path
+	 *            The path of the directory
+	 * @param attributes
+	 *            The {@link BasicFileAttributes} of the directory, links followed
+	 * @return The file key of the attributes, or the real path when the file system has no file keys
+	 */
+	private static Object identity(Path path, BasicFileAttributes attributes) {
+		if (attributes.fileKey() != null) {
+			return attributes.fileKey();
+		}
+		try {
+			return path.toRealPath();
+		} catch (IOException e) {
+			LOG.debug(e);
+			return path.toAbsolutePath().normalize();
+		}
+	}
+
+	/**
+	 * Returns the shared pool of the walks, it is created when the first walk starts
+	 *
+	 * @return The {@link ForkJoinPool}
+	 */
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			int threads = Math.max(MIN_THREADS, Runtime.getRuntime().availableProcessors());
+			pool = new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public ForkJoinWorkerThread newThread(ForkJoinPool forkJoinPool) {
+					ForkJoinWorkerThread thread = new ForkJoinWorkerThread(forkJoinPool) {
+					};
+					thread.setName("Walk Thread " + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, null, false);
+		}
+		return pool;
+	}
+
+	/**
+	 * Reads one directory, visits it and walks its subdirectories as subtasks
+	 */
+	private static final class WalkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path directory;
+
+		private final BasicFileAttributes attributes;
+
+		private final Visitor visitor;
+
+		/**
+		 * The task of the directory above, null for the root
+		 */
+		private final WalkTask parent;
+
+		private WalkTask(Path directory, BasicFileAttributes attributes, Visitor visitor, WalkTask parent) {
+			this.directory = directory;
+			this.attributes = attributes;
+			this.visitor = visitor;
+			this.parent = parent;
+		}
+
+		@Override
+		protected void compute() {
+			Map<Path, BasicFileAttributes> files = new LinkedHashMap<>();
+			List<WalkTask> subdirectories = new ArrayList<>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				for (Path entry : stream) {
+					BasicFileAttributes entryAttributes = readAttributes(entry, LinkOption.NOFOLLOW_LINKS);
+					if (entryAttributes != null && entryAttributes.isSymbolicLink()) {
+						entryAttributes = readAttributes(entry);
+						if (entryAttributes != null && entryAttributes.isDirectory() && isAbove(entry, entryAttributes)) {
+							LOG.debug("Not following the link to a directory above it: " + entry);
+							continue;
+						}
+					}
+					if (entryAttributes == null) {
+						continue;
+					}
+					if (entryAttributes.isDirectory()) {
+						subdirectories.add(new WalkTask(entry, entryAttributes, visitor, this));
+					} else {
+						files.put(entry, entryAttributes);
+					}
+				}
+			} catch (IOException e) {
+				LOG.error("Could not read directory " + directory, e);
+				return;
+			}
+			if (visitor.visitDirectory(directory, attributes, files)) {
+				invokeAll(subdirectories);
+			}
+		}
+
+		/**
+		 * Whether a linked directory is this directory or one above it
+		 *
+		 * @param link
+		 *            The link
+		 * @param linkAttributes
+		 *            The {@link BasicFileAttributes} of the directory it links to
+		 * @return true if walking it would never end
+		 */
+		private boolean isAbove(Path link, BasicFileAttributes linkAttributes) {
+			Object linked = identity(link, linkAttributes);
+			for (WalkTask task = this; task != null; task = task.parent) {
+				if (linked.equals(identity(task.directory, task.attributes))) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * A directory with its entries sorted by name and the {@link BasicFileAttributes} of every entry. Entries which
+	 * were removed while listing and links to a directory above are left out.
+	 */
+	public static final class Listing {
+		private final Path directory;
+
+		/**
+		 * What identifies the directory, to find links to it below
+		 */
+		private final Object identity;
+
+		/**
+		 * The listing of the directory above, null for the first directory
+		 */
+		private final Listing parent;
+
+		private Path[] entries;
+
+		private BasicFileAttributes[] attributes;
+
+		private Listing(Path directory, Object identity, Listing parent, List<Path> entries) {
+			this.directory = directory;
+			this.identity = identity;
+			this.parent = parent;
+			this.entries = entries.toArray(new Path[entries.size()]);
+			this.attributes = new BasicFileAttributes[this.entries.length];
+		}
+
+		/**
+		 * Returns the listed directory
+		 *
+		 * @return The directory
+		 */
+		public Path getDirectory() {
+			return directory;
+		}
+
+		/**
+		 * Returns the amount of entries
+		 *
+		 * @return The amount of entries
+		 */
+		public int size() {
+			return entries.length;
+		}
+
+		/**
+		 * Returns an entry
+		 *
+		 * @param index
+		 *            The index of the entry, in the order of the names
+		 * @return The entry
+		 */
+		public Path getEntry(int index) {
+			return entries[index];
+		}
+
+		/**
+		 * Returns the attributes of an entry, links followed
+		 *
+		 * @param index
+		 *            The index of the entry, in the order of the names
+		 * @return The {@link BasicFileAttributes} of the entry
+		 */
+		public BasicFileAttributes getAttributes(int index) {
+			return attributes[index];
+		}
+
+		/**
+		 * Reads the attributes of a range of the entries, an entry which is left out keeps null
+		 *
+		 * @param from
+		 *            The first entry
+		 * @param to
+		 *            The entry after the last
+		 */
+		private void readRange(int from, int to) {
+			for (int i = from; i < to; i++) {
+				BasicFileAttributes entryAttributes = DirectoryWalker.readAttributes(entries[i], LinkOption.NOFOLLOW_LINKS);
+				if (entryAttributes != null && entryAttributes.isSymbolicLink()) {
+					entryAttributes = DirectoryWalker.readAttributes(entries[i]);
+					if (entryAttributes != null && entryAttributes.isDirectory() && isAbove(entries[i], entryAttributes)) {
+						LOG.debug("Not following the link to a directory above it: " + entries[i]);
+						entryAttributes = null;
+					}
+				}
+				attributes[i] = entryAttributes;
+			}
+		}
+
+		/**
+		 * Removes the entries of which no attributes were read
+		 */
+		private void removeUnread() {
+			int count = 0;
+			for (int i = 0; i < entries.length; i++) {
+				if (attributes[i] != null) {
+					entries[count] = entries[i];
+					attributes[count] = attributes[i];
+					count++;
+				}
+			}
+			if (count < entries.length) {
+				entries = Arrays.copyOf(entries, count);
+				attributes = Arrays.copyOf(attributes, count);
+			}
+		}
+
+		/**
+		 * Whether a linked directory is this directory or one above it
+		 *
+		 * @param link
+		 *            The link
+		 * @param linkAttributes
+		 *            The {@link BasicFileAttributes} of the directory it links to
+		 * @return true if walking it would never end
+		 */
+		private boolean isAbove(Path link, BasicFileAttributes linkAttributes) {
+			Object linked = identity(link, linkAttributes);
+			for (Listing listing = this; listing != null; listing = listing.parent) {
+				if (linked.equals(listing.identity)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the attributes of a range of the entries of a {@link Listing}, a large range is split into subtasks
+	 */
+	private static final class AttributesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Listing listing;
+
+		private final int from;
+
+		private final int to;
+
+		private AttributesTask(Listing listing, int from, int to) {
+			this.listing = listing;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= ATTRIBUTES_PER_TASK) {
+				listing.readRange(from, to);
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new AttributesTask(listing, from, middle), new AttributesTask(listing, middle, to));
+			}
+		}
+	}
+}
@@ -7,10 +7,21 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.Set;
 
 import org.apache.commons.lang3.StringUtils;
@@ -18,8 +29,11 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.fides.client.files.data.ClientFile;
 import org.fides.client.files.data.CompareResultType;
+import org.fides.client.files.data.DirectoryTree;
 import org.fides.client.files.data.FileCompareResult;
 import org.fides.client.files.data.KeyFile;
+import org.fides.client.tools.DirectoryDigests;
+import org.fides.client.tools.FileHashCache;
 import org.fides.client.tools.LocalHashes;
 import org.fides.client.tools.UserProperties;
 
@@ -32,6 +46,22 @@ public class FileManager {
 	 */
 	private static final Logger LOG = LogManager.getLogger(FileManager.class);
 
+	/**
+	 * The digests of the directories which were in sync, null when the compares do not skip unchanged directories
+	 */
+	private DirectoryDigests directoryDigests;
+
+	/**
+	 * Sets the {@link DirectoryDigests} with which the streaming and sorted compares skip the files of the directories
+	 * which did not change on either side since they were in sync
+	 *
+	 * @param directoryDigests
+	 *            The {@link DirectoryDigests}, null to compare all directories
+	 */
+	public void setDirectoryDigests(DirectoryDigests directoryDigests) {
+		this.directoryDigests = directoryDigests;
+	}
+
 	/**
 	 * Compares the local files and the files on a server ({@link KeyFile})
 	 *
@@ -48,6 +78,9 @@ public class FileManager {
 		filesInDirectory(directory, files);
 		Set<String> clientFileNames = filesToLocalNames(files, directory);
 
+		// Forget the cached hashes of files which do not exist anymore
+		FileHashCache.getInstance().retainAll(files);
+
 		// We don't the files need it anymore, only the names
 		files.clear();
 
@@ -57,14 +90,24 @@ public class FileManager {
 			serverFileNames.add(clientFile.getName());
 		}
 
+		// Hash the files which exist on both sides in parallel, once per file
+		Map<String, HashAlgorithm> matchingFiles = new HashMap<>();
+		for (String clientName : clientFileNames) {
+			if (serverFileNames.contains(clientName)) {
+				matchingFiles.put(clientName, compareAlgorithm(clientName, keyFile));
+			}
+		}
+		Map<String, String> fileIdentities = readIdentities(directory, matchingFiles.keySet());
+		Map<String, String> fileHashes = createHashPool(settings).hashFiles(directory, matchingFiles);
+
 		for (String serverName : serverFileNames) {
-			FileCompareResult result = checkServerSideFile(serverName, clientFileNames, keyFile);
+			FileCompareResult result = checkServerSideFile(serverName, clientFileNames, keyFile, fileHashes, fileIdentities);
 			if (result != null) {
 				results.add(result);
 			}
 		}
 		for (String clientName : clientFileNames) {
-			FileCompareResult result = checkClientSideFile(clientName, serverFileNames, keyFile);
+			FileCompareResult result = checkClientSideFile(clientName, serverFileNames, keyFile, fileHashes, fileIdentities);
 			if (result != null) {
 				results.add(result);
 			}
@@ -73,6 +116,66 @@ public class FileManager {
 		return results;
 	}
 
+	/**
+	 * Compares the local files and the files on a server ({@link KeyFile}) while the results are taken. The local
+	 * directories are walked one at a time, a result is given as soon as its directory is compared, so a sync can start
+	 * before the walk is done. Only the results of one directory and the names of the server files are kept. The shards
+	 * of a sharded {@link KeyFile} are loaded when the walk reaches their directories, after the walk the names of the
+	 * rest are read without loading them and the files which only exist in the {@link KeyFile} are compared. When a shard can not be loaded the compare
+	 * stops. With {@link DirectoryDigests} set the files of the directories which did not change on either side since
+	 * they were in sync are skipped.
+	 * <p>
+	 * The {@link KeyFile} may be changed between taking results, as long as it is done on the same thread.
+	 *
+	 * @param keyFile
+	 *            The {@link KeyFile} originating from the server
+	 * @return The {@link Iterator} of the {@link FileCompareResult}s with the differences
+	 */
+	public Iterator<FileCompareResult> compareFilesStreaming(KeyFile keyFile) {
+		return new StreamingCompare(keyFile);
+	}
+
+	/**
+	 * Compares the local files and the files on a server ({@link KeyFile}) while the results are taken, with a bounded
+	 * amount of memory for huge trees. The names of the server files are sorted once in the order of a sorted directory
+	 * walk, spilling to temporary files when they pass the memory budget. The local directories are walked in that
+	 * order, and both sides are joined in a single pass. No set of local names or results is kept, only the entries of
+	 * the directories on the path of the walk. Unchanged directories are skipped like in
+	 * {@link #compareFilesStreaming(KeyFile)}.
+	 * <p>
+	 * The server names and directory digests are taken shard by shard, the shards which are not loaded are read one at
+	 * a time and dropped again. A shard is only loaded when the join reaches a file of it which exists on both sides, in
+	 * a directory which is not skipped.
+	 * <p>
+	 * The {@link KeyFile} may be changed between taking results, as long as it is done on the same thread.
+	 *
+	 * @param keyFile
+	 *            The {@link KeyFile} originating from the server
+	 * @param memoryBudget
+	 *            The memory in bytes the sorted server names may use before they are spilled
+	 * @return The {@link Iterator} of the {@link FileCompareResult}s with the differences
+	 */
+	public Iterator<FileCompareResult> compareFilesSorted(KeyFile keyFile, long memoryBudget) {
+		final NameSorter sorter = new NameSorter(memoryBudget);
+		final DirectoryTree.Builder serverTree = new DirectoryTree.Builder();
+		try {
+			keyFile.visitClientFiles(new KeyFile.ClientFileVisitor() {
+				@Override
+				public void visit(ClientFile clientFile) throws IOException {
+					sorter.add(clientFile.getName());
+					if (directoryDigests != null) {
+						serverTree.addFile(clientFile.getName(), clientFile.getHash());
+					}
+				}
+			});
+			return new SortedCompare(keyFile, serverTree.build(), sorter, sorter.sorted());
+		} catch (IOException e) {
+			LOG.error("Could not sort the server files, compared without sorting", e);
+			sorter.close();
+			return compareFilesStreaming(keyFile);
+		}
+	}
+
 	/**
 	 * The compare check for a file on the server
 	 *
@@ -87,7 +190,8 @@ public class FileManager {
 		File directory = UserProperties.getInstance().getFileDirectory();
 		filesInDirectory(directory, files);
 		Set<String> clientFileNames = filesToLocalNames(files, directory);
-		return checkServerSideFile(serverName, clientFileNames, keyFile);
+		return checkServerSideFile(serverName, clientFileNames, keyFile, Collections.<String, String> emptyMap(),
+			Collections.<String, String> emptyMap());
 	}
 
 	/**
@@ -99,28 +203,46 @@ public class FileManager {
 	 *            The list with files on the client
 	 * @param keyFile
 	 *            The {@link KeyFile} with the server files
+	 * @param fileHashes
+	 *            The already generated hashes of local files
+	 * @param fileIdentities
+	 *            The identities of the local files before their hashes were generated
 	 * @return The {@link FileCompareResult} from the check, can be null if no result
 	 */
-	private FileCompareResult checkServerSideFile(String serverName, Collection<String> clientFileNames, KeyFile keyFile) {
+	private FileCompareResult checkServerSideFile(String serverName, Collection<String> clientFileNames, KeyFile keyFile,
+		Map<String, String> fileHashes, Map<String, String> fileIdentities) {
 		FileCompareResult result = null;
 		// Does the file exist on the server
 		if (keyFile.getClientFileByName(serverName) != null) {
 			// Server has the file
 			if (clientFileNames.contains(serverName)) {
 				// We both have the file
-				result = checkMatchingFile(serverName, keyFile);
-			} else if (LocalHashes.getInstance().containsHash(serverName)) {
-				// Did exist local (its removed local)
-				result = new FileCompareResult(serverName, CompareResultType.LOCAL_REMOVED);
+				result = checkMatchingFile(serverName, keyFile, fileHashes.get(serverName), fileIdentities.get(serverName));
 			} else {
-				// Did not exist here (its added on the server)
-				result = new FileCompareResult(serverName, CompareResultType.SERVER_ADDED);
+				result = checkServerOnlyFile(serverName);
 			}
 		}
 
 		return result;
 	}
 
+	/**
+	 * The compare check for a file which is on the server and not local. The file is not looked up in the
+	 * {@link KeyFile}, so its shard is not loaded for it.
+	 *
+	 * @param serverName
+	 *            The name of the file on the server
+	 * @return The {@link FileCompareResult} from the check
+	 */
+	private static FileCompareResult checkServerOnlyFile(String serverName) {
+		if (LocalHashes.getInstance().containsHash(serverName)) {
+			// Did exist local (its removed local)
+			return new FileCompareResult(serverName, CompareResultType.LOCAL_REMOVED);
+		}
+		// Did not exist here (its added on the server)
+		return new FileCompareResult(serverName, CompareResultType.SERVER_ADDED);
+	}
+
 	/**
 	 * The compare check for a local file
 	 *
@@ -132,10 +254,56 @@ public class FileManager {
 	 */
 	public FileCompareResult checkClientSideFile(String clientName, KeyFile keyFile) {
 		Set<String> serverFileNames = new HashSet<>();
-		for (ClientFile clientFile : keyFile.getAllClientFiles().values()) {
-			serverFileNames.add(clientFile.getName());
+		if (keyFile.getClientFileByName(clientName) != null) {
+			serverFileNames.add(clientName);
+		}
+		return checkClientSideFile(clientName, serverFileNames, keyFile, Collections.<String, String> emptyMap(),
+			Collections.<String, String> emptyMap());
+	}
+
+	/**
+	 * The compare checks for a batch of local files, against one {@link KeyFile}. The files which exist on both sides
+	 * are hashed in parallel.
+	 *
+	 * @param clientNames
+	 *            The names of the local files
+	 * @param keyFile
+	 *            The {@link KeyFile} with the server files
+	 * @return The collection of {@link FileCompareResult} of the files which are not in sync
+	 */
+	public Collection<FileCompareResult> checkClientSideFiles(Collection<String> clientNames, KeyFile keyFile) {
+		UserProperties settings = UserProperties.getInstance();
+		Collection<FileCompareResult> results = new HashSet<>();
+		// Only the files of the batch are looked up, so only their shards of the keyfile are needed
+		Set<String> serverFileNames = new HashSet<>();
+		for (String clientName : clientNames) {
+			if (keyFile.getClientFileByName(clientName) != null) {
+				serverFileNames.add(clientName);
+			}
+		}
+
+		// Hash the files which exist on both sides in parallel, once per file
+		File directory = settings.getFileDirectory();
+		Map<String, HashAlgorithm> matchingFiles = new HashMap<>();
+		for (String clientName : clientNames) {
+			if (serverFileNames.contains(clientName) && new File(directory, clientName).isFile()) {
+				matchingFiles.put(clientName, compareAlgorithm(clientName, keyFile));
+			}
 		}
-		return checkClientSideFile(clientName, serverFileNames, keyFile);
+		Map<String, String> fileHashes = Collections.emptyMap();
+		Map<String, String> fileIdentities = Collections.emptyMap();
+		if (matchingFiles.size() > 1) {
+			fileIdentities = readIdentities(directory, matchingFiles.keySet());
+			fileHashes = createHashPool(settings).hashFiles(directory, matchingFiles);
+		}
+
+		for (String clientName : clientNames) {
+			FileCompareResult result = checkClientSideFile(clientName, serverFileNames, keyFile, fileHashes, fileIdentities);
+			if (result != null) {
+				results.add(result);
+			}
+		}
+		return results;
 	}
 
 	/**
@@ -147,9 +315,14 @@ public class FileManager {
 	 *            The list with files on the client
 	 * @param keyFile
 	 *            The {@link KeyFile} with the server files
+	 * @param fileHashes
+	 *            The already generated hashes of local files
+	 * @param fileIdentities
+	 *            The identities of the local files before their hashes were generated
 	 * @return The {@link FileCompareResult} from the check, can be null if no result
 	 */
-	private FileCompareResult checkClientSideFile(String clientName, Collection<String> serverFileNames, KeyFile keyFile) {
+	private FileCompareResult checkClientSideFile(String clientName, Collection<String> serverFileNames, KeyFile keyFile,
+		Map<String, String> fileHashes, Map<String, String> fileIdentities) {
 		FileCompareResult result = null;
 		// Does the local file exist
 		File file = new File(UserProperties.getInstance().getFileDirectory(), clientName);
@@ -157,7 +330,7 @@ public class FileManager {
 			// I have the file
 			if (serverFileNames.contains(clientName)) {
 				// We both have the file
-				result = checkMatchingFile(clientName, keyFile);
+				result = checkMatchingFile(clientName, keyFile, fileHashes.get(clientName), fileIdentities.get(clientName));
 			} else if (LocalHashes.getInstance().containsHash(clientName)) {
 				// Did exist local (its remove on the server)
 				result = new FileCompareResult(clientName, CompareResultType.SERVER_REMOVED);
@@ -179,12 +352,20 @@ public class FileManager {
 	 *            The name of the file (local and on server)
 	 * @param keyFile
 	 *            The {@link KeyFile} with the server files
+	 * @param fileHash
+	 *            The hash of the local file, null if it still has to be generated
+	 * @param fileIdentity
+	 *            The identity of the local file before the given hash was generated, null if not known
 	 * @return The {@link FileCompareResult} from the check, can be null if no result
 	 */
-	private FileCompareResult checkMatchingFile(String fileName, KeyFile keyFile) {
+	private FileCompareResult checkMatchingFile(String fileName, KeyFile keyFile, String fileHash, String fileIdentity) {
 		// We both have the file
 		FileCompareResult result = null;
-		String fileHash = FileUtil.generateFileHash(new File(UserProperties.getInstance().getFileDirectory(), fileName));
+		if (fileHash == null) {
+			File file = new File(UserProperties.getInstance().getFileDirectory(), fileName);
+			fileIdentity = FileUtil.fileIdentity(file);
+			fileHash = FileUtil.generateFileHash(file, compareAlgorithm(fileName, keyFile));
+		}
 		String savedHash = LocalHashes.getInstance().getHash(fileName);
 
 		if (StringUtils.isBlank(savedHash)) {
@@ -202,8 +383,8 @@ public class FileManager {
 				// Both server and client are changed
 				result = new FileCompareResult(fileName, CompareResultType.CONFLICTED);
 			} else if (localChanged) {
-				// Client are changed
-				result = new FileCompareResult(fileName, CompareResultType.LOCAL_UPDATED);
+				// Client are changed, the upload can use the hash while the file stays the same
+				result = new FileCompareResult(fileName, CompareResultType.LOCAL_UPDATED, fileHash, fileIdentity);
 			} else if (serverChanged) {
 				// Server are changed
 				result = new FileCompareResult(fileName, CompareResultType.SERVER_UPDATED);
@@ -213,6 +394,81 @@ public class FileManager {
 		return result;
 	}
 
+	/**
+	 * Returns the {@link HashAlgorithm} to hash a local file with for a compare. This is the algorithm of the local hash,
+	 * or of the server hash when there is no local hash, so files with hashes of older versions still compare correctly.
+	 * They move to the default algorithm with their next upload.
+	 *
+	 * @param fileName
+	 *            The name of the file (local and on server)
+	 * @param keyFile
+	 *            The {@link KeyFile} with the server files
+	 * @return The {@link HashAlgorithm}
+	 */
+	private static HashAlgorithm compareAlgorithm(String fileName, KeyFile keyFile) {
+		String referenceHash = LocalHashes.getInstance().getHash(fileName);
+		if (StringUtils.isBlank(referenceHash)) {
+			referenceHash = keyFile.getClientFileByName(fileName).getHash();
+		}
+		HashAlgorithm algorithm = HashAlgorithm.fromHash(referenceHash);
+		return algorithm != null ? algorithm : HashAlgorithm.getDefault();
+	}
+
+	/**
+	 * Reads the identities of local files, before they are hashed
+	 *
+	 * @param directory
+	 *            The directory the names are relative to
+	 * @param fileNames
+	 *            The local names of the files
+	 * @return The identities mapped by file name, files of which the identity could not be read are missing
+	 */
+	private static Map<String, String> readIdentities(File directory, Collection<String> fileNames) {
+		Map<String, String> identities = new HashMap<>();
+		for (String fileName : fileNames) {
+			String identity = FileUtil.fileIdentity(new File(directory, fileName));
+			if (identity != null) {
+				identities.put(fileName, identity);
+			}
+		}
+		return identities;
+	}
+
+	/**
+	 * Hashes the files of a batch which exist on both sides in parallel, a single file is hashed when it is compared
+	 *
+	 * @param settings
+	 *            The {@link UserProperties} with the limit of open files
+	 * @param baseDir
+	 *            The directory the names are relative to
+	 * @param matchingFiles
+	 *            The local names of the files to hash, mapped to the {@link HashAlgorithm} to use
+	 * @param fileHashes
+	 *            The map to put the hashes in
+	 * @param fileIdentities
+	 *            The map to put the identities of the files before hashing in
+	 */
+	private static void hashMatchingFiles(UserProperties settings, File baseDir, Map<String, HashAlgorithm> matchingFiles,
+		Map<String, String> fileHashes, Map<String, String> fileIdentities) {
+		if (matchingFiles.size() > 1) {
+			fileIdentities.putAll(readIdentities(baseDir, matchingFiles.keySet()));
+			fileHashes.putAll(createHashPool(settings).hashFiles(baseDir, matchingFiles));
+		}
+	}
+
+	/**
+	 * Creates the {@link HashPool} for a compare, with a thread per core
+	 *
+	 * @param settings
+	 *            The {@link UserProperties} with the limit of open files
+	 * @return The {@link HashPool}
+	 */
+	private static HashPool createHashPool(UserProperties settings) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int maxOpenFiles = settings.getHashOpenFiles();
+		return new HashPool(threads, maxOpenFiles > 0 ? maxOpenFiles : threads);
+	}
+
 	/**
 	 * Creates a new file at the correct location of the given name and returns it as an OutputStream.
 	 *
@@ -307,7 +563,19 @@ public class FileManager {
 	}
 
 	/**
-	 * Add all files and {@link File} in subdirectories to a list;
+	 * Returns the identity of a local file, see {@link FileUtil#fileIdentity(File)}
+	 *
+	 * @param fileName
+	 *            The name of the file, in local space
+	 * @return The identity, null if the file can not be read
+	 */
+	public String getFileIdentity(String fileName) {
+		return FileUtil.fileIdentity(new File(UserProperties.getInstance().getFileDirectory(), fileName));
+	}
+
+	/**
+	 * Add all files and {@link File} in subdirectories to a list, the directories are walked in parallel by the
+	 * {@link DirectoryWalker}
 	 *
 	 * @param directory
 	 *            The directory to look in
@@ -315,16 +583,18 @@ public class FileManager {
 	 *            The {@link List} to add the {@link File} to
 	 */
 	private static void filesInDirectory(File directory, List<File> files) {
-		File[] dirFiles = directory.listFiles();
-		if (dirFiles != null) {
-			for (File file : dirFiles) {
-				if (file.isDirectory()) {
-					filesInDirectory(file, files);
-				} else {
-					files.add(file);
+		final List<File> walked = Collections.synchronizedList(files);
+		DirectoryWalker.walk(directory.toPath(), new DirectoryWalker.Visitor() {
+			@Override
+			public boolean visitDirectory(Path dir, BasicFileAttributes attributes, Map<Path, BasicFileAttributes> dirFiles) {
+				List<File> found = new ArrayList<>(dirFiles.size());
+				for (Path file : dirFiles.keySet()) {
+					found.add(file.toFile());
 				}
+				walked.addAll(found);
+				return true;
 			}
-		}
+		});
 	}
 
 	/**
@@ -375,4 +645,463 @@ public class FileManager {
 		// we always want '/' and no '\' this because Windows and Unix/Linux systems do not use the same
 		return relativeFile.getPath().replace('\\', '/');
 	}
+
+	/**
+	 * An {@link Iterator} which compares the files while its results are taken, see
+	 * {@link FileManager#compareFilesStreaming(KeyFile)}
+	 */
+	private final class StreamingCompare implements Iterator<FileCompareResult> {
+		private final KeyFile keyFile;
+
+		private final File baseDir;
+
+		private final UserProperties settings;
+
+		/**
+		 * The directories which still have to be walked
+		 */
+		private final Deque<PendingDirectory> directories = new ArrayDeque<>();
+
+		/**
+		 * The names of the server files when the walk was done, null before that
+		 */
+		private Iterator<String> serverFileNames;
+
+		/**
+		 * The results which are found but not taken yet
+		 */
+		private final Queue<FileCompareResult> results = new ArrayDeque<>();
+
+		/**
+		 * The directories which can be skipped, null when all are compared
+		 */
+		private final UnchangedDirectories unchanged;
+
+		private boolean finished = false;
+
+		/**
+		 * Whether a shard of the {@link KeyFile} could not be loaded, the compare stops then
+		 */
+		private boolean failed = false;
+
+		/**
+		 * Constructor for StreamingCompare
+		 *
+		 * @param keyFile
+		 *            The {@link KeyFile} originating from the server
+		 */
+		private StreamingCompare(KeyFile keyFile) {
+			this.keyFile = keyFile;
+			this.settings = UserProperties.getInstance();
+			this.baseDir = settings.getFileDirectory();
+			this.unchanged = directoryDigests == null ? null : new UnchangedDirectories(keyFile, directoryDigests);
+			directories.push(new PendingDirectory(baseDir.toPath(), null));
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (results.isEmpty()) {
+				if (!directories.isEmpty()) {
+					compareDirectory(directories.pop());
+				} else if (serverFileNames == null) {
+					listServerFiles();
+				} else if (serverFileNames.hasNext()) {
+					compareServerFile(serverFileNames.next());
+				} else {
+					if (!finished && !failed && unchanged != null) {
+						unchanged.finish();
+					}
+					finished = true;
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public FileCompareResult next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			FileCompareResult result = results.poll();
+			if (results.isEmpty() && directories.isEmpty() && serverFileNames != null && !serverFileNames.hasNext() && !failed) {
+				// Forget the cached hashes of files which do not exist anymore
+				FileHashCache.getInstance().removeMissing();
+			}
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Compares the files of one directory, the files on both sides are hashed in parallel
+		 *
+		 * @param directory
+		 *            The directory with the {@link DirectoryWalker.Listing} of the directory above it
+		 */
+		private void compareDirectory(PendingDirectory directory) {
+			DirectoryWalker.Listing listing = DirectoryWalker.list(directory.path, directory.parent);
+			if (listing == null) {
+				return;
+			}
+			String directoryName = fileToLocalName(directory.path.toFile(), baseDir);
+			if (!keyFile.loadDirectory(directoryName)) {
+				LOG.error("Could not load the keyfile shard of directory " + directoryName + ", the compare stops");
+				fail();
+				return;
+			}
+			Map<String, BasicFileAttributes> files = new LinkedHashMap<>();
+			for (int i = 0; i < listing.size(); i++) {
+				if (listing.getAttributes(i).isDirectory()) {
+					directories.push(new PendingDirectory(listing.getEntry(i), listing));
+				} else {
+					files.put(fileToLocalName(listing.getEntry(i).toFile(), baseDir), listing.getAttributes(i));
+				}
+			}
+			if (unchanged != null && unchanged.skip(directoryName, files)) {
+				// The subdirectories are compared on their own
+				return;
+			}
+			List<String> clientFileNames = new ArrayList<>(files.keySet());
+			Set<String> serverNames = new HashSet<>();
+			Map<String, HashAlgorithm> matchingFiles = new HashMap<>();
+			for (String clientName : clientFileNames) {
+				if (keyFile.getClientFileByName(clientName) != null) {
+					serverNames.add(clientName);
+					matchingFiles.put(clientName, compareAlgorithm(clientName, keyFile));
+				}
+			}
+
+			Map<String, String> fileHashes = new HashMap<>();
+			Map<String, String> fileIdentities = new HashMap<>();
+			hashMatchingFiles(settings, baseDir, matchingFiles, fileHashes, fileIdentities);
+			for (String clientName : clientFileNames) {
+				FileCompareResult result = checkClientSideFile(clientName, serverNames, keyFile, fileHashes, fileIdentities);
+				if (result != null) {
+					addResult(result);
+				}
+			}
+		}
+
+		/**
+		 * Takes the names of the server files after the walk, the shards which the walk did not reach are read without
+		 * loading them
+		 */
+		private void listServerFiles() {
+			// A copy, the keyfile can change while the results are handled
+			final List<String> names = new ArrayList<>();
+			try {
+				keyFile.visitClientFiles(new KeyFile.ClientFileVisitor() {
+					@Override
+					public void visit(ClientFile clientFile) {
+						names.add(clientFile.getName());
+					}
+				});
+			} catch (IOException e) {
+				LOG.error("Could not read the keyfile shards, the compare stops", e);
+				fail();
+				return;
+			}
+			serverFileNames = names.iterator();
+		}
+
+		/**
+		 * Stops the compare because a shard could not be loaded, the files in it would look like they do not exist on
+		 * the server
+		 */
+		private void fail() {
+			failed = true;
+			directories.clear();
+			serverFileNames = Collections.<String> emptyIterator();
+		}
+
+		/**
+		 * Compares a file of the server which does not exist locally, the others are compared with their directory
+		 *
+		 * @param serverName
+		 *            The name of the file on the server
+		 */
+		private void compareServerFile(String serverName) {
+			if ((unchanged != null && unchanged.isSkipped(serverName)) || new File(baseDir, serverName).isFile()) {
+				return;
+			}
+			// The name was listed from the keyfile, so the file is only on the server
+			addResult(checkServerOnlyFile(serverName));
+		}
+
+		private void addResult(FileCompareResult result) {
+			if (unchanged != null) {
+				unchanged.changed(result.getName());
+			}
+			results.add(result);
+		}
+	}
+
+	/**
+	 * An {@link Iterator} which joins a sorted walk of the local files with the sorted names of the server files, see
+	 * {@link FileManager#compareFilesSorted(KeyFile, long)}
+	 */
+	private final class SortedCompare implements Iterator<FileCompareResult> {
+		private final KeyFile keyFile;
+
+		private final File baseDir;
+
+		private final UserProperties settings;
+
+		private final NameSorter sorter;
+
+		private final Iterator<String> serverFileNames;
+
+		/**
+		 * The directories on the path of the walk, the deepest first
+		 */
+		private final Deque<WalkedDirectory> directories = new ArrayDeque<>();
+
+		private String localName;
+
+		private WalkedDirectory localDirectory;
+
+		private String serverName;
+
+		private FileCompareResult next;
+
+		private boolean done = false;
+
+		/**
+		 * Whether a shard of the {@link KeyFile} could not be loaded, the compare stops then
+		 */
+		private boolean failed = false;
+
+		/**
+		 * The directories which can be skipped, null when all are compared
+		 */
+		private final UnchangedDirectories unchanged;
+
+		/**
+		 * Constructor for SortedCompare
+		 *
+		 * @param keyFile
+		 *            The {@link KeyFile} originating from the server
+		 * @param serverTree
+		 *            The {@link DirectoryTree} of the server files when they were sorted
+		 * @param sorter
+		 *            The {@link NameSorter} of the server names, closed when the compare is done
+		 * @param serverFileNames
+		 *            The sorted names of the server files
+		 */
+		private SortedCompare(KeyFile keyFile, DirectoryTree serverTree, NameSorter sorter, Iterator<String> serverFileNames) {
+			this.keyFile = keyFile;
+			this.sorter = sorter;
+			this.serverFileNames = serverFileNames;
+			this.settings = UserProperties.getInstance();
+			this.baseDir = settings.getFileDirectory();
+			this.unchanged = directoryDigests == null ? null : new UnchangedDirectories(serverTree, directoryDigests);
+			enter(baseDir.toPath(), null);
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && !done) {
+				if (localName == null) {
+					advanceLocal();
+				}
+				if (failed) {
+					// The local files of the shard were not walked, server files would look removed locally
+					finish();
+					break;
+				}
+				if (serverName == null && serverFileNames.hasNext()) {
+					serverName = serverFileNames.next();
+				}
+				if (serverName == null && sorter.isFailed()) {
+					// Without the rest of the server names local files would look new, so the compare stops
+					finish();
+				} else if (localName == null && serverName == null) {
+					finish();
+				} else {
+					next = join();
+					if (next != null && unchanged != null) {
+						unchanged.changed(next.getName());
+					}
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public FileCompareResult next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			FileCompareResult result = next;
+			next = null;
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Compares the smallest of the current local and server name, and moves past it
+		 *
+		 * @return The {@link FileCompareResult}, can be null if no result
+		 */
+		private FileCompareResult join() {
+			int order;
+			if (localName == null) {
+				order = 1;
+			} else if (serverName == null) {
+				order = -1;
+			} else {
+				order = NameSorter.WALK_ORDER.compare(localName, serverName);
+			}
+
+			FileCompareResult result;
+			if (order < 0) {
+				result = checkClientSideFile(localName, Collections.<String> emptySet(), keyFile, localDirectory.fileHashes,
+					localDirectory.fileIdentities);
+				localName = null;
+			} else if (order > 0) {
+				// The walk is past the directory of the server file, so it is known whether its files are skipped
+				if (unchanged != null && unchanged.isSkipped(serverName)) {
+					result = null;
+				} else {
+					// The name was listed from the keyfile, so its shard does not have to be loaded
+					result = checkServerOnlyFile(serverName);
+				}
+				serverName = null;
+			} else {
+				result = checkClientSideFile(localName, Collections.singleton(serverName), keyFile, localDirectory.fileHashes,
+					localDirectory.fileIdentities);
+				localName = null;
+				serverName = null;
+			}
+			return result;
+		}
+
+		/**
+		 * Moves the walk to the next local file, localName is null when the walk is done
+		 */
+		private void advanceLocal() {
+			while (!directories.isEmpty()) {
+				WalkedDirectory directory = directories.peek();
+				if (directory.index >= directory.listing.size()) {
+					directories.pop();
+					continue;
+				}
+				int index = directory.index++;
+				DirectoryWalker.Listing listing = directory.listing;
+				if (listing.getAttributes(index).isDirectory()) {
+					enter(listing.getEntry(index), listing);
+				} else if (!directory.filesSkipped) {
+					localName = fileToLocalName(listing.getEntry(index).toFile(), baseDir);
+					localDirectory = directory;
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Lists a directory sorted by name and hashes its files which exist on both sides, unless its files are skipped
+		 *
+		 * @param directory
+		 *            The directory
+		 * @param parent
+		 *            The {@link DirectoryWalker.Listing} of the directory above, null for the base directory
+		 */
+		private void enter(Path directory, DirectoryWalker.Listing parent) {
+			DirectoryWalker.Listing listing = DirectoryWalker.list(directory, parent);
+			if (listing == null) {
+				return;
+			}
+			String directoryName = fileToLocalName(directory.toFile(), baseDir);
+			if (!keyFile.loadDirectory(directoryName)) {
+				LOG.error("Could not load the keyfile shard of directory " + directoryName + ", the compare stops");
+				failed = true;
+				directories.clear();
+				return;
+			}
+			WalkedDirectory walked = new WalkedDirectory(listing);
+			Map<String, BasicFileAttributes> files = new LinkedHashMap<>();
+			for (int i = 0; i < listing.size(); i++) {
+				if (!listing.getAttributes(i).isDirectory()) {
+					files.put(fileToLocalName(listing.getEntry(i).toFile(), baseDir), listing.getAttributes(i));
+				}
+			}
+			if (unchanged != null && unchanged.skip(directoryName, files)) {
+				// Only the subdirectories are walked
+				walked.filesSkipped = true;
+			} else {
+				Map<String, HashAlgorithm> matchingFiles = new HashMap<>();
+				for (Map.Entry<String, BasicFileAttributes> file : files.entrySet()) {
+					if (keyFile.getClientFileByName(file.getKey()) != null && file.getValue() != null && file.getValue().isRegularFile()) {
+						matchingFiles.put(file.getKey(), compareAlgorithm(file.getKey(), keyFile));
+					}
+				}
+				hashMatchingFiles(settings, baseDir, matchingFiles, walked.fileHashes, walked.fileIdentities);
+			}
+			directories.push(walked);
+		}
+
+		private void finish() {
+			done = true;
+			directories.clear();
+			sorter.close();
+			if (!sorter.isFailed() && !failed) {
+				// Forget the cached hashes of files which do not exist anymore
+				FileHashCache.getInstance().removeMissing();
+				if (unchanged != null) {
+					unchanged.finish();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A directory which a streaming compare still has to walk
+	 */
+	private static final class PendingDirectory {
+		private final Path path;
+
+		/**
+		 * The {@link DirectoryWalker.Listing} of the directory above, null for the base directory
+		 */
+		private final DirectoryWalker.Listing parent;
+
+		private PendingDirectory(Path path, DirectoryWalker.Listing parent) {
+			this.path = path;
+			this.parent = parent;
+		}
+	}
+
+	/**
+	 * A directory on the path of a sorted walk, with its sorted entries and the hashes of its files which exist on both
+	 * sides
+	 */
+	private static final class WalkedDirectory {
+		/**
+		 * The entries of the directory sorted by name, with their attributes
+		 */
+		private final DirectoryWalker.Listing listing;
+
+		/**
+		 * Whether the files of the directory are skipped, its subdirectories are walked
+		 */
+		private boolean filesSkipped = false;
+
+		private final Map<String, String> fileHashes = new HashMap<>();
+
+		private final Map<String, String> fileIdentities = new HashMap<>();
+
+		private int index = 0;
+
+		private WalkedDirectory(DirectoryWalker.Listing listing) {
+			this.listing = listing;
+		}
+	}
 }
@@ -10,6 +10,11 @@ import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -21,9 +26,11 @@ import org.fides.client.connector.EncryptedOutputStreamData;
 import org.fides.client.connector.ServerConnector;
 import org.fides.client.encryption.EncryptionManager;
 import org.fides.client.encryption.InvalidPasswordException;
+import org.fides.client.files.TransferEngine.TransferHandler;
 import org.fides.client.files.data.ClientFile;
 import org.fides.client.files.data.FileCompareResult;
 import org.fides.client.files.data.KeyFile;
+import org.fides.client.files.data.KeyFileUpdate;
 import org.fides.client.tools.CopyInterruptedException;
 import org.fides.client.tools.CopyTool;
 import org.fides.client.tools.LocalHashes;
@@ -43,6 +50,12 @@ public class FileSyncManager {
 	 */
 	private static final Logger LOG = LogManager.getLogger(FileSyncManager.class);
 
+	/**
+	 * From this amount of files on the server a compare joins the sorted names, with bounded memory. The shards of a
+	 * sharded keyfile are counted as full, so it does not have to be loaded to choose.
+	 */
+	private static final int SORTED_COMPARE_FILES = 100000;
+
 	private final FileManager fileManager;
 
 	private final EncryptionManager encManager;
@@ -53,6 +66,10 @@ public class FileSyncManager {
 
 	private final AtomicBoolean busyBoolean = new AtomicBoolean(false);
 
+	private final TransferEngine transferEngine;
+
+	private final KeyFileCommitScheduler commitScheduler;
+
 	/**
 	 * Constructor for FileSyncManager
 	 * 
@@ -64,6 +81,8 @@ public class FileSyncManager {
 	public FileSyncManager(FileManager fileManager, EncryptionManager encManager) {
 		this.fileManager = fileManager;
 		this.encManager = encManager;
+		this.transferEngine = new TransferEngine(encManager, TransferEngine.DEFAULT_WORKERS, stopBoolean);
+		this.commitScheduler = new KeyFileCommitScheduler(encManager);
 	}
 
 	/**
@@ -92,12 +111,28 @@ public class FileSyncManager {
 			connector.disconnect();
 			return false;
 		}
+		if (!keyFile.loadAllShards()) {
+			connector.disconnect();
+			return false;
+		}
+		// Files which are uploaded but not committed yet are no ghost files
+		if (!commitScheduler.applyPending(keyFile)) {
+			connector.disconnect();
+			return false;
+		}
 
 		boolean successful = false;
 		Set<String> locations = connector.requestLocations();
 		if (locations != null) {
+			// The shards of the keyfile are no ghost files
+			Set<String> shardLocations = new HashSet<>();
+			if (keyFile.getShards() != null) {
+				for (ClientFile shard : keyFile.getShards().values()) {
+					shardLocations.add(shard.getLocation());
+				}
+			}
 			for (String location : locations) {
-				if (keyFile.getClientFileByLocation(location) == null) {
+				if (keyFile.getClientFileByLocation(location) == null && !shardLocations.contains(location)) {
 					connector.removeFile(location);
 				}
 			}
@@ -132,18 +167,27 @@ public class FileSyncManager {
 
 			try {
 				keyFile = encManager.requestKeyFile();
-				if (keyFile == null || stopBoolean.get()) {
+				// The shards of the keyfile are loaded while the files are compared
+				if (keyFile == null || stopBoolean.get() || !commitScheduler.applyPending(keyFile)) {
 					encManager.getConnector().disconnect();
 					successful = false;
 				} else {
-					Collection<FileCompareResult> results = fileManager.compareFiles(keyFile);
-					successful = true;
-					for (FileCompareResult result : results) {
-						if (stopBoolean.get()) {
-							successful = false;
-							break;
-						}
-						handleCompareResult(result, keyFile);
+					// The transfers start while the files are still compared, huge trees are compared in sorted order
+					Iterator<FileCompareResult> results;
+					Map<String, ClientFile> shards = keyFile.getShards();
+					int serverFiles = shards == null ? keyFile.getAllClientFiles().size() : shards.size() * EncryptionManager.MAX_SHARD_ENTRIES;
+					if (serverFiles >= SORTED_COMPARE_FILES) {
+						results = fileManager.compareFilesSorted(keyFile, UserProperties.getInstance().getCompareMemory());
+					} else {
+						results = fileManager.compareFilesStreaming(keyFile);
+					}
+					successful = transferEngine.transfer(results, createTransferHandler(keyFile), commitScheduler, keyFile);
+					if (stopBoolean.get()) {
+						successful = false;
+					}
+					// The changes of all finished transfers are committed, also when some failed
+					if (!commitScheduler.commit(keyFile)) {
+						successful = false;
 					}
 					encManager.getConnector().disconnect();
 				}
@@ -204,9 +248,27 @@ public class FileSyncManager {
 	 *            the name of the file
 	 * @return true is successful
 	 */
-	public synchronized boolean checkClientSideFile(String fileName) {
+	public boolean checkClientSideFile(String fileName) {
+		return checkClientSideFiles(Collections.singletonList(fileName));
+	}
+
+	/**
+	 * Compare a batch of local files with the server files and sync them, in one session with one {@link KeyFile}
+	 * request and one commit
+	 * 
+	 * @param fileNames
+	 *            the names of the files
+	 * @return true is successful
+	 */
+	public synchronized boolean checkClientSideFiles(Collection<String> fileNames) {
+		List<String> validFileNames = new ArrayList<>();
+		for (String fileName : fileNames) {
+			if (validClientSideFile(fileName)) {
+				validFileNames.add(fileName);
+			}
+		}
 		synchronized (stopLock) {
-			if (stopBoolean.get() || !validClientSideFile(fileName)) {
+			if (stopBoolean.get() || validFileNames.isEmpty()) {
 				return false;
 			}
 			busyBoolean.set(true);
@@ -217,15 +279,23 @@ public class FileSyncManager {
 		try {
 			encManager.getConnector().connect();
 			keyFile = encManager.requestKeyFile();
-			if (keyFile == null || stopBoolean.get()) {
+			// Only the shards of the files are needed
+			if (keyFile == null || stopBoolean.get() || !keyFile.loadShards(validFileNames)) {
 				encManager.getConnector().disconnect();
 				return false;
 			}
 
-			FileCompareResult result = fileManager.checkClientSideFile(fileName, keyFile);
-			LOG.debug(result);
-			if (result != null && !stopBoolean.get()) {
-				successful = handleCompareResult(result, keyFile);
+			// The changes of earlier checks which are not committed yet are part of the compare
+			if (!commitScheduler.applyPending(keyFile)) {
+				encManager.getConnector().disconnect();
+				return false;
+			}
+			Collection<FileCompareResult> results = fileManager.checkClientSideFiles(validFileNames, keyFile);
+			LOG.debug(results);
+			if (!stopBoolean.get()) {
+				successful = transferEngine.transfer(results, createTransferHandler(keyFile), commitScheduler, keyFile);
+				// The changes of all finished transfers are committed, also when some failed
+				successful = commitScheduler.commit(keyFile) && successful;
 			}
 		} catch (ConnectException | UnknownHostException e) {
 			LOG.error(e);
@@ -258,6 +328,13 @@ public class FileSyncManager {
 		}
 	}
 
+	/**
+	 * Stops the workers of the transfers, they are started again by the next sync
+	 */
+	public void stopTransfers() {
+		transferEngine.shutdown();
+	}
+
 	/**
 	 * Resets all locks on the FileSyncManager, re-enabling it for normal use.
 	 */
@@ -280,35 +357,87 @@ public class FileSyncManager {
 		return (file.exists() && file.isFile()) || LocalHashes.getInstance().containsHash(fileName);
 	}
 
+	/**
+	 * Creates the {@link TransferHandler} handling the {@link FileCompareResult}s of a sync on the workers of the
+	 * {@link TransferEngine}
+	 * 
+	 * @param keyFile
+	 *            The {@link KeyFile} of the sync, it is only read by the workers
+	 * @return The {@link TransferHandler}
+	 */
+	private TransferHandler createTransferHandler(final KeyFile keyFile) {
+		return new TransferHandler() {
+			@Override
+			public boolean handle(FileCompareResult result, EncryptionManager session, List<KeyFileUpdate> updates) {
+				return handleCompareResult(result, keyFile, session, updates);
+			}
+		};
+	}
+
+	/**
+	 * Commits the changes of earlier checks which are still pending on the {@link KeyFileCommitScheduler}
+	 * 
+	 * @param force
+	 *            true to commit all pending changes, false to only commit when a commit is due
+	 * @return true if there was nothing to commit or the commit was successful
+	 */
+	public synchronized boolean commitPendingUpdates(boolean force) {
+		if (!commitScheduler.hasPending() || (!force && !commitScheduler.isCommitDue())) {
+			return true;
+		}
+		boolean successful = false;
+		try {
+			encManager.getConnector().connect();
+			// The latest keyfile, the pending changes are applied to it by the commit
+			KeyFile keyFile = encManager.requestKeyFile();
+			if (keyFile != null) {
+				successful = commitScheduler.commit(keyFile);
+			}
+		} catch (ConnectException | UnknownHostException e) {
+			LOG.error(e);
+		} catch (InvalidPasswordException e) {
+			LOG.error(e);
+		} finally {
+			encManager.getConnector().disconnect();
+		}
+		return successful;
+	}
+
 	/**
 	 * Handles a {@link FileCompareResult}
 	 * 
 	 * @param result
 	 *            The {@link FileCompareResult} to handle
+	 * @param keyFile
+	 *            The {@link KeyFile} of the server, it is not changed
+	 * @param session
+	 *            The connected {@link EncryptionManager} to transfer with
+	 * @param updates
+	 *            The list to add the needed changes of the {@link KeyFile} to
 	 * @return true if successfully handled, otherwise false
 	 */
-	private boolean handleCompareResult(FileCompareResult result, KeyFile keyFile) {
+	private boolean handleCompareResult(FileCompareResult result, KeyFile keyFile, EncryptionManager session, List<KeyFileUpdate> updates) {
 		boolean successful = false;
 		switch (result.getResultType()) {
 		case LOCAL_ADDED:
-			successful = handleLocalAdded(result.getName(), keyFile);
+			successful = handleLocalAdded(result.getName(), keyFile, session, updates);
 			break;
 		case LOCAL_REMOVED:
-			successful = handleLocalRemoved(result.getName(), keyFile);
+			successful = handleLocalRemoved(result.getName(), keyFile, session, updates);
 			break;
 		case LOCAL_UPDATED:
-			successful = handleLocalUpdated(result.getName(), keyFile);
+			successful = handleLocalUpdated(result, keyFile, session, updates);
 			break;
 		case SERVER_ADDED:
 			// False because it is a new file
-			successful = handleServerAddedOrUpdated(result.getName(), keyFile, false);
+			successful = handleServerAddedOrUpdated(result.getName(), keyFile, session, false);
 			break;
 		case SERVER_REMOVED:
 			successful = handleServerRemoved(result.getName());
 			break;
 		case SERVER_UPDATED:
 			// True because it is an update
-			successful = handleServerAddedOrUpdated(result.getName(), keyFile, true);
+			successful = handleServerAddedOrUpdated(result.getName(), keyFile, session, true);
 			break;
 		case CONFLICTED:
 			successful = handleConflict(result.getName());
@@ -325,9 +454,13 @@ public class FileSyncManager {
 	 * 
 	 * @param fileName
 	 *            The file to upload
+	 * @param session
+	 *            The {@link EncryptionManager} to upload with
+	 * @param updates
+	 *            The list to add the new {@link ClientFile} to
 	 * @return true if successfully handled, otherwise false
 	 */
-	private boolean handleLocalAdded(final String fileName, final KeyFile keyFile) {
+	private boolean handleLocalAdded(final String fileName, final KeyFile keyFile, EncryptionManager session, List<KeyFileUpdate> updates) {
 
 		if (keyFile == null) {
 			return false;
@@ -335,23 +468,29 @@ public class FileSyncManager {
 
 		boolean successful = false;
 
-		// Create a message digest for creating a file hash/checksum
-		MessageDigest messageDigest = FileUtil.createFileDigest();
+		// Create a message digest for creating a file hash/checksum, new hashes use the default algorithm
+		HashAlgorithm hashAlgorithm = HashAlgorithm.getDefault();
+		MessageDigest messageDigest = hashAlgorithm.createDigest();
 
-		EncryptedOutputStreamData outData = encManager.uploadFile();
-
-		if (outData != null) {
-			InputStream in = fileManager.readFile(fileName);
-			OutputStream out = new DigestOutputStream(outData.getOutputStream(), messageDigest);
+		// The file is opened first, an upload which is started has to be confirmed
+		InputStream in = fileManager.readFile(fileName);
+		if (in == null) {
+			return false;
+		}
+		EncryptedOutputStreamData outData = session.uploadFile();
+		long size = 0;
 
-			if (in == null) {
-				return false;
-			}
+		if (outData == null) {
+			IOUtils.closeQuietly(in);
+		} else {
+			OutputStream out = outData.getOutputStream();
 
 			// Upload the file
 			try {
-				CopyTool.copyUntil(in, out, stopBoolean);
+				// Hashed while it is encrypted, a file is read into the buffers of the encryption
+				size = CopyTool.copyUntil(in, out, messageDigest, stopBoolean);
 				out.flush();
+				out.close();
 				successful = true;
 			} catch (IOException e) {
 				LOG.error(e);
@@ -363,19 +502,13 @@ public class FileSyncManager {
 			}
 
 			// Check if the upload was successful
-			if (encManager.getConnector().confirmUpload(successful)) {
-				// Create a hash and save it to the keyfile
-				String hash = HashUtils.toHex(messageDigest.digest());
-				keyFile.addClientFile(new ClientFile(fileName, outData.getLocation(), outData.getKey(), hash));
-
-				// Upload the keyfile
-				if (encManager.updateKeyFile(keyFile)) {
-					// If the keyfile was uploaded successfully, update the local hashes.
-					LocalHashes.getInstance().setHash(fileName, hash);
-					successful = true;
-				} else {
-					successful = false;
-				}
+			if (session.getConnector().confirmUpload(successful)) {
+				// Create a hash, it is saved with the next keyfile commit
+				String hash = hashAlgorithm.format(messageDigest.digest());
+				updates.add(KeyFileUpdate.added(new ClientFile(fileName, outData.getLocation(), outData.getKey(), hash), size));
+				successful = true;
+			} else {
+				successful = false;
 			}
 		}
 		return successful;
@@ -386,10 +519,14 @@ public class FileSyncManager {
 	 * 
 	 * @param fileName
 	 *            name of the removed file
+	 * @param session
+	 *            The {@link EncryptionManager} to remove the file with
+	 * @param updates
+	 *            The list to add the removal from the keyfile to
 	 * @return whether the remove was successful or not
 	 * 
 	 */
-	private boolean handleLocalRemoved(final String fileName, final KeyFile keyFile) {
+	private boolean handleLocalRemoved(final String fileName, final KeyFile keyFile, EncryptionManager session, List<KeyFileUpdate> updates) {
 		if (keyFile == null) {
 			return false;
 		}
@@ -400,18 +537,12 @@ public class FileSyncManager {
 		ClientFile file = keyFile.getClientFileByName(fileName);
 		try {
 			// Remove the file on the server
-			boolean result = encManager.removeFile(file);
+			boolean result = session.removeFile(file);
 
 			if (result) {
-				// Remove file from keyfile
-				keyFile.removeClientFileByName(fileName);
-
-				// Update the keyfile
-				if (encManager.updateKeyFile(keyFile)) {
-					// Remove the local hash
-					LocalHashes.getInstance().removeHash(fileName);
-					successful = true;
-				}
+				// Remove file from keyfile with the next commit
+				updates.add(KeyFileUpdate.removed(fileName));
+				successful = true;
 			}
 		} catch (InvalidClientFileException e) {
 			LOG.debug(e);
@@ -420,13 +551,20 @@ public class FileSyncManager {
 	}
 
 	/**
-	 * Handle a update of a file or a file being updated local.
+	 * Handle a update of a file or a file being updated local. When the compare hashed the file with the default
+	 * algorithm and the file did not change since, that hash is used and the file is only read to upload it.
 	 * 
-	 * @param fileName
-	 *            The file to update
+	 * @param result
+	 *            The {@link FileCompareResult} of the file to update
+	 * @param session
+	 *            The {@link EncryptionManager} to upload with
+	 * @param updates
+	 *            The list to add the new hash to
 	 * @return true if successfully handled, otherwise false
 	 */
-	private boolean handleLocalUpdated(final String fileName, final KeyFile keyFile) {
+	private boolean handleLocalUpdated(final FileCompareResult result, final KeyFile keyFile, EncryptionManager session,
+		List<KeyFileUpdate> updates) {
+		final String fileName = result.getName();
 		if (keyFile == null) {
 			LOG.debug("Keyfile was null while trying to handle a local updated file.");
 			return false;
@@ -434,27 +572,34 @@ public class FileSyncManager {
 
 		boolean successful = false;
 
-		// Get a stream to write to
-		OutputStream outEnc;
 		InputStream in = null;
 		OutputStream out = null;
+		long size = 0;
 
 		ClientFile clientFile = keyFile.getClientFileByName(fileName);
 
-		// Create a digest for creating a file hash/checksum
-		MessageDigest messageDigest = FileUtil.createFileDigest();
+		// Create a digest for creating a file hash/checksum, an upload moves the file to the default algorithm
+		HashAlgorithm hashAlgorithm = HashAlgorithm.getDefault();
+		String compareHash = reusableHash(result, hashAlgorithm);
+		MessageDigest messageDigest = compareHash == null ? hashAlgorithm.createDigest() : null;
 		try {
-			outEnc = encManager.updateFile(clientFile);
-
-			// Copy it to the server
+			// The file is opened first, an upload which is started has to be confirmed
 			in = fileManager.readFile(fileName);
+			if (in == null) {
+				return false;
+			}
 
-			if (outEnc != null && in != null) {
-				out = new DigestOutputStream(outEnc, messageDigest);
-				CopyTool.copyUntil(in, out, stopBoolean);
+			// Get a stream to write to, and copy the file to the server
+			out = session.updateFile(clientFile);
+			if (out != null) {
+				size = CopyTool.copyUntil(in, out, messageDigest, stopBoolean);
 				out.flush();
 				out.close();
-				successful = true;
+				// The hash of the compare is only right when the file did not change while it was read
+				successful = compareHash == null || result.getFileIdentity().equals(fileManager.getFileIdentity(fileName));
+				if (!successful) {
+					LOG.debug("File changed while it was uploaded: " + fileName);
+				}
 			}
 		} catch (InvalidClientFileException e) {
 			LOG.error(e);
@@ -471,35 +616,52 @@ public class FileSyncManager {
 		}
 
 		// Check if the upload was successful
-		if (encManager.getConnector().confirmUpload(successful)) {
-			// Create a hash and save it to the keyfile
-			String hash = HashUtils.toHex(messageDigest.digest());
-			clientFile.setHash(hash);
-
-			// Upload the keyfile
-			if (encManager.updateKeyFile(keyFile)) {
-				// If the keyfile was uploaded successfully, update the local hashes.
-				LocalHashes.getInstance().setHash(fileName, hash);
-				successful = true;
-			} else {
-				successful = false;
-			}
+		if (session.getConnector().confirmUpload(successful)) {
+			// Create a hash, it is saved with the next keyfile commit
+			String hash = compareHash != null ? compareHash : hashAlgorithm.format(messageDigest.digest());
+			updates.add(KeyFileUpdate.updated(fileName, hash, size));
+			successful = true;
+		} else {
+			successful = false;
 		}
 
 		return successful;
 
 	}
 
+	/**
+	 * Returns the hash of a {@link FileCompareResult} if it can be used for an upload: it is of the given algorithm and
+	 * the file has the same identity as when it was hashed.
+	 * 
+	 * @param result
+	 *            The {@link FileCompareResult}
+	 * @param hashAlgorithm
+	 *            The {@link HashAlgorithm} of the upload
+	 * @return The hash, null if the file has to be hashed while it is uploaded
+	 */
+	private String reusableHash(FileCompareResult result, HashAlgorithm hashAlgorithm) {
+		String hash = result.getHash();
+		if (hash == null || result.getFileIdentity() == null || HashAlgorithm.fromHash(hash) != hashAlgorithm) {
+			return null;
+		}
+		if (!result.getFileIdentity().equals(fileManager.getFileIdentity(result.getName()))) {
+			return null;
+		}
+		return hash;
+	}
+
 	/**
 	 * Handle a update of a file or a file being added from the server.
 	 * 
 	 * @param fileName
 	 *            The name to add
+	 * @param session
+	 *            The {@link EncryptionManager} to download with
 	 * @param update
 	 *            true if it is a file update, false when file is added
 	 * @return true if successfully handled, otherwise false
 	 */
-	private boolean handleServerAddedOrUpdated(final String fileName, final KeyFile keyFile, boolean update) {
+	private boolean handleServerAddedOrUpdated(final String fileName, final KeyFile keyFile, EncryptionManager session, boolean update) {
 		// Almost the same as handleServerUpdated
 		// KeyFile keyFile = encManager.requestKeyFile();
 
@@ -507,8 +669,14 @@ public class FileSyncManager {
 			return false;
 		}
 
-		// Create a message digest for creating a file hash/checksum
-		MessageDigest messageDigest = FileUtil.createFileDigest();
+		// Create a message digest for creating a file hash/checksum, with the algorithm of the server hash so they can be
+		// compared
+		ClientFile clientFile = keyFile.getClientFileByName(fileName);
+		HashAlgorithm hashAlgorithm = clientFile != null ? HashAlgorithm.fromHash(clientFile.getHash()) : null;
+		if (hashAlgorithm == null) {
+			hashAlgorithm = HashAlgorithm.getDefault();
+		}
+		MessageDigest messageDigest = hashAlgorithm.createDigest();
 
 		// Get the right OutputStream for update or creation
 		OutputStream outFile;
@@ -524,9 +692,9 @@ public class FileSyncManager {
 		}
 		boolean successful = false;
 		// Update the file
-		try (InputStream in = encManager.requestFile(keyFile.getClientFileByName(fileName));
+		try (InputStream in = session.requestFile(clientFile);
 			OutputStream out = new DigestOutputStream(outFile, messageDigest)) {
-			CopyTool.copyUntil(in, out, stopBoolean);
+			CopyTool.copyUntilOverlapped(in, out, stopBoolean);
 			successful = true;
 		} catch (IOException | InvalidClientFileException e) {
 			LOG.error(e);
@@ -536,7 +704,7 @@ public class FileSyncManager {
 			IOUtils.closeQuietly(outFile);
 		}
 		if (successful) {
-			String hexHash = HashUtils.toHex(messageDigest.digest());
+			String hexHash = hashAlgorithm.format(messageDigest.digest());
 			LocalHashes.getInstance().setHash(fileName, hexHash);
 		} else {
 			if (fileManager.removeFile(fileName) && update) {
@@ -1,15 +1,18 @@
 package org.fides.client.files;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.security.DigestInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.fides.tools.HashUtils;
+import org.fides.client.tools.FileHashCache;
 
 /**
  * Some utilities which have to do with files
@@ -21,53 +24,156 @@ public final class FileUtil {
 	 */
 	private static final Logger LOG = LogManager.getLogger(FileUtil.class);
 
-	private static final String HASH_ALGORITHM = "MD5";
+	/**
+	 * The size of the read buffer of each hashing thread
+	 */
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * Files of at least this size are mapped into memory when mapping is enabled
+	 */
+	private static final long MAPPED_THRESHOLD = 64L * 1024 * 1024;
+
+	/**
+	 * The size of the part of a file mapped at once
+	 */
+	private static final long MAPPED_WINDOW = 64L * 1024 * 1024;
+
+	/**
+	 * Whether large files are hashed through a memory mapping, enabled with the system property fides.hash.mapped. It is
+	 * off by default because some systems keep a mapped file locked until the mapping is garbage collected.
+	 */
+	private static final boolean MAP_LARGE_FILES = Boolean.getBoolean("fides.hash.mapped");
+
+	/**
+	 * A reusable direct buffer per thread, so reads go from the channel into the buffer without an extra copy
+	 */
+	private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
 
 	private FileUtil() {
 	}
 
 	/**
-	 * Generate a hash for a file
+	 * Generate a hash for a file. The file is only read when the {@link FileHashCache} has no hash for its current size,
+	 * modification time and file key.
 	 * 
 	 * @param file
 	 *            The {@link File} to generate the hash for
 	 * @return The hash, is null when file does not exist
 	 */
 	public static String generateFileHash(File file) {
+		return generateFileHash(file, HashAlgorithm.getDefault());
+	}
+
+	/**
+	 * Generate a hash for a file with a specific algorithm. The file is only read when the {@link FileHashCache} has no
+	 * hash of this algorithm for its current size, modification time and file key.
+	 * 
+	 * @param file
+	 *            The {@link File} to generate the hash for
+	 * @param algorithm
+	 *            The {@link HashAlgorithm} to use
+	 * @return The tagged hash, is null when file does not exist
+	 */
+	public static String generateFileHash(File file, HashAlgorithm algorithm) {
 		String fileHash = null;
 
 		if (file.exists()) {
-			MessageDigest messageDigest = createFileDigest();
-			// In order to make the hash or checksum we have to read the entire file
-			try (DigestInputStream dis = new DigestInputStream(new FileInputStream(file), messageDigest)) {
-				byte[] bytes = new byte[1000];
-				while (dis.read(bytes) != -1) {
-					// Do nothing
+			FileHashCache cache = FileHashCache.getInstance();
+			BasicFileAttributes before = readAttributes(file);
+			if (before != null) {
+				fileHash = cache.getHash(file, algorithm.name(), before);
+				if (fileHash != null) {
+					return fileHash;
 				}
+			}
+
+			boolean complete = false;
+			MessageDigest messageDigest = algorithm.createDigest();
+			// In order to make the hash or checksum we have to read the entire file
+			try {
+				digestFile(file, messageDigest, MAP_LARGE_FILES);
+				complete = true;
 			} catch (IOException e) {
 				// Should never happen
 				LOG.error(e);
 			}
-			fileHash = HashUtils.toHex(messageDigest.digest());
+			fileHash = algorithm.format(messageDigest.digest());
+
+			BasicFileAttributes after = readAttributes(file);
+			if (complete && before != null && after != null) {
+				cache.setHash(file, algorithm.name(), before, after, fileHash);
+			}
 		}
 
 		return fileHash;
 	}
 
 	/**
-	 * Create a {@link MessageDigest} for the use of creating hashes for files
+	 * Reads a whole file into a {@link MessageDigest} through a {@link FileChannel}
 	 * 
-	 * @return A {@link MessageDigest} for hashing files
+	 * @param file
+	 *            The {@link File} to read
+	 * @param messageDigest
+	 *            The {@link MessageDigest} to update
+	 * @param mapped
+	 *            true to map files larger than {@link #MAPPED_THRESHOLD} into memory instead of reading them
+	 * @throws IOException
+	 */
+	public static void digestFile(File file, MessageDigest messageDigest, boolean mapped) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (mapped && size >= MAPPED_THRESHOLD) {
+				for (long position = 0; position < size; position += MAPPED_WINDOW) {
+					messageDigest.update(channel.map(MapMode.READ_ONLY, position, Math.min(MAPPED_WINDOW, size - position)));
+				}
+			} else {
+				ByteBuffer buffer = BUFFERS.get();
+				buffer.clear();
+				while (channel.read(buffer) != -1) {
+					buffer.flip();
+					messageDigest.update(buffer);
+					buffer.clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the identity of a file as the {@link FileHashCache} sees it: the size, the modification time and the file
+	 * key. When the identity is the same at two moments the file did not change in between.
+	 * 
+	 * @param file
+	 *            The {@link File} to get the identity of
+	 * @return The identity, null if the attributes could not be read
+	 */
+	public static String fileIdentity(File file) {
+		BasicFileAttributes attributes = readAttributes(file);
+		if (attributes == null) {
+			return null;
+		}
+		return FileHashCache.identity(attributes);
+	}
+
+	/**
+	 * Reads the basic attributes of a file
+	 * 
+	 * @param file
+	 *            The {@link File} to read the attributes of
+	 * @return The {@link BasicFileAttributes}, null if they could not be read
 	 */
-	public static MessageDigest createFileDigest() {
-		MessageDigest messageDigest = null;
+	private static BasicFileAttributes readAttributes(File file) {
 		try {
-			messageDigest = MessageDigest.getInstance(HASH_ALGORITHM);
-		} catch (NoSuchAlgorithmException e) {
-			// Should never happen
-			LOG.error(e);
+			return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		} catch (IOException e) {
+			LOG.debug(e);
+			return null;
 		}
-		return messageDigest;
 	}
 
 }
@@ -0,0 +1,149 @@
+package org.fides.client.files;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.fides.tools.HashUtils;
+
+/**
+ * The algorithms used for the hashes of file contents. A stored hash is tagged with its algorithm, like
+ * <code>sha256:9f86...</code>, so hashes of different algorithms are never compared with each other. MD5 hashes are
+ * stored without a tag, as older versions did, so the hashes in existing keyfiles and local hashes keep their meaning.
+ */
+public enum HashAlgorithm {
+	/**
+	 * MD5, used by older versions, its hashes have no tag
+	 */
+	MD5(null, "MD5", 16),
+	/**
+	 * SHA-1
+	 */
+	SHA1("sha1", "SHA-1", 20),
+	/**
+	 * SHA-256, hardware accelerated on most current processors
+	 */
+	SHA256("sha256", "SHA-256", 32);
+
+	/**
+	 * Log for this class
+	 */
+	private static final Logger LOG = LogManager.getLogger(HashAlgorithm.class);
+
+	private static final char TAG_SEPARATOR = ':';
+
+	/**
+	 * The algorithm for new hashes, can be changed with the system property fides.hash.algorithm
+	 */
+	private static final HashAlgorithm DEFAULT = fromName(System.getProperty("fides.hash.algorithm"), SHA256);
+
+	private final String tag;
+
+	private final String digestName;
+
+	private final int digestLength;
+
+	/**
+	 * Constructor for HashAlgorithm
+	 *
+	 * @param tag
+	 *            The tag in front of stored hashes, null for no tag
+	 * @param digestName
+	 *            The name of the {@link MessageDigest} algorithm
+	 * @param digestLength
+	 *            The length of a digest in bytes
+	 */
+	private HashAlgorithm(String tag, String digestName, int digestLength) {
+		this.tag = tag;
+		this.digestName = digestName;
+		this.digestLength = digestLength;
+	}
+
+	/**
+	 * Returns the tag in front of stored hashes of this algorithm
+	 *
+	 * @return The tag, null for no tag
+	 */
+	public String getTag() {
+		return tag;
+	}
+
+	/**
+	 * Returns the length of a digest of this algorithm
+	 *
+	 * @return The length in bytes
+	 */
+	public int getDigestLength() {
+		return digestLength;
+	}
+
+	/**
+	 * Creates a {@link MessageDigest} for this algorithm
+	 *
+	 * @return The {@link MessageDigest}, null if not available
+	 */
+	public MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance(digestName);
+		} catch (NoSuchAlgorithmException e) {
+			// Should never happen, all are required algorithms
+			LOG.error(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Formats a digest as a stored hash, tagged with this algorithm
+	 *
+	 * @param digest
+	 *            The result of the {@link MessageDigest}
+	 * @return The hash to store
+	 */
+	public String format(byte[] digest) {
+		String hex = HashUtils.toHex(digest);
+		return tag == null ? hex : tag + TAG_SEPARATOR + hex;
+	}
+
+	/**
+	 * Returns the algorithm of a stored hash
+	 *
+	 * @param hash
+	 *            The stored hash
+	 * @return The {@link HashAlgorithm}, MD5 for hashes without tag and null for an unknown tag
+	 */
+	public static HashAlgorithm fromHash(String hash) {
+		int separator = StringUtils.indexOf(hash, TAG_SEPARATOR);
+		if (separator < 0) {
+			return MD5;
+		}
+		String hashTag = hash.substring(0, separator);
+		for (HashAlgorithm algorithm : values()) {
+			if (hashTag.equals(algorithm.tag)) {
+				return algorithm;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the algorithm for new hashes
+	 *
+	 * @return The default {@link HashAlgorithm}
+	 */
+	public static HashAlgorithm getDefault() {
+		return DEFAULT;
+	}
+
+	private static HashAlgorithm fromName(String name, HashAlgorithm fallback) {
+		if (StringUtils.isNotBlank(name)) {
+			try {
+				return valueOf(name.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				LOG.error("Unknown hash algorithm " + name);
+			}
+		}
+		return fallback;
+	}
+}
@@ -0,0 +1,121 @@
+package org.fides.client.files;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Hashes files on a bounded pool of threads. The amount of threads follows the amount of cores, while the amount of
+ * files opened at the same time has its own limit, which should be low for spinning disks where parallel reads only
+ * cause seeking.
+ */
+public class HashPool {
+	/**
+	 * Log for this class
+	 */
+	private static final Logger LOG = LogManager.getLogger(HashPool.class);
+
+	private final int threads;
+
+	private final Semaphore openFiles;
+
+	/**
+	 * Constructor for HashPool
+	 *
+	 * @param threads
+	 *            The amount of hashing threads
+	 * @param maxOpenFiles
+	 *            The maximum amount of files open at the same time
+	 */
+	public HashPool(int threads, int maxOpenFiles) {
+		if (threads < 1 || maxOpenFiles < 1) {
+			throw new IllegalArgumentException("At least one thread and one open file are needed");
+		}
+		this.threads = threads;
+		this.openFiles = new Semaphore(maxOpenFiles);
+	}
+
+	/**
+	 * Hashes the files with {@link FileUtil#generateFileHash(File, HashAlgorithm)} and waits until all are done
+	 *
+	 * @param directory
+	 *            The directory the names are relative to
+	 * @param files
+	 *            The local names of the files to hash, mapped to the {@link HashAlgorithm} to use
+	 * @return The hashes mapped by file name, files which could not be hashed are missing
+	 */
+	public Map<String, String> hashFiles(final File directory, Map<String, HashAlgorithm> files) {
+		final Map<String, String> hashes = new ConcurrentHashMap<>();
+		if (files.isEmpty()) {
+			return hashes;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, files.size()), new HashThreadFactory());
+		List<Future<?>> futures = new ArrayList<>();
+		for (final Entry<String, HashAlgorithm> file : files.entrySet()) {
+			final String fileName = file.getKey();
+			final HashAlgorithm algorithm = file.getValue();
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					openFiles.acquire();
+					try {
+						String hash = FileUtil.generateFileHash(new File(directory, fileName), algorithm);
+						if (hash != null) {
+							hashes.put(fileName, hash);
+						}
+					} finally {
+						openFiles.release();
+					}
+					return null;
+				}
+			}));
+		}
+		executor.shutdown();
+
+		try {
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					LOG.error(e);
+				}
+			}
+		} catch (InterruptedException e) {
+			LOG.error("Interrupted while waiting for the hashes");
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		return hashes;
+	}
+
+	/**
+	 * Creates named daemon threads for hashing
+	 */
+	private static final class HashThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Hash Thread " + count.incrementAndGet());
+			thread.setDaemon(true);
+			// Hashing should not slow down the rest of the system
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	}
+}
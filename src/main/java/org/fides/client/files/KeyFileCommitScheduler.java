@@ -0,0 +1,195 @@
+package org.fides.client.files;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.fides.client.encryption.EncryptionManager;
+import org.fides.client.files.data.KeyFile;
+import org.fides.client.files.data.KeyFileUpdate;
+import org.fides.client.tools.LocalHashes;
+
+/**
+ * Groups the {@link KeyFileUpdate}s of finished transfers so they are committed to the server with a single upload of
+ * the {@link KeyFile}. A commit is due when enough changes or bytes are pending, or when the oldest pending change has
+ * waited long enough. The {@link LocalHashes} of the changed files are only updated after the commit succeeded, until
+ * then the pending changes are applied to every {@link KeyFile} requested from the server.
+ */
+public class KeyFileCommitScheduler {
+	/**
+	 * Log for this class
+	 */
+	private static final Logger LOG = LogManager.getLogger(KeyFileCommitScheduler.class);
+
+	/**
+	 * The default amount of pending changes which triggers a commit
+	 */
+	public static final int DEFAULT_MAX_UPDATES = 50;
+
+	/**
+	 * The default amount of transferred bytes which triggers a commit
+	 */
+	public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * The default time in milliseconds a change may be pending
+	 */
+	public static final long DEFAULT_MAX_DELAY = TimeUnit.SECONDS.toMillis(5);
+
+	private final EncryptionManager encManager;
+
+	private final int maxUpdates;
+
+	private final long maxBytes;
+
+	private final long maxDelay;
+
+	private final List<KeyFileUpdate> pending = new ArrayList<>();
+
+	private long pendingBytes;
+
+	private long firstPendingTime;
+
+	/**
+	 * Constructor for KeyFileCommitScheduler with the default limits
+	 *
+	 * @param encManager
+	 *            The {@link EncryptionManager} to upload the {@link KeyFile} with
+	 */
+	public KeyFileCommitScheduler(EncryptionManager encManager) {
+		this(encManager, DEFAULT_MAX_UPDATES, DEFAULT_MAX_BYTES, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * Constructor for KeyFileCommitScheduler
+	 *
+	 * @param encManager
+	 *            The {@link EncryptionManager} to upload the {@link KeyFile} with
+	 * @param maxUpdates
+	 *            The amount of pending changes which triggers a commit
+	 * @param maxBytes
+	 *            The amount of transferred bytes which triggers a commit
+	 * @param maxDelay
+	 *            The time in milliseconds after which a pending change triggers a commit
+	 */
+	public KeyFileCommitScheduler(EncryptionManager encManager, int maxUpdates, long maxBytes, long maxDelay) {
+		this.encManager = encManager;
+		this.maxUpdates = maxUpdates;
+		this.maxBytes = maxBytes;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Adds the changes of a finished transfer
+	 *
+	 * @param updates
+	 *            The {@link KeyFileUpdate}s in the order they should be applied
+	 */
+	public synchronized void schedule(List<KeyFileUpdate> updates) {
+		if (updates.isEmpty()) {
+			return;
+		}
+		if (pending.isEmpty()) {
+			firstPendingTime = System.currentTimeMillis();
+		}
+		for (KeyFileUpdate update : updates) {
+			pending.add(update);
+			pendingBytes += update.getSize();
+		}
+	}
+
+	/**
+	 * Whether the pending changes should be committed now
+	 *
+	 * @return true if the amount of changes, the amount of bytes or the waiting time reached its limit
+	 */
+	public synchronized boolean isCommitDue() {
+		return !pending.isEmpty()
+			&& (pending.size() >= maxUpdates || pendingBytes >= maxBytes || System.currentTimeMillis() - firstPendingTime >= maxDelay);
+	}
+
+	/**
+	 * Whether there are changes waiting for a commit
+	 *
+	 * @return true if there are pending changes
+	 */
+	public synchronized boolean hasPending() {
+		return !pending.isEmpty();
+	}
+
+	/**
+	 * Returns a copy of the pending changes
+	 *
+	 * @return The pending {@link KeyFileUpdate}s in the order they will be applied
+	 */
+	public synchronized List<KeyFileUpdate> getPending() {
+		return new ArrayList<>(pending);
+	}
+
+	/**
+	 * Applies the pending changes to a {@link KeyFile}, so a {@link KeyFile} requested from the server contains the
+	 * transfers which are not committed yet. Only the shards of the changed files are loaded for it.
+	 *
+	 * @param keyFile
+	 *            The {@link KeyFile} to change
+	 * @return true if the changes are applied, false if the shards of the changed files could not be loaded
+	 */
+	public synchronized boolean applyPending(KeyFile keyFile) {
+		List<String> names = new ArrayList<>();
+		for (KeyFileUpdate update : pending) {
+			names.add(update.getName());
+		}
+		if (!keyFile.loadShards(names)) {
+			LOG.error("Could not load the keyfile shards of " + pending.size() + " changes");
+			return false;
+		}
+		for (KeyFileUpdate update : pending) {
+			update.applyTo(keyFile);
+		}
+		return true;
+	}
+
+	/**
+	 * Applies the pending changes to the {@link KeyFile} and uploads it once. The {@link EncryptionManager} has to be
+	 * connected. If the upload fails the changes stay pending for the next commit.
+	 *
+	 * @param keyFile
+	 *            The {@link KeyFile} to update, the latest version of the server
+	 * @return true if there was nothing to commit or the {@link KeyFile} was uploaded successfully
+	 */
+	public synchronized boolean commit(KeyFile keyFile) {
+		if (pending.isEmpty()) {
+			return true;
+		}
+		if (!applyPending(keyFile)) {
+			return false;
+		}
+
+		// Upload the keyfile, or only its journal
+		if (!encManager.updateKeyFile(keyFile, pending)) {
+			LOG.error("Could not commit " + pending.size() + " changes to the keyfile");
+			return false;
+		}
+
+		// If the keyfile was uploaded successfully, update the local hashes.
+		LocalHashes localHashes = LocalHashes.getInstance();
+		for (KeyFileUpdate update : pending) {
+			if (update.getType() == KeyFileUpdate.Type.REMOVE) {
+				localHashes.removeHash(update.getName());
+			} else {
+				localHashes.setHash(update.getName(), update.getHash());
+			}
+		}
+		LOG.debug("Committed " + pending.size() + " changes (" + pendingBytes + " bytes) to the keyfile");
+		pending.clear();
+		pendingBytes = 0;
+		return true;
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+}
@@ -0,0 +1,27 @@
+package org.fides.client.files;
+
+import java.util.TimerTask;
+
+/**
+ * A {@link TimerTask} which periodical commits the pending keyfile changes when a commit is due
+ */
+public final class KeyFileCommitTask extends TimerTask {
+
+	private final FileSyncManager syncManager;
+
+	/**
+	 * Constructor for KeyFileCommitTask
+	 * 
+	 * @param syncManager
+	 *            The {@link FileSyncManager} used for committing
+	 */
+	public KeyFileCommitTask(FileSyncManager syncManager) {
+		this.syncManager = syncManager;
+	}
+
+	@Override
+	public void run() {
+		syncManager.commitPendingUpdates(false);
+	}
+
+}
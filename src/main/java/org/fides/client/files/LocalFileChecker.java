@@ -5,21 +5,24 @@ import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileSystems;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.lang3.StringUtils;
@@ -28,7 +31,8 @@ import org.apache.logging.log4j.Logger;
 import org.fides.client.tools.UserProperties;
 
 /**
- * Checks the local file system for changes
+ * Checks the local file system for changes. The events are coalesced per path, a path is only handled once no new event
+ * for it arrived during the quiet period, so a burst of events for one file results in a single check.
  * 
  */
 public class LocalFileChecker extends Thread {
@@ -39,9 +43,26 @@ public class LocalFileChecker extends Thread {
 
 	private final FileSyncManager syncManager;
 
-	private final Map<WatchKey, Path> keys = new HashMap<>();
+	/**
+	 * A path which keeps changing is handled after this many quiet periods anyway
+	 */
+	private static final int MAX_DELAY_PERIODS = 20;
 
-	private final BlockingQueue<EventPair> eventsQueue = new LinkedBlockingQueue<>();
+	/**
+	 * The watched directories by their {@link WatchKey}, they are registered from the walking threads as well
+	 */
+	private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+
+	/**
+	 * The paths waiting for their quiet period to pass, ordered by their last event
+	 */
+	private final LinkedHashMap<Path, PendingChange> pendingChanges = new LinkedHashMap<>();
+
+	/**
+	 * The quiet period in nanoseconds, the times of the events are taken from {@link System#nanoTime()} so a change of
+	 * the clock does not hold changes back
+	 */
+	private final long quietPeriod;
 
 	private final Thread handleThread;
 
@@ -58,13 +79,14 @@ public class LocalFileChecker extends Thread {
 	public LocalFileChecker(FileSyncManager syncManager) {
 		super("LocalFileChecker Thread");
 		this.syncManager = syncManager;
+		this.quietPeriod = TimeUnit.MILLISECONDS.toNanos(UserProperties.getInstance().getQuietPeriodInMillis());
 		handleThread = new Thread(new Runnable() {
 			@Override
 			public void run() {
 				try {
 					while (continueBoolean.get()) {
-						EventPair pair = eventsQueue.take();
-						handleEvent(pair.kind, pair.child);
+						List<PendingChange> changes = takeSettledChanges();
+						handleEvents(changes);
 					}
 				} catch (InterruptedException e) {
 					LOG.error("LocalFileChecker handle interrupted: " + e);
@@ -116,6 +138,7 @@ public class LocalFileChecker extends Thread {
 	public void stopHandling() {
 		continueBoolean.set(false);
 		this.interrupt();
+		handleThread.interrupt();
 	}
 
 	/**
@@ -132,62 +155,113 @@ public class LocalFileChecker extends Thread {
 		}
 
 		for (WatchEvent<?> event : key.pollEvents()) {
+			// We can ignore an Overflow
+			if (event.kind() == OVERFLOW) {
+				continue;
+			}
+
 			// Get the right location
 			Path file = (Path) event.context();
 			Path child = dir.resolve(file);
-			EventPair pair = new EventPair(event.kind(), child);
+			LOG.debug(event.kind() + " : " + child);
 
-			if (!eventsQueue.contains(pair)) {
-				eventsQueue.add(pair);
+			if (event.kind() == ENTRY_CREATE && Files.isDirectory(child)) {
+				// We want to watch it from now on, right away so no events in it are missed
+				try {
+					register(child);
+				} catch (IOException e) {
+					LOG.error(e);
+				}
+				checkDirectory(child);
+			} else {
+				addChange(child, event.kind() == ENTRY_DELETE);
 			}
 		}
 	}
 
 	/**
-	 * Handles a {@link WatchEvent}
+	 * Adds an event for a path to the pending changes, or merges it with the pending change of the path
 	 * 
-	 * @param kind
-	 *            The ind of event to handle
 	 * @param child
 	 *            The location of the event
+	 * @param deleted
+	 *            Whether the event is a delete
 	 */
-	private void handleEvent(WatchEvent.Kind<?> kind, Path child) {
-		// We can ignore an Overflow
-		if (kind == OVERFLOW) {
-			return;
+	private void addChange(Path child, boolean deleted) {
+		long now = System.nanoTime();
+		synchronized (pendingChanges) {
+			PendingChange change = pendingChanges.get(child);
+			if (change == null) {
+				change = new PendingChange(child, now);
+				pendingChanges.put(child, change);
+			} else if (now - change.firstEvent < quietPeriod * MAX_DELAY_PERIODS) {
+				// Move it to the end, the order stays the order of the last events
+				pendingChanges.remove(child);
+				change.lastEvent = now;
+				pendingChanges.put(child, change);
+			}
+			change.deleted |= deleted;
+			pendingChanges.notifyAll();
 		}
+	}
 
-		LOG.debug(kind + " : " + child);
-
-		if (Files.isRegularFile(child)) {
-			// Transform string to local space and upload (or remove)
-			String localName = FileManager.fileToLocalName(child.toFile());
-			if (!StringUtils.isBlank(localName)) {
-				syncManager.checkClientSideFile(localName);
-			}
-		} else if (Files.isDirectory(child)) {
-			// Change is a directory
-			if (kind == ENTRY_CREATE) {
-				// We want to watch it from now on
-				try {
-					WatchKey newKey = child.register(watcher,
-						ENTRY_CREATE,
-						ENTRY_DELETE,
-						ENTRY_MODIFY);
-					keys.put(newKey, child);
-				} catch (IOException e) {
-					e.printStackTrace();
-					LOG.error(e);
+	/**
+	 * Waits until the oldest pending change has been quiet for the quiet period and removes all settled changes
+	 * 
+	 * @return The settled {@link PendingChange}s, at least one
+	 * @throws InterruptedException
+	 */
+	private List<PendingChange> takeSettledChanges() throws InterruptedException {
+		List<PendingChange> settled = new ArrayList<>();
+		synchronized (pendingChanges) {
+			while (settled.isEmpty()) {
+				Iterator<PendingChange> iterator = pendingChanges.values().iterator();
+				long waitTime = 0;
+				while (iterator.hasNext()) {
+					PendingChange change = iterator.next();
+					waitTime = change.lastEvent + quietPeriod - System.nanoTime();
+					if (waitTime > 0) {
+						// The rest changed even later
+						break;
+					}
+					iterator.remove();
+					settled.add(change);
+				}
+				if (settled.isEmpty() && waitTime > 0) {
+					TimeUnit.NANOSECONDS.timedWait(pendingChanges, waitTime);
+				} else if (settled.isEmpty()) {
+					// Nothing is pending, waits until notified
+					pendingChanges.wait();
 				}
-				checkDirectory(child);
 			}
-		} else if (kind == ENTRY_DELETE) {
-			// Transform string to local space and remove
-			String localName = FileManager.fileToLocalName(child.toFile());
-			if (!StringUtils.isBlank(localName)) {
-				syncManager.checkClientSideFile(localName);
+		}
+		return settled;
+	}
+
+	/**
+	 * Handles settled changes, by checking the files in their current state in one sync session
+	 * 
+	 * @param changes
+	 *            The {@link PendingChange}s to handle
+	 */
+	private void handleEvents(List<PendingChange> changes) {
+		Set<String> localNames = new LinkedHashSet<>();
+		for (PendingChange change : changes) {
+			Path child = change.path;
+			LOG.debug("Settled : " + child);
+
+			// Directories are already handled when they are created
+			if (Files.isRegularFile(child) || (change.deleted && !Files.exists(child))) {
+				// Transform string to local space and upload (or remove)
+				String localName = FileManager.fileToLocalName(child.toFile());
+				if (!StringUtils.isBlank(localName)) {
+					localNames.add(localName);
+				}
 			}
 		}
+		if (!localNames.isEmpty()) {
+			syncManager.checkClientSideFiles(localNames);
+		}
 	}
 
 	/**
@@ -196,43 +270,40 @@ public class LocalFileChecker extends Thread {
 	 * @param child
 	 *            The folder to check
 	 */
-	private void checkDirectory(Path child) {
+	private void checkDirectory(final Path child) {
 		// It is still possible that is some way files are added before it being added, this will check the
 		// change directory
-		File subPathFile = child.toFile();
-		File[] fileList = subPathFile.listFiles();
-		if (fileList != null) {
-			for (File subFile : fileList) {
-				checkSubPath(subFile.toPath());
+		DirectoryWalker.walk(child, new DirectoryWalker.Visitor() {
+			@Override
+			public boolean visitDirectory(Path dir, BasicFileAttributes attributes, Map<Path, BasicFileAttributes> files) {
+				if (!dir.equals(child)) {
+					try {
+						register(dir);
+					} catch (IOException e) {
+						LOG.error(e);
+					}
+				}
+				for (Map.Entry<Path, BasicFileAttributes> file : files.entrySet()) {
+					if (file.getValue().isRegularFile()) {
+						// Handled like a change of the file
+						addChange(file.getKey(), false);
+					}
+				}
+				return true;
 			}
-		}
+		});
 	}
 
 	/**
-	 * When Recursively checks a directory
+	 * Watches a directory
 	 * 
-	 * @param subPath
-	 *            The directory to check
+	 * @param dir
+	 *            The directory to watch
+	 * @throws IOException
 	 */
-	private void checkSubPath(Path subPath) {
-		if (Files.isRegularFile(subPath)) {
-			// Transform string to local space and upload (or remove)
-			String localName = FileManager.fileToLocalName(subPath.toFile());
-			if (!StringUtils.isBlank(localName)) {
-				syncManager.checkClientSideFile(localName);
-			}
-		} else if (Files.isDirectory(subPath)) {
-			try {
-				WatchKey newKey = subPath.register(watcher,
-					ENTRY_CREATE,
-					ENTRY_DELETE,
-					ENTRY_MODIFY);
-				keys.put(newKey, subPath);
-			} catch (IOException e) {
-				LOG.error(e);
-			}
-			checkDirectory(subPath);
-		}
+	private void register(Path dir) throws IOException {
+		WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+		keys.put(key, dir);
 	}
 
 	/**
@@ -244,66 +315,45 @@ public class LocalFileChecker extends Thread {
 		// Create a watcher and watch the file directory
 		Path basePath = UserProperties.getInstance().getFileDirectory().toPath();
 		watcher = FileSystems.getDefault().newWatchService();
-		WatchKey key = basePath.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-		keys.put(key, basePath);
+		register(basePath);
 
-		// Also watch all sub directories
-		Files.walkFileTree(basePath, new SimpleFileVisitor<Path>() {
+		// Also watch all sub directories, the walk registers them from several threads
+		final List<IOException> failures = Collections.synchronizedList(new ArrayList<IOException>());
+		DirectoryWalker.walk(basePath, new DirectoryWalker.Visitor() {
 			@Override
-			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-				WatchKey subKey = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-				keys.put(subKey, dir);
-				return FileVisitResult.CONTINUE;
+			public boolean visitDirectory(Path dir, BasicFileAttributes attributes, Map<Path, BasicFileAttributes> files) {
+				try {
+					register(dir);
+					return true;
+				} catch (IOException e) {
+					failures.add(e);
+					return false;
+				}
 			}
 		});
+		if (!failures.isEmpty()) {
+			throw failures.get(0);
+		}
 	}
 
 	/**
-	 * A class containing and {@link WatchEvent} and a {@link Path}
+	 * The coalesced events of a path which did not settle yet
 	 * 
 	 */
-	private static final class EventPair {
-		private final WatchEvent.Kind<?> kind;
-
-		private final Path child;
-
-		public EventPair(WatchEvent.Kind<?> kind, Path child) {
-			this.kind = kind;
-			this.child = child;
-		}
+	private static final class PendingChange {
+		private final Path path;
 
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + child.hashCode();
-			result = prime * result + kind.name().hashCode();
-			return result;
-		}
+		private final long firstEvent;
 
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj) {
-				return true;
-			}
-			if (obj == null) {
-				return false;
-			}
-			if (getClass() != obj.getClass()) {
-				return false;
-			}
-			EventPair other = (EventPair) obj;
+		private long lastEvent;
 
-			if (!child.equals(other.child)) {
-				return false;
-			}
-			if (!kind.name().equals(other.kind.name())) {
-				return false;
-			}
+		private boolean deleted;
 
-			return true;
+		public PendingChange(Path path, long time) {
+			this.path = path;
+			this.firstEvent = time;
+			this.lastEvent = time;
 		}
-
 	}
 
 }
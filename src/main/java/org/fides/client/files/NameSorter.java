@@ -0,0 +1,258 @@
+package org.fides.client.files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Sorts local file names in {@link #WALK_ORDER} with a limited amount of memory. The names are kept in memory until
+ * they pass the memory budget, then they are sorted and spilled to a temporary file as a run. The sorted names are
+ * read by merging the runs, so only a buffer per run is in memory. Closing the sorter removes the runs.
+ */
+public class NameSorter implements Closeable {
+	/**
+	 * Log for this class
+	 */
+	private static final Logger LOG = LogManager.getLogger(NameSorter.class);
+
+	/**
+	 * The order of a walk through the directories which sorts the entries of every directory by name: the names are
+	 * compared per directory level, as if the separator is smaller than every other character
+	 */
+	public static final Comparator<String> WALK_ORDER = new Comparator<String>() {
+		@Override
+		public int compare(String first, String second) {
+			int length = Math.min(first.length(), second.length());
+			for (int i = 0; i < length; i++) {
+				char a = first.charAt(i);
+				char b = second.charAt(i);
+				if (a != b) {
+					if (a == SEPARATOR) {
+						return -1;
+					}
+					if (b == SEPARATOR) {
+						return 1;
+					}
+					return a - b;
+				}
+			}
+			return first.length() - second.length();
+		}
+	};
+
+	private static final char SEPARATOR = '/';
+
+	/**
+	 * The estimated memory of a name besides its characters
+	 */
+	private static final int NAME_OVERHEAD = 64;
+
+	private static final int RUN_BUFFER_SIZE = 64 * 1024;
+
+	private final long memoryBudget;
+
+	private final List<String> names = new ArrayList<>();
+
+	private long memory = 0;
+
+	private final List<File> runs = new ArrayList<>();
+
+	private final List<Closeable> readers = new ArrayList<>();
+
+	private boolean failed = false;
+
+	/**
+	 * Constructor for NameSorter
+	 *
+	 * @param memoryBudget
+	 *            The estimated memory in bytes of the names kept in memory before they are spilled
+	 */
+	public NameSorter(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Adds a name to sort
+	 *
+	 * @param name
+	 *            The name
+	 * @throws IOException
+	 *             if the names could not be spilled
+	 */
+	public void add(String name) throws IOException {
+		names.add(name);
+		memory += NAME_OVERHEAD + 2L * name.length();
+		if (memory > memoryBudget) {
+			spill();
+		}
+	}
+
+	/**
+	 * Returns the amount of runs spilled to temporary files
+	 *
+	 * @return The amount of runs
+	 */
+	public int getRunCount() {
+		return runs.size();
+	}
+
+	/**
+	 * Returns the names in {@link #WALK_ORDER}, no names can be added after this
+	 *
+	 * @return The {@link Iterator} of the sorted names
+	 * @throws IOException
+	 *             if the runs could not be written or read
+	 */
+	public Iterator<String> sorted() throws IOException {
+		if (runs.isEmpty()) {
+			Collections.sort(names, WALK_ORDER);
+			return names.iterator();
+		}
+		spill();
+		final PriorityQueue<RunReader> queue = new PriorityQueue<>(runs.size(), new Comparator<RunReader>() {
+			@Override
+			public int compare(RunReader first, RunReader second) {
+				return WALK_ORDER.compare(first.name, second.name);
+			}
+		});
+		for (File run : runs) {
+			RunReader reader = new RunReader(run);
+			readers.add(reader);
+			if (reader.advance()) {
+				queue.add(reader);
+			}
+		}
+		return new Iterator<String>() {
+			@Override
+			public boolean hasNext() {
+				return !queue.isEmpty();
+			}
+
+			@Override
+			public String next() {
+				RunReader reader = queue.poll();
+				if (reader == null) {
+					throw new NoSuchElementException();
+				}
+				String name = reader.name;
+				try {
+					if (reader.advance()) {
+						queue.add(reader);
+					}
+				} catch (IOException e) {
+					// Names of the other runs may not be given before the ones of this run, so it ends here
+					LOG.error(e);
+					failed = true;
+					queue.clear();
+				}
+				return name;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Whether reading a run failed, the sorted names ended before all were given then
+	 *
+	 * @return true if reading failed
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * Removes the temporary files of the runs
+	 */
+	@Override
+	public void close() {
+		for (Closeable reader : readers) {
+			IOUtils.closeQuietly(reader);
+		}
+		readers.clear();
+		for (File run : runs) {
+			if (!run.delete()) {
+				LOG.warn("Could not delete " + run);
+			}
+		}
+		runs.clear();
+		names.clear();
+	}
+
+	/**
+	 * Sorts the names in memory and writes them to a new run
+	 *
+	 * @throws IOException
+	 */
+	private void spill() throws IOException {
+		if (names.isEmpty()) {
+			return;
+		}
+		Collections.sort(names, WALK_ORDER);
+		File run = File.createTempFile("fides-names", ".run");
+		run.deleteOnExit();
+		runs.add(run);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_SIZE))) {
+			for (String name : names) {
+				out.writeUTF(name);
+			}
+		}
+		names.clear();
+		memory = 0;
+	}
+
+	/**
+	 * Reads the names of a run one at a time
+	 */
+	private static final class RunReader implements Closeable {
+		private final DataInputStream in;
+
+		private String name;
+
+		private RunReader(File run) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), RUN_BUFFER_SIZE));
+		}
+
+		/**
+		 * Reads the next name of the run
+		 *
+		 * @return true if a name was read, false at the end of the run
+		 * @throws IOException
+		 */
+		private boolean advance() throws IOException {
+			try {
+				name = in.readUTF();
+				return true;
+			} catch (EOFException e) {
+				close();
+				return false;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package org.fides.client.files;
+
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.fides.client.connector.ServerConnector;
+import org.fides.client.encryption.EncryptionManager;
+import org.fides.client.files.data.FileCompareResult;
+import org.fides.client.files.data.KeyFile;
+import org.fides.client.files.data.KeyFileUpdate;
+
+/**
+ * Runs the transfers of a sync on a bounded pool of workers. Every worker uses its own {@link EncryptionManager} session
+ * with its own {@link ServerConnector}, so the transfers of independent files do not wait for each other. The changes to
+ * the {@link KeyFile} are not uploaded by the workers, they are handed to a {@link KeyFileCommitScheduler} in the order
+ * of the results, which commits them in groups while the transfers continue.
+ * <p>
+ * The workers are kept between the syncs, they are started with the first transfer and stopped with
+ * {@link #shutdown()}.
+ */
+public class TransferEngine {
+	/**
+	 * Log for this class
+	 */
+	private static final Logger LOG = LogManager.getLogger(TransferEngine.class);
+
+	/**
+	 * The default amount of parallel transfers
+	 */
+	public static final int DEFAULT_WORKERS = 4;
+
+	/**
+	 * The amount of results taken ahead for each worker
+	 */
+	private static final int RESULTS_PER_WORKER = 4;
+
+	/**
+	 * Handles a single {@link FileCompareResult} on a worker
+	 */
+	public interface TransferHandler {
+		/**
+		 * Handles a {@link FileCompareResult}
+		 *
+		 * @param result
+		 *            The {@link FileCompareResult} to handle
+		 * @param session
+		 *            The connected {@link EncryptionManager} of the worker
+		 * @param updates
+		 *            The list to add the resulting {@link KeyFileUpdate}s to
+		 * @return true if successfully handled, otherwise false
+		 */
+		boolean handle(FileCompareResult result, EncryptionManager session, List<KeyFileUpdate> updates);
+	}
+
+	private final EncryptionManager encManager;
+
+	private final int workers;
+
+	private final AtomicBoolean stopBoolean;
+
+	/**
+	 * The workers, null when not started or shut down
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * Constructor for TransferEngine
+	 *
+	 * @param encManager
+	 *            The {@link EncryptionManager} the worker sessions are created from
+	 * @param workers
+	 *            The maximum amount of parallel transfers
+	 * @param stopBoolean
+	 *            When true, transfers which have not started yet are skipped
+	 */
+	public TransferEngine(EncryptionManager encManager, int workers, AtomicBoolean stopBoolean) {
+		if (workers < 1) {
+			throw new IllegalArgumentException("At least one worker is needed");
+		}
+		this.encManager = encManager;
+		this.workers = workers;
+		this.stopBoolean = stopBoolean;
+	}
+
+	/**
+	 * Handles all results on the workers and waits until they are done
+	 *
+	 * @param results
+	 *            The {@link FileCompareResult}s to handle
+	 * @param handler
+	 *            The {@link TransferHandler} handling a single result
+	 * @param scheduler
+	 *            The {@link KeyFileCommitScheduler} the {@link KeyFileUpdate}s of successful transfers are scheduled on
+	 * @param keyFile
+	 *            The {@link KeyFile} a due commit is applied to, the {@link EncryptionManager} has to be connected
+	 * @return true if all results were handled successfully
+	 */
+	public boolean transfer(Collection<FileCompareResult> results, final TransferHandler handler, KeyFileCommitScheduler scheduler,
+		KeyFile keyFile) {
+		return transfer(results.iterator(), handler, scheduler, keyFile);
+	}
+
+	/**
+	 * Handles the results on the workers while they are taken from the {@link Iterator}, and waits until they are done.
+	 * The results can be produced while the first transfers run: at most {@link #RESULTS_PER_WORKER} results per worker
+	 * are taken ahead of the oldest unfinished transfer. The {@link KeyFileUpdate}s are scheduled in the order of the
+	 * results, a due commit is done on the calling thread between taking results.
+	 *
+	 * @param results
+	 *            The {@link Iterator} of the {@link FileCompareResult}s to handle
+	 * @param handler
+	 *            The {@link TransferHandler} handling a single result
+	 * @param scheduler
+	 *            The {@link KeyFileCommitScheduler} the {@link KeyFileUpdate}s of successful transfers are scheduled on
+	 * @param keyFile
+	 *            The {@link KeyFile} a due commit is applied to, the {@link EncryptionManager} has to be connected
+	 * @return true if all results were handled successfully
+	 */
+	public boolean transfer(Iterator<FileCompareResult> results, final TransferHandler handler, KeyFileCommitScheduler scheduler,
+		KeyFile keyFile) {
+		if (!results.hasNext()) {
+			return true;
+		}
+
+		// The sessions are created when the transfers need them, up to one per worker
+		int sessionCount = 0;
+		final BlockingQueue<EncryptionManager> sessions = new LinkedBlockingQueue<>();
+
+		ExecutorService executor = getExecutor();
+		Queue<Future<Boolean>> futures = new ArrayDeque<>();
+		Queue<List<KeyFileUpdate>> resultUpdates = new ArrayDeque<>();
+		boolean successful = true;
+		try {
+			while (results.hasNext()) {
+				if (stopBoolean.get()) {
+					successful = false;
+					break;
+				}
+				final FileCompareResult result = results.next();
+				if (sessionCount < workers) {
+					sessions.add(encManager.createSession());
+					sessionCount++;
+				}
+				final List<KeyFileUpdate> transferUpdates = new ArrayList<>();
+				resultUpdates.add(transferUpdates);
+				futures.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						if (stopBoolean.get()) {
+							return false;
+						}
+						EncryptionManager session = sessions.take();
+						try {
+							return connect(session) && handler.handle(result, session, transferUpdates);
+						} finally {
+							// Returns the connection to the pool, or closes it when the transfer left it unusable
+							session.getConnector().disconnect();
+							sessions.add(session);
+						}
+					}
+				}));
+
+				// Finished transfers are scheduled right away, and the results are not taken too far ahead
+				while (!futures.isEmpty() && (futures.peek().isDone() || futures.size() >= workers * RESULTS_PER_WORKER)) {
+					successful &= finishOldest(futures, resultUpdates, scheduler, keyFile);
+				}
+			}
+
+			while (!futures.isEmpty()) {
+				successful &= finishOldest(futures, resultUpdates, scheduler, keyFile);
+			}
+			return successful;
+		} catch (InterruptedException e) {
+			LOG.error("Interrupted while waiting for the transfers");
+			// The workers are shared, only the transfers of this call are stopped
+			for (Future<Boolean> future : futures) {
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the workers, starting them when they are not running
+	 *
+	 * @return The {@link ExecutorService} of the workers
+	 */
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(workers, new WorkerThreadFactory());
+		}
+		return executor;
+	}
+
+	/**
+	 * Stops the workers when the application stops, the transfers which are running are finished. The next transfer
+	 * starts new workers.
+	 */
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Waits for the oldest transfer and schedules its {@link KeyFileUpdate}s when it was successful
+	 *
+	 * @param futures
+	 *            The unfinished transfers, in the order of the results
+	 * @param resultUpdates
+	 *            The {@link KeyFileUpdate}s of the unfinished transfers, in the same order
+	 * @param scheduler
+	 *            The {@link KeyFileCommitScheduler} to schedule on
+	 * @param keyFile
+	 *            The {@link KeyFile} a due commit is applied to
+	 * @return true if the transfer was successful
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	private static boolean finishOldest(Queue<Future<Boolean>> futures, Queue<List<KeyFileUpdate>> resultUpdates,
+		KeyFileCommitScheduler scheduler, KeyFile keyFile) throws InterruptedException {
+		List<KeyFileUpdate> updates = resultUpdates.poll();
+		try {
+			if (futures.poll().get()) {
+				scheduler.schedule(updates);
+				if (scheduler.isCommitDue()) {
+					// A failed commit stays pending and is retried with the next one
+					scheduler.commit(keyFile);
+				}
+				return true;
+			}
+		} catch (ExecutionException e) {
+			LOG.error(e);
+		}
+		return false;
+	}
+
+	/**
+	 * Connects the {@link ServerConnector} of a session, reusing a pooled connection when possible
+	 *
+	 * @param session
+	 *            The session to connect
+	 * @return true if connected
+	 */
+	private static boolean connect(EncryptionManager session) {
+		try {
+			session.getConnector().connect();
+			return true;
+		} catch (ConnectException | UnknownHostException e) {
+			LOG.error(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Creates named daemon threads for the workers
+	 */
+	private static final class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Transfer Thread " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package org.fides.client.files;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.fides.client.files.data.DirectoryTree;
+import org.fides.client.files.data.KeyFile;
+import org.fides.client.tools.DirectoryDigests;
+import org.fides.client.tools.LocalHashes;
+
+/**
+ * Finds the directories whose files did not change on either side since they were last in sync, so a compare can skip
+ * those files. The digest of a local directory is made from the names, sizes, modification times and local hashes of
+ * its files, which the compare reads while it lists the directory anyway. The server side uses the directory digest of
+ * the {@link KeyFile}, taken when the compare lists the directory, only the shard of the directory has to be loaded for
+ * it. A compare which lists all server files first can give their {@link DirectoryTree} instead. A directory is
+ * unchanged when both digests are the same as the ones stored in the {@link DirectoryDigests}.
+ * <p>
+ * Only the files directly in a directory are skipped, its subdirectories are compared on their own. The compare reports
+ * the names of its results, when it is done the directories without results are stored as in sync.
+ */
+final class UnchangedDirectories {
+	/**
+	 * The {@link KeyFile} the server digests are taken from, null when the server tree is given
+	 */
+	private final KeyFile keyFile;
+
+	/**
+	 * The tree of the server files, null when the digests are taken from the {@link KeyFile}
+	 */
+	private final DirectoryTree serverTree;
+
+	private final DirectoryDigests directoryDigests;
+
+	private final LocalHashes localHashes = LocalHashes.getInstance();
+
+	/**
+	 * The digests of the local directories the compare listed, by their name
+	 */
+	private final Map<String, String> localDigests = new HashMap<>();
+
+	/**
+	 * The digests of the server files of the listed directories, taken before their files were changed by the sync
+	 */
+	private final Map<String, String> serverDigests = new HashMap<>();
+
+	private final Set<String> skipped = new HashSet<>();
+
+	private final Set<String> changed = new HashSet<>();
+
+	/**
+	 * Constructor for UnchangedDirectories
+	 *
+	 * @param keyFile
+	 *            The {@link KeyFile} originating from the server
+	 * @param directoryDigests
+	 *            The {@link DirectoryDigests} of the directories which were in sync
+	 */
+	UnchangedDirectories(KeyFile keyFile, DirectoryDigests directoryDigests) {
+		this.keyFile = keyFile;
+		this.serverTree = null;
+		this.directoryDigests = directoryDigests;
+	}
+
+	/**
+	 * Constructor for UnchangedDirectories with the tree of the server files
+	 *
+	 * @param serverTree
+	 *            The {@link DirectoryTree} of the server files when the compare started
+	 * @param directoryDigests
+	 *            The {@link DirectoryDigests} of the directories which were in sync
+	 */
+	UnchangedDirectories(DirectoryTree serverTree, DirectoryDigests directoryDigests) {
+		this.keyFile = null;
+		this.serverTree = serverTree;
+		this.directoryDigests = directoryDigests;
+	}
+
+	/**
+	 * Checks whether the files of a listed directory can be skipped, the directory is remembered as skipped when they
+	 * can. When the digests are taken from the {@link KeyFile} the shard of the directory has to be loaded.
+	 *
+	 * @param directory
+	 *            The name of the directory
+	 * @param files
+	 *            The names of the files directly in the directory mapped to their {@link BasicFileAttributes}, null
+	 *            when they could not be read
+	 * @return true if the files did not change on either side since the directory was in sync
+	 */
+	boolean skip(String directory, Map<String, BasicFileAttributes> files) {
+		DirectoryTree.Builder builder = new DirectoryTree.Builder();
+		builder.addDirectory(directory);
+		for (Entry<String, BasicFileAttributes> file : files.entrySet()) {
+			BasicFileAttributes attributes = file.getValue();
+			String state = attributes == null ? "" : attributes.size() + ":" + attributes.lastModifiedTime().toMillis();
+			builder.addFile(file.getKey(), state + ":" + localHashes.getHash(file.getKey()));
+		}
+		localDigests.put(directory, builder.getDigest(directory));
+		String serverDigest = serverTree != null ? serverTree.getDigest(directory) : keyFile.getDirectoryDigest(directory);
+		if (serverDigest != null) {
+			serverDigests.put(directory, serverDigest);
+		}
+
+		String digest = digestOf(directory);
+		if (digest != null && digest.equals(directoryDigests.getDigest(directory))) {
+			skipped.add(directory);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether a file is in a skipped directory
+	 *
+	 * @param name
+	 *            The name of the file
+	 * @return true if the file is skipped
+	 */
+	boolean isSkipped(String name) {
+		return !skipped.isEmpty() && skipped.contains(DirectoryTree.parentOf(name));
+	}
+
+	/**
+	 * Reports a result of the compare, the directory it is in is not in sync
+	 *
+	 * @param name
+	 *            The name of the file of the result
+	 */
+	void changed(String name) {
+		changed.add(DirectoryTree.parentOf(name));
+	}
+
+	/**
+	 * Stores the directories which are in sync, only when the whole compare is done
+	 */
+	void finish() {
+		Map<String, String> inSync = new HashMap<>();
+		for (String directory : localDigests.keySet()) {
+			String digest = digestOf(directory);
+			if (digest != null && !changed.contains(directory)) {
+				inSync.put(directory, digest);
+			}
+		}
+		directoryDigests.replaceAll(inSync);
+	}
+
+	/**
+	 * Returns the digest of a directory on both sides
+	 *
+	 * @param directory
+	 *            The name of the directory
+	 * @return The digest, null if the directory does not exist on both sides
+	 */
+	private String digestOf(String directory) {
+		String local = localDigests.get(directory);
+		String server = serverDigests.get(directory);
+		if (local == null || server == null) {
+			return null;
+		}
+		return local + ":" + server;
+	}
+}
@@ -0,0 +1,250 @@
+package org.fides.client.files.data;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The digests of the directories of a tree of files. The digest of a directory is made of the entries of the files
+ * directly in it, the subdirectories have digests of their own, so a directory can be compared without looking below it.
+ * Directories are named like the files, relative to the file directory with '/' as separator, the root directory has an
+ * empty name.
+ * <p>
+ * The entries of the files in a directory are combined by adding their SHA-256 digests, so they can be added in any
+ * order and from several threads.
+ */
+public final class DirectoryTree {
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	/**
+	 * The length of a SHA-256 digest in bytes
+	 */
+	private static final int DIGEST_LENGTH = 32;
+
+	private static final char SEPARATOR = '/';
+
+	private final Map<String, String> digests;
+
+	private DirectoryTree(Map<String, String> digests) {
+		this.digests = digests;
+	}
+
+	/**
+	 * Returns the digest of the files directly in a directory
+	 *
+	 * @param directory
+	 *            The name of the directory
+	 * @return The digest, null if the directory is not in the tree
+	 */
+	public String getDigest(String directory) {
+		return digests.get(directory);
+	}
+	/**
+	 * Returns the names of all directories in the tree
+	 *
+	 * @return The names of the directories
+	 */
+	public Set<String> getDirectories() {
+		return Collections.unmodifiableSet(digests.keySet());
+	}
+
+	/**
+	 * Creates the tree of the server files, from their names and hashes
+	 *
+	 * @param clientFiles
+	 *            The {@link ClientFile}s of the server
+	 * @return The {@link DirectoryTree}
+	 */
+	public static DirectoryTree ofClientFiles(Collection<ClientFile> clientFiles) {
+		Builder builder = new Builder();
+		for (ClientFile clientFile : clientFiles) {
+			builder.addFile(clientFile.getName(), clientFile.getHash());
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns the name of the directory a file or directory is in
+	 *
+	 * @param name
+	 *            The name of the file or directory
+	 * @return The name of the directory, empty for the root directory, null for the root directory itself
+	 */
+	public static String parentOf(String name) {
+		if (name.isEmpty()) {
+			return null;
+		}
+		int separator = name.lastIndexOf(SEPARATOR);
+		return separator < 0 ? "" : name.substring(0, separator);
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+			builder.append(Character.forDigit(b & 0xF, 16));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Collects the entries of the files of the directories and builds the {@link DirectoryTree}. Files and directories
+	 * can be added from several threads at the same time. Files can be removed again, so a {@link Builder} can be kept
+	 * as an index of a changing tree.
+	 */
+	public static final class Builder {
+		/**
+		 * The sum of the digests of the file entries, by the name of the directory
+		 */
+		private final Map<String, byte[]> sums = new HashMap<>();
+
+		/**
+		 * The amount of files added to a directory and not removed
+		 */
+		private final Map<String, Integer> counts = new HashMap<>();
+
+		/**
+		 * Adds a directory, also when it has no files
+		 *
+		 * @param directory
+		 *            The name of the directory
+		 */
+		public synchronized void addDirectory(String directory) {
+			if (!sums.containsKey(directory)) {
+				sums.put(directory, new byte[DIGEST_LENGTH]);
+			}
+		}
+
+		/**
+		 * Adds a file with the entry that identifies its state, it is added to the directory it is in
+		 *
+		 * @param name
+		 *            The name of the file
+		 * @param entry
+		 *            The state of the file, like its hash or its size and modification time
+		 */
+		public void addFile(String name, String entry) {
+			byte[] fileDigest = digestOf(name, entry);
+			String directory = parentOf(name);
+			synchronized (this) {
+				byte[] sum = sums.get(directory);
+				if (sum == null) {
+					sum = new byte[DIGEST_LENGTH];
+					sums.put(directory, sum);
+				}
+				add(sum, fileDigest);
+				Integer count = counts.get(directory);
+				counts.put(directory, count == null ? 1 : count + 1);
+			}
+		}
+
+		/**
+		 * Removes a file which was added with the same entry. A directory is removed with its last file.
+		 *
+		 * @param name
+		 *            The name of the file
+		 * @param entry
+		 *            The state the file was added with
+		 */
+		public void removeFile(String name, String entry) {
+			byte[] fileDigest = digestOf(name, entry);
+			String directory = parentOf(name);
+			synchronized (this) {
+				byte[] sum = sums.get(directory);
+				Integer count = counts.get(directory);
+				if (sum == null || count == null) {
+					return;
+				}
+				if (count > 1) {
+					subtract(sum, fileDigest);
+					counts.put(directory, count - 1);
+				} else {
+					sums.remove(directory);
+					counts.remove(directory);
+				}
+			}
+		}
+
+		/**
+		 * Returns the digest of the files added to a directory so far
+		 *
+		 * @param directory
+		 *            The name of the directory
+		 * @return The digest, null if the directory was not added
+		 */
+		public synchronized String getDigest(String directory) {
+			byte[] sum = sums.get(directory);
+			return sum == null ? null : toHex(sum);
+		}
+
+		private static byte[] digestOf(String name, String entry) {
+			MessageDigest digest = createDigest();
+			digest.update(name.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(String.valueOf(entry).getBytes(StandardCharsets.UTF_8));
+			return digest.digest();
+		}
+
+		/**
+		 * Adds a digest to a sum of the same length, overflow is dropped
+		 *
+		 * @param sum
+		 *            The sum to add to
+		 * @param value
+		 *            The digest to add
+		 */
+		private static void add(byte[] sum, byte[] value) {
+			int carry = 0;
+			for (int i = sum.length - 1; i >= 0; i--) {
+				int total = (sum[i] & 0xFF) + (value[i] & 0xFF) + carry;
+				sum[i] = (byte) total;
+				carry = total >> 8;
+			}
+		}
+
+		/**
+		 * Subtracts a digest which was added to a sum of the same length, borrows past the start are dropped
+		 *
+		 * @param sum
+		 *            The sum to subtract from
+		 * @param value
+		 *            The digest to subtract
+		 */
+		private static void subtract(byte[] sum, byte[] value) {
+			int borrow = 0;
+			for (int i = sum.length - 1; i >= 0; i--) {
+				int total = (sum[i] & 0xFF) - (value[i] & 0xFF) - borrow;
+				sum[i] = (byte) total;
+				borrow = total < 0 ? 1 : 0;
+			}
+		}
+
+		/**
+		 * Builds the digests of all directories
+		 *
+		 * @return The {@link DirectoryTree}
+		 */
+		public synchronized DirectoryTree build() {
+			Map<String, String> digests = new HashMap<>();
+			for (Map.Entry<String, byte[]> sum : sums.entrySet()) {
+				digests.put(sum.getKey(), toHex(sum.getValue()));
+			}
+			return new DirectoryTree(digests);
+		}
+	}
+
+}
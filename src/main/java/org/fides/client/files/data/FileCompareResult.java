@@ -1,7 +1,9 @@
 package org.fides.client.files.data;
 
 /**
- * A result of the KeyFile when comparing the local files and the files on the server
+ * A result of the KeyFile when comparing the local files and the files on the server. A result of a file which was
+ * hashed for the compare carries the hash and the identity of the file before it was hashed, so an upload can use the
+ * hash while the file did not change. They are not part of the equality of results.
  * 
  */
 public class FileCompareResult {
@@ -10,6 +12,10 @@ public class FileCompareResult {
 
 	private final CompareResultType resultType;
 
+	private final String hash;
+
+	private final String fileIdentity;
+
 	/**
 	 * Constructor for FileCompareResult
 	 * 
@@ -19,9 +25,27 @@ public class FileCompareResult {
 	 *            The type of result
 	 */
 	public FileCompareResult(String name, CompareResultType resultType) {
+		this(name, resultType, null, null);
+	}
+
+	/**
+	 * Constructor for FileCompareResult of a file which was hashed for the compare
+	 * 
+	 * @param name
+	 *            The name of the file
+	 * @param resultType
+	 *            The type of result
+	 * @param hash
+	 *            The hash of the local file, can be null
+	 * @param fileIdentity
+	 *            The identity of the local file before it was hashed, can be null
+	 */
+	public FileCompareResult(String name, CompareResultType resultType, String hash, String fileIdentity) {
 		super();
 		this.name = name;
 		this.resultType = resultType;
+		this.hash = hash;
+		this.fileIdentity = fileIdentity;
 	}
 
 	public String getName() {
@@ -32,6 +56,14 @@ public class FileCompareResult {
 		return resultType;
 	}
 
+	public String getHash() {
+		return hash;
+	}
+
+	public String getFileIdentity() {
+		return fileIdentity;
+	}
+
 	@Override
 	public String toString() {
 		return "FileCompareResult [name=" + name + ", resultType=" + resultType + "]";
@@ -1,14 +1,27 @@
 package org.fides.client.files.data;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * The file contains a collection of {@link ClientFile} containing the location of files on the server and the key to
- * decrypt them.
- * 
+ * decrypt them. Single files can be looked up while another thread changes the {@link KeyFile}.
+ * <p>
+ * A large {@link KeyFile} is stored in shards, with the changes made after the shards were written in a journal. A shard
+ * is named after a directory and holds the files below it which are not in a deeper shard, the root shard has an empty
+ * name. The files directly in a directory are always in the same shard. The shards are loaded with a
+ * {@link ShardLoader} the first time a file in them is used.
+ *
  */
 public class KeyFile implements Serializable {
 
@@ -16,25 +29,89 @@ public class KeyFile implements Serializable {
 
 	private final Map<String, ClientFile> clientFiles = new HashMap<>();
 
+	/**
+	 * The server files of the shards by their name, null when the {@link KeyFile} is stored whole
+	 */
+	private transient Map<String, ClientFile> shards;
+
+	/**
+	 * The names of the shards which are loaded
+	 */
+	private transient Set<String> loadedShards;
+
+	/**
+	 * The changes stored on the server after the shards
+	 */
+	private transient List<KeyFileUpdate> journal;
+
+	private transient ShardLoader shardLoader;
+
+	/**
+	 * The index of the directory digests of the loaded files, kept up to date with them once it is built
+	 */
+	private transient DirectoryTree.Builder directoryTree;
+
+	/**
+	 * Loads the content of a shard
+	 */
+	public interface ShardLoader {
+		/**
+		 * Loads the content of a shard
+		 *
+		 * @param shard
+		 *            The {@link ClientFile} with the location and key of the shard
+		 * @return The {@link ClientFile}s in the shard
+		 * @throws IOException
+		 */
+		Collection<ClientFile> loadShard(ClientFile shard) throws IOException;
+	}
+
+	/**
+	 * Visits the {@link ClientFile}s of a {@link KeyFile}
+	 */
+	public interface ClientFileVisitor {
+		/**
+		 * Visits a {@link ClientFile}
+		 *
+		 * @param clientFile
+		 *            The {@link ClientFile}
+		 * @throws IOException
+		 */
+		void visit(ClientFile clientFile) throws IOException;
+	}
+
+	/**
+	 * Returns the name of the shard a file belongs to, the deepest directory of the file which has a shard
+	 *
+	 * @param name
+	 *            The name of the file
+	 * @return The name of the shard, empty for the root shard
+	 */
+	public synchronized String shardOf(String name) {
+		return name == null ? "" : shardOfDirectory(DirectoryTree.parentOf(name));
+	}
+
 	/**
 	 * Return a {@link ClientFile} with the given name
-	 * 
+	 *
 	 * @param name
 	 *            The name of the file
 	 * @return The {@link ClientFile} if existing
 	 */
-	public ClientFile getClientFileByName(String name) {
+	public synchronized ClientFile getClientFileByName(String name) {
+		ensureLoaded(shardOf(name));
 		return clientFiles.get(name);
 	}
 
 	/**
 	 * Return a {@link ClientFile} with the certain location
-	 * 
+	 *
 	 * @param location
 	 *            The location of the file
 	 * @return The {@link ClientFile} if existing
 	 */
-	public ClientFile getClientFileByLocation(String location) {
+	public synchronized ClientFile getClientFileByLocation(String location) {
+		ensureAllLoaded();
 		for (ClientFile clientFile : clientFiles.values()) {
 			if (clientFile.getLocation().equals(location)) {
 				return clientFile;
@@ -45,31 +122,434 @@ public class KeyFile implements Serializable {
 
 	/**
 	 * Removes a {@link ClientFile} from the {@link KeyFile}
-	 * 
+	 *
 	 * @param name
 	 *            The name of the {@link ClientFile} to remove
 	 */
-	public void removeClientFileByName(String name) {
-		clientFiles.remove(name);
+	public synchronized void removeClientFileByName(String name) {
+		ensureLoaded(shardOf(name));
+		ClientFile removed = clientFiles.remove(name);
+		if (removed != null && directoryTree != null) {
+			directoryTree.removeFile(name, removed.getHash());
+		}
 	}
 
 	/**
 	 * Add a {@link ClientFile} to the {@link KeyFile}.
-	 * 
+	 *
 	 * @param clientFile
 	 *            The client file to add
 	 */
-	public void addClientFile(ClientFile clientFile) {
-		clientFiles.put(clientFile.getName(), clientFile);
+	public synchronized void addClientFile(ClientFile clientFile) {
+		ensureLoaded(shardOf(clientFile.getName()));
+		putClientFile(clientFile);
+	}
+
+	/**
+	 * Changes the hash of a {@link ClientFile} in the {@link KeyFile}
+	 *
+	 * @param name
+	 *            The name of the {@link ClientFile}
+	 * @param hash
+	 *            The new hash
+	 */
+	public synchronized void updateClientFileHash(String name, String hash) {
+		ClientFile existing = getClientFileByName(name);
+		if (existing != null) {
+			if (directoryTree != null) {
+				directoryTree.removeFile(name, existing.getHash());
+				directoryTree.addFile(name, hash);
+			}
+			existing.setHash(hash);
+		}
+	}
+
+	/**
+	 * Returns the digest of the server files directly in a directory, made from their names and hashes like a
+	 * {@link DirectoryTree}. Only the shard of the directory is loaded for it.
+	 *
+	 * @param directory
+	 *            The name of the directory
+	 * @return The digest, null if the directory has no server files
+	 * @throws IllegalStateException
+	 *             When the shard could not be loaded
+	 */
+	public synchronized String getDirectoryDigest(String directory) {
+		ensureLoaded(shardOfDirectory(directory));
+		if (directoryTree == null) {
+			directoryTree = new DirectoryTree.Builder();
+			for (ClientFile clientFile : clientFiles.values()) {
+				directoryTree.addFile(clientFile.getName(), clientFile.getHash());
+			}
+		}
+		return directoryTree.getDigest(directory);
+	}
+
+	/**
+	 * Loads the shard of the files directly in a directory, so they can be used without loading
+	 *
+	 * @param directory
+	 *            The name of the directory
+	 * @return true if the shard is loaded, false if it could not be loaded
+	 */
+	public synchronized boolean loadDirectory(String directory) {
+		try {
+			ensureLoaded(shardOfDirectory(directory));
+			return true;
+		} catch (IllegalStateException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Loads the shards of the given files, so they can be used without loading. A file which can not be loaded would
+	 * look like a file which does not exist on the server, so this should be checked before using the files.
+	 *
+	 * @param names
+	 *            The names of the files
+	 * @return true if the shards are loaded, false if one could not be loaded
+	 */
+	public synchronized boolean loadShards(Collection<String> names) {
+		try {
+			Set<String> shardNames = new HashSet<>();
+			for (String name : names) {
+				shardNames.add(shardOf(name));
+			}
+			for (String shardName : shardNames) {
+				ensureLoaded(shardName);
+			}
+			return true;
+		} catch (IllegalStateException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Loads all shards
+	 *
+	 * @return true if the shards are loaded, false if one could not be loaded
+	 */
+	public synchronized boolean loadAllShards() {
+		try {
+			ensureAllLoaded();
+			return true;
+		} catch (IllegalStateException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Visits all server files without loading the shards which are not loaded yet. Those are read one at a time with
+	 * the changes in the journal applied to them, and are not kept, so a huge {@link KeyFile} can be listed without
+	 * having all files in memory.
+	 *
+	 * @param visitor
+	 *            The {@link ClientFileVisitor}
+	 * @throws IOException
+	 *             When a shard could not be read, or the visitor failed
+	 */
+	public synchronized void visitClientFiles(ClientFileVisitor visitor) throws IOException {
+		for (ClientFile clientFile : clientFiles.values()) {
+			visitor.visit(clientFile);
+		}
+		if (shards == null) {
+			return;
+		}
+		Set<String> unloaded = new HashSet<>(shards.keySet());
+		for (KeyFileUpdate update : journal) {
+			unloaded.add(shardOf(update.getName()));
+		}
+		unloaded.removeAll(loadedShards);
+		for (String shardName : unloaded) {
+			Map<String, ClientFile> shardFiles = new HashMap<>();
+			ClientFile shard = shards.get(shardName);
+			if (shard != null) {
+				if (shardLoader == null) {
+					throw new IOException("No loader for shard " + shardName);
+				}
+				for (ClientFile clientFile : shardLoader.loadShard(shard)) {
+					shardFiles.put(clientFile.getName(), clientFile);
+				}
+			}
+			for (KeyFileUpdate update : journal) {
+				if (shardName.equals(shardOf(update.getName()))) {
+					applyTo(shardFiles, update);
+				}
+			}
+			for (ClientFile clientFile : shardFiles.values()) {
+				visitor.visit(clientFile);
+			}
+		}
+	}
+
+	/**
+	 * Returns the server files of the shards
+	 *
+	 * @return A copy of the {@link ClientFile}s of the shards by their name, null if the {@link KeyFile} is stored whole
+	 */
+	public synchronized Map<String, ClientFile> getShards() {
+		return shards == null ? null : new HashMap<>(shards);
 	}
 
 	/**
-	 * Returns the {@link Map} of {@link ClientFile} as and unmodifiable map
-	 * 
+	 * Returns the changes stored on the server after the shards
+	 *
+	 * @return A copy of the {@link KeyFileUpdate}s in the order they were made
+	 */
+	public synchronized List<KeyFileUpdate> getJournal() {
+		if (journal == null) {
+			return new ArrayList<>();
+		}
+		return new ArrayList<>(journal);
+	}
+
+	/**
+	 * Returns the {@link ClientFile}s of some shards, grouped by shard. The shards are loaded. A shard with more files
+	 * than the maximum is split into a shard per subdirectory, again until no shard is too large. The files directly in
+	 * a directory are not split, so a single directory with more files stays one shard.
+	 *
+	 * @param shardNames
+	 *            The names of the shards
+	 * @param maxEntries
+	 *            The maximum amount of files in a shard
+	 * @return The {@link ClientFile}s by the name of their shard after splitting, a shard without files is missing
+	 */
+	public synchronized Map<String, List<ClientFile>> getClientFilesByShard(Collection<String> shardNames, int maxEntries) {
+		for (String shardName : shardNames) {
+			ensureLoaded(shardName);
+		}
+		Map<String, List<ClientFile>> result = new HashMap<>();
+		for (ClientFile clientFile : clientFiles.values()) {
+			String shardName = shardOf(clientFile.getName());
+			if (shardNames.contains(shardName)) {
+				addToShard(result, shardName, clientFile);
+			}
+		}
+
+		Deque<String> unchecked = new ArrayDeque<>(result.keySet());
+		while (!unchecked.isEmpty()) {
+			String shardName = unchecked.pop();
+			List<ClientFile> shardFiles = result.get(shardName);
+			if (shardFiles.size() <= maxEntries) {
+				continue;
+			}
+			// No deeper shard exists below a file of this shard, so the subdirectory shards are new
+			result.remove(shardName);
+			Map<String, List<ClientFile>> split = new HashMap<>();
+			for (ClientFile clientFile : shardFiles) {
+				addToShard(split, subdirectoryOf(shardName, DirectoryTree.parentOf(clientFile.getName())), clientFile);
+			}
+			for (String subShard : split.keySet()) {
+				if (!subShard.equals(shardName)) {
+					unchecked.push(subShard);
+				}
+			}
+			result.putAll(split);
+		}
+		return result;
+	}
+
+	/**
+	 * Sets how a {@link KeyFile} which was just read is stored on the server. None of the shards is loaded yet, they
+	 * are loaded with the {@link ShardLoader} when needed, the changes in the journal are applied to them then.
+	 *
+	 * @param shards
+	 *            The server files of the shards by their name
+	 * @param journal
+	 *            The changes stored after the shards
+	 * @param loader
+	 *            The {@link ShardLoader} for the shards
+	 */
+	public synchronized void setStorage(Map<String, ClientFile> shards, List<KeyFileUpdate> journal, ShardLoader loader) {
+		this.shards = new HashMap<>(shards);
+		this.journal = new ArrayList<>(journal);
+		this.loadedShards = new HashSet<>();
+		this.shardLoader = loader;
+		this.directoryTree = null;
+	}
+
+	/**
+	 * Sets how this {@link KeyFile} is stored on the server after it was written. The changes in the journal have to be
+	 * applied to the loaded shards already.
+	 *
+	 * @param shards
+	 *            The server files of the shards by their name, null if the {@link KeyFile} is stored whole
+	 * @param journal
+	 *            The changes stored after the shards
+	 * @param loader
+	 *            The {@link ShardLoader} for the shards which are not loaded
+	 */
+	public synchronized void setStored(Map<String, ClientFile> shards, List<KeyFileUpdate> journal, ShardLoader loader) {
+		if (this.shards == null && shards != null) {
+			// All files are in memory, so all shards are loaded
+			loadedShards = new HashSet<>(shards.keySet());
+			loadedShards.add("");
+		} else if (this.shards != null && shards != null) {
+			// New shards are split from loaded shards
+			for (String shardName : shards.keySet()) {
+				if (!this.shards.containsKey(shardName)) {
+					loadedShards.add(shardName);
+				}
+			}
+		}
+		this.shards = shards == null ? null : new HashMap<>(shards);
+		this.journal = new ArrayList<>(journal);
+		this.shardLoader = loader;
+	}
+
+	/**
+	 * Returns the {@link Map} of {@link ClientFile} as and unmodifiable map. All shards are loaded for it.
+	 *
 	 * @return The {@link Map} of {@link ClientFile} as and unmodifiable map
 	 */
 	public Map<String, ClientFile> getAllClientFiles() {
+		synchronized (this) {
+			ensureAllLoaded();
+		}
 		return Collections.unmodifiableMap(clientFiles);
 	}
 
+	/**
+	 * Loads all shards which are stored or have changes in the journal
+	 */
+	private void ensureAllLoaded() {
+		if (shards == null) {
+			return;
+		}
+		Set<String> shardNames = new HashSet<>(shards.keySet());
+		for (KeyFileUpdate update : journal) {
+			shardNames.add(shardOf(update.getName()));
+		}
+		for (String shardName : shardNames) {
+			ensureLoaded(shardName);
+		}
+	}
+
+	/**
+	 * Loads a shard and applies the changes in the journal to it, if it is not loaded yet
+	 *
+	 * @param shardName
+	 *            The name of the shard
+	 * @throws IllegalStateException
+	 *             When the shard could not be loaded
+	 */
+	private void ensureLoaded(String shardName) {
+		if (shards == null || loadedShards.contains(shardName)) {
+			return;
+		}
+		ClientFile shard = shards.get(shardName);
+		if (shard != null) {
+			if (shardLoader == null) {
+				throw new IllegalStateException("No loader for shard " + shardName);
+			}
+			try {
+				for (ClientFile clientFile : shardLoader.loadShard(shard)) {
+					putClientFile(clientFile);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not load shard " + shardName, e);
+			}
+		}
+		// Marked before applying the journal, applying it uses the shard
+		loadedShards.add(shardName);
+		for (KeyFileUpdate update : journal) {
+			if (shardName.equals(shardOf(update.getName()))) {
+				update.applyTo(this);
+			}
+		}
+	}
+
+	/**
+	 * Puts a {@link ClientFile} in the map of files and the index of the directory digests
+	 *
+	 * @param clientFile
+	 *            The {@link ClientFile}
+	 */
+	private void putClientFile(ClientFile clientFile) {
+		ClientFile replaced = clientFiles.put(clientFile.getName(), clientFile);
+		if (directoryTree != null) {
+			if (replaced != null) {
+				directoryTree.removeFile(replaced.getName(), replaced.getHash());
+			}
+			directoryTree.addFile(clientFile.getName(), clientFile.getHash());
+		}
+	}
+
+	/**
+	 * Returns the name of the shard of the files directly in a directory, the deepest directory on its path which has a
+	 * shard
+	 *
+	 * @param directory
+	 *            The name of the directory
+	 * @return The name of the shard, empty for the root shard
+	 */
+	private String shardOfDirectory(String directory) {
+		if (shards == null) {
+			return "";
+		}
+		String current = directory;
+		while (current != null && !current.isEmpty()) {
+			if (shards.containsKey(current)) {
+				return current;
+			}
+			current = DirectoryTree.parentOf(current);
+		}
+		return "";
+	}
+
+	/**
+	 * Returns the subdirectory of a shard a directory is in, one level deeper than the shard
+	 *
+	 * @param shardName
+	 *            The name of the shard
+	 * @param directory
+	 *            The name of a directory in the shard
+	 * @return The name of the subdirectory, the shard itself for the directory of the shard
+	 */
+	private static String subdirectoryOf(String shardName, String directory) {
+		if (directory.equals(shardName)) {
+			return shardName;
+		}
+		int start = shardName.isEmpty() ? 0 : shardName.length() + 1;
+		int separator = directory.indexOf('/', start);
+		return separator < 0 ? directory : directory.substring(0, separator);
+	}
+
+	/**
+	 * Applies a change of the journal to the files of a shard which is not loaded, without changing the files of the
+	 * journal
+	 *
+	 * @param shardFiles
+	 *            The {@link ClientFile}s of the shard by their name
+	 * @param update
+	 *            The {@link KeyFileUpdate}
+	 */
+	private static void applyTo(Map<String, ClientFile> shardFiles, KeyFileUpdate update) {
+		switch (update.getType()) {
+		case ADD:
+			shardFiles.put(update.getName(), update.getClientFile());
+			break;
+		case UPDATE:
+			ClientFile existing = shardFiles.get(update.getName());
+			if (existing != null) {
+				shardFiles.put(update.getName(), new ClientFile(existing.getName(), existing.getLocation(), existing.getKey(), update.getHash()));
+			}
+			break;
+		case REMOVE:
+			shardFiles.remove(update.getName());
+			break;
+		default:
+			break;
+		}
+	}
+
+	private static void addToShard(Map<String, List<ClientFile>> shardFiles, String shardName, ClientFile clientFile) {
+		List<ClientFile> files = shardFiles.get(shardName);
+		if (files == null) {
+			files = new ArrayList<>();
+			shardFiles.put(shardName, files);
+		}
+		files.add(clientFile);
+	}
+
 }
@@ -0,0 +1,441 @@
+package org.fides.client.files.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.fides.client.files.HashAlgorithm;
+import org.fides.encryption.EncryptionUtils;
+
+/**
+ * Reads and writes a {@link KeyFile} in a compact, versioned binary format. Names are length prefixed UTF-8, keys are
+ * written as their raw bytes, and hashes and locations written by this client are stored as binary instead of hex. A
+ * {@link KeyFile} written with Java serialization by older versions can still be read.
+ * <p>
+ * The format is the magic number, the version, the amount of entries and then per entry the name, location, key and
+ * hash. Every field starts with a byte telling how it is stored. A sharded keyfile has its own version, it contains
+ * the name, location and key of the server file of every shard, followed by the changes made after the shards were
+ * written. The shards themselves are written like a whole keyfile.
+ */
+public final class KeyFileSerializer {
+
+	/**
+	 * The first bytes of a keyfile in this format, "FKF" followed by a zero byte
+	 */
+	private static final int MAGIC = 0x464b4600;
+
+	private static final byte VERSION = 1;
+
+	private static final byte VERSION_SHARDED = 2;
+
+	/** The field is null */
+	private static final byte FIELD_NULL = 0;
+
+	/** The field is a length prefixed UTF-8 string */
+	private static final byte FIELD_STRING = 1;
+
+	/** The field is a string of lowercase hex, stored as its length prefixed bytes */
+	private static final byte FIELD_HEX = 2;
+
+	/**
+	 * The field is a hash made by a {@link HashAlgorithm}, stored as the ordinal of the algorithm and the fixed width
+	 * digest. New algorithms have to be added at the end of {@link HashAlgorithm}.
+	 */
+	private static final byte FIELD_HASH = 3;
+
+	/** The field is a key of the default algorithm, stored as its length prefixed bytes */
+	private static final byte FIELD_KEY = 4;
+
+	/** The field is a key of another algorithm, stored as the algorithm name and its length prefixed bytes */
+	private static final byte FIELD_KEY_ALGORITHM = 5;
+
+	/**
+	 * The maximum length of a single field, a larger length means the stream is corrupt
+	 */
+	private static final int MAX_FIELD_LENGTH = 1 << 20;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private KeyFileSerializer() {
+	}
+
+	/**
+	 * Writes a {@link KeyFile} in the binary format
+	 *
+	 * @param keyFile
+	 *            The {@link KeyFile} to write
+	 * @param out
+	 *            The {@link OutputStream} to write to, it is not closed
+	 * @throws IOException
+	 */
+	public static void write(KeyFile keyFile, OutputStream out) throws IOException {
+		Map<String, ClientFile> clientFiles = keyFile.getAllClientFiles();
+		// The map can not change while it is written
+		synchronized (keyFile) {
+			write(clientFiles.values(), out);
+		}
+	}
+
+	/**
+	 * Writes {@link ClientFile}s in the binary format, as a {@link KeyFile} or a shard of it
+	 *
+	 * @param clientFiles
+	 *            The {@link ClientFile}s to write
+	 * @param out
+	 *            The {@link OutputStream} to write to, it is not closed
+	 * @throws IOException
+	 */
+	public static void write(Collection<ClientFile> clientFiles, OutputStream out) throws IOException {
+		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+		dout.writeInt(MAGIC);
+		dout.writeByte(VERSION);
+		writeLength(dout, clientFiles.size());
+		for (ClientFile clientFile : clientFiles) {
+			writeString(dout, clientFile.getName());
+			writeHexOrString(dout, clientFile.getLocation());
+			writeKey(dout, clientFile.getKey());
+			writeHash(dout, clientFile.getHash());
+		}
+		dout.flush();
+	}
+
+	/**
+	 * Writes a sharded keyfile, the server files of the shards and the changes after them
+	 *
+	 * @param shards
+	 *            The {@link ClientFile}s with the location and key of the shards, by the name of the shard
+	 * @param journal
+	 *            The changes after the shards were written, in the order they were made
+	 * @param out
+	 *            The {@link OutputStream} to write to, it is not closed
+	 * @throws IOException
+	 */
+	public static void writeSharded(Map<String, ClientFile> shards, List<KeyFileUpdate> journal, OutputStream out) throws IOException {
+		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+		dout.writeInt(MAGIC);
+		dout.writeByte(VERSION_SHARDED);
+		writeLength(dout, shards.size());
+		for (Entry<String, ClientFile> shard : shards.entrySet()) {
+			writeString(dout, shard.getKey());
+			writeHexOrString(dout, shard.getValue().getLocation());
+			writeKey(dout, shard.getValue().getKey());
+		}
+		writeLength(dout, journal.size());
+		for (KeyFileUpdate update : journal) {
+			dout.writeByte(update.getType().ordinal());
+			writeString(dout, update.getName());
+			switch (update.getType()) {
+			case ADD:
+				writeHexOrString(dout, update.getClientFile().getLocation());
+				writeKey(dout, update.getClientFile().getKey());
+				writeHash(dout, update.getHash());
+				break;
+			case UPDATE:
+				writeHash(dout, update.getHash());
+				break;
+			default:
+				break;
+			}
+		}
+		dout.flush();
+	}
+
+	/**
+	 * Reads a {@link KeyFile} in the binary format, or in the Java serialization of older versions
+	 *
+	 * @param in
+	 *            The {@link InputStream} to read from, it is not closed
+	 * @return The {@link KeyFile}
+	 * @throws StreamCorruptedException
+	 *             When the stream is in neither format
+	 * @throws ClassNotFoundException
+	 *             When the Java serialization contains an unknown class
+	 * @throws IOException
+	 */
+	public static KeyFile read(InputStream in) throws IOException, ClassNotFoundException {
+		return read(in, null);
+	}
+
+	/**
+	 * Reads a {@link KeyFile} in the binary format, or in the Java serialization of older versions. A sharded keyfile
+	 * is returned without any shard loaded, they are loaded when needed.
+	 *
+	 * @param in
+	 *            The {@link InputStream} to read from, it is not closed
+	 * @param shardLoader
+	 *            The {@link KeyFile.ShardLoader} for the shards of a sharded keyfile
+	 * @return The {@link KeyFile}
+	 * @throws StreamCorruptedException
+	 *             When the stream is in neither format
+	 * @throws ClassNotFoundException
+	 *             When the Java serialization contains an unknown class
+	 * @throws IOException
+	 */
+	public static KeyFile read(InputStream in, KeyFile.ShardLoader shardLoader) throws IOException, ClassNotFoundException {
+		BufferedInputStream bin = new BufferedInputStream(in, BUFFER_SIZE);
+		bin.mark(2);
+		DataInputStream din = new DataInputStream(bin);
+		if (din.readShort() == ObjectStreamConstants.STREAM_MAGIC) {
+			bin.reset();
+			@SuppressWarnings("resource")
+			ObjectInputStream objectIn = new ObjectInputStream(bin);
+			Object keyFile = objectIn.readObject();
+			if (!(keyFile instanceof KeyFile)) {
+				throw new StreamCorruptedException("Not a KeyFile");
+			}
+			return (KeyFile) keyFile;
+		}
+		bin.reset();
+
+		if (din.readInt() != MAGIC) {
+			throw new StreamCorruptedException("Not a KeyFile");
+		}
+		byte version = din.readByte();
+		if (version == VERSION_SHARDED) {
+			return readSharded(din, shardLoader);
+		} else if (version != VERSION) {
+			throw new StreamCorruptedException("Unknown KeyFile version " + version);
+		}
+		KeyFile keyFile = new KeyFile();
+		int count = readLength(din, Integer.MAX_VALUE);
+		for (int i = 0; i < count; i++) {
+			String name = readField(din);
+			String location = readField(din);
+			Key key = readKey(din);
+			String hash = readField(din);
+			keyFile.addClientFile(new ClientFile(name, location, key, hash));
+		}
+		return keyFile;
+	}
+
+	private static KeyFile readSharded(DataInputStream din, KeyFile.ShardLoader shardLoader) throws IOException {
+		Map<String, ClientFile> shards = new HashMap<>();
+		int shardCount = readLength(din, Integer.MAX_VALUE);
+		for (int i = 0; i < shardCount; i++) {
+			String shardName = readField(din);
+			String location = readField(din);
+			Key key = readKey(din);
+			shards.put(shardName, new ClientFile(null, location, key, null));
+		}
+		int count = readLength(din, Integer.MAX_VALUE);
+		List<KeyFileUpdate> journal = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			int type = din.readUnsignedByte();
+			String name = readField(din);
+			if (type == KeyFileUpdate.Type.ADD.ordinal()) {
+				String fileLocation = readField(din);
+				Key fileKey = readKey(din);
+				journal.add(KeyFileUpdate.added(new ClientFile(name, fileLocation, fileKey, readField(din)), 0));
+			} else if (type == KeyFileUpdate.Type.UPDATE.ordinal()) {
+				journal.add(KeyFileUpdate.updated(name, readField(din), 0));
+			} else if (type == KeyFileUpdate.Type.REMOVE.ordinal()) {
+				journal.add(KeyFileUpdate.removed(name));
+			} else {
+				throw new StreamCorruptedException("Unknown change type " + type);
+			}
+		}
+		KeyFile keyFile = new KeyFile();
+		keyFile.setStorage(shards, journal, shardLoader);
+		return keyFile;
+	}
+
+	private static void writeString(DataOutputStream dout, String value) throws IOException {
+		if (value == null) {
+			dout.writeByte(FIELD_NULL);
+		} else {
+			dout.writeByte(FIELD_STRING);
+			writeBytes(dout, value.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static void writeHexOrString(DataOutputStream dout, String value) throws IOException {
+		byte[] bytes = fromHex(value);
+		if (bytes == null) {
+			writeString(dout, value);
+		} else {
+			dout.writeByte(FIELD_HEX);
+			writeBytes(dout, bytes);
+		}
+	}
+
+	private static void writeHash(DataOutputStream dout, String hash) throws IOException {
+		HashAlgorithm algorithm = HashAlgorithm.fromHash(hash);
+		if (hash != null && algorithm != null) {
+			String prefix = hashPrefix(algorithm);
+			// Only when it is formatted back to exactly the same hash, lowercase hex after the tag
+			byte[] digest = hash.startsWith(prefix) ? fromHex(hash.substring(prefix.length())) : null;
+			if (digest != null && digest.length == algorithm.getDigestLength()) {
+				dout.writeByte(FIELD_HASH);
+				dout.writeByte(algorithm.ordinal());
+				dout.write(digest);
+				return;
+			}
+		}
+		writeString(dout, hash);
+	}
+
+	private static void writeKey(DataOutputStream dout, Key key) throws IOException {
+		if (key == null) {
+			dout.writeByte(FIELD_NULL);
+			return;
+		}
+		byte[] encoded = key.getEncoded();
+		if (encoded == null) {
+			throw new IOException("Key of algorithm " + key.getAlgorithm() + " can not be encoded");
+		}
+		if (EncryptionUtils.ALGORITHM.equals(key.getAlgorithm())) {
+			dout.writeByte(FIELD_KEY);
+		} else {
+			dout.writeByte(FIELD_KEY_ALGORITHM);
+			writeBytes(dout, key.getAlgorithm().getBytes(StandardCharsets.UTF_8));
+		}
+		writeBytes(dout, encoded);
+	}
+
+	private static String readField(DataInputStream din) throws IOException {
+		byte type = din.readByte();
+		switch (type) {
+		case FIELD_NULL:
+			return null;
+		case FIELD_STRING:
+			return new String(readBytes(din), StandardCharsets.UTF_8);
+		case FIELD_HEX:
+			return toHex(readBytes(din));
+		case FIELD_HASH:
+			int ordinal = din.readUnsignedByte();
+			if (ordinal >= HashAlgorithm.values().length) {
+				throw new StreamCorruptedException("Unknown hash algorithm " + ordinal);
+			}
+			HashAlgorithm algorithm = HashAlgorithm.values()[ordinal];
+			byte[] digest = new byte[algorithm.getDigestLength()];
+			din.readFully(digest);
+			return hashPrefix(algorithm) + toHex(digest);
+		default:
+			throw new StreamCorruptedException("Unknown field type " + type);
+		}
+	}
+
+	/**
+	 * Returns what is in front of the hex of a hash, like {@link HashAlgorithm#format(byte[])} does
+	 */
+	private static String hashPrefix(HashAlgorithm algorithm) {
+		return algorithm.getTag() == null ? "" : algorithm.getTag() + ':';
+	}
+
+	private static Key readKey(DataInputStream din) throws IOException {
+		byte type = din.readByte();
+		switch (type) {
+		case FIELD_NULL:
+			return null;
+		case FIELD_KEY:
+			return new SecretKeySpec(readBytes(din), EncryptionUtils.ALGORITHM);
+		case FIELD_KEY_ALGORITHM:
+			String algorithm = new String(readBytes(din), StandardCharsets.UTF_8);
+			return new SecretKeySpec(readBytes(din), algorithm);
+		default:
+			throw new StreamCorruptedException("Unknown key type " + type);
+		}
+	}
+
+	private static void writeBytes(DataOutputStream dout, byte[] bytes) throws IOException {
+		writeLength(dout, bytes.length);
+		dout.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream din) throws IOException {
+		byte[] bytes = new byte[readLength(din, MAX_FIELD_LENGTH)];
+		din.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Writes a length as an unsigned variable length integer, 7 bits per byte
+	 */
+	private static void writeLength(DataOutputStream dout, int length) throws IOException {
+		int value = length;
+		while ((value & ~0x7f) != 0) {
+			dout.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		dout.writeByte(value);
+	}
+
+	private static int readLength(DataInputStream din, int max) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = din.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0 || value > max) {
+					throw new StreamCorruptedException("Invalid length " + value);
+				}
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("Invalid length");
+	}
+
+	/**
+	 * Converts a string of lowercase hex to bytes
+	 *
+	 * @param value
+	 *            The string to convert
+	 * @return The bytes, null if it is not a non empty string of lowercase hex
+	 */
+	private static byte[] fromHex(String value) {
+		if (value == null || value.isEmpty() || value.length() % 2 != 0) {
+			return null;
+		}
+		byte[] bytes = new byte[value.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int high = hexDigit(value.charAt(i * 2));
+			int low = hexDigit(value.charAt(i * 2 + 1));
+			if (high < 0 || low < 0) {
+				return null;
+			}
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+
+	private static int hexDigit(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		} else if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		return -1;
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,145 @@
+package org.fides.client.files.data;
+
+/**
+ * A change to the {@link KeyFile} made by a transfer. Changes are collected and applied to the {@link KeyFile} together,
+ * the local hash of the file is only updated after the {@link KeyFile} is uploaded.
+ */
+public class KeyFileUpdate {
+
+	/**
+	 * The type of change
+	 */
+	public enum Type {
+		/**
+		 * A new {@link ClientFile} is added
+		 */
+		ADD,
+		/**
+		 * The hash of an existing {@link ClientFile} is changed
+		 */
+		UPDATE,
+		/**
+		 * A {@link ClientFile} is removed
+		 */
+		REMOVE
+	}
+
+	private final Type type;
+
+	private final String name;
+
+	private final ClientFile clientFile;
+
+	private final String hash;
+
+	private final long size;
+
+	/**
+	 * Constructor for KeyFileUpdate
+	 *
+	 * @param type
+	 *            The type of change
+	 * @param name
+	 *            The name of the file
+	 * @param clientFile
+	 *            The {@link ClientFile} to add, null for other types
+	 * @param hash
+	 *            The new hash of the file, null when removed
+	 * @param size
+	 *            The amount of bytes transferred for this change
+	 */
+	private KeyFileUpdate(Type type, String name, ClientFile clientFile, String hash, long size) {
+		this.type = type;
+		this.name = name;
+		this.clientFile = clientFile;
+		this.hash = hash;
+		this.size = size;
+	}
+
+	/**
+	 * Creates an update adding a {@link ClientFile}
+	 *
+	 * @param clientFile
+	 *            The {@link ClientFile} to add
+	 * @param size
+	 *            The amount of bytes uploaded
+	 * @return The {@link KeyFileUpdate}
+	 */
+	public static KeyFileUpdate added(ClientFile clientFile, long size) {
+		return new KeyFileUpdate(Type.ADD, clientFile.getName(), clientFile, clientFile.getHash(), size);
+	}
+
+	/**
+	 * Creates an update changing the hash of a file
+	 *
+	 * @param name
+	 *            The name of the file
+	 * @param hash
+	 *            The new hash
+	 * @param size
+	 *            The amount of bytes uploaded
+	 * @return The {@link KeyFileUpdate}
+	 */
+	public static KeyFileUpdate updated(String name, String hash, long size) {
+		return new KeyFileUpdate(Type.UPDATE, name, null, hash, size);
+	}
+
+	/**
+	 * Creates an update removing a file
+	 *
+	 * @param name
+	 *            The name of the file
+	 * @return The {@link KeyFileUpdate}
+	 */
+	public static KeyFileUpdate removed(String name) {
+		return new KeyFileUpdate(Type.REMOVE, name, null, null, 0);
+	}
+
+	/**
+	 * Applies the change to a {@link KeyFile}
+	 *
+	 * @param keyFile
+	 *            The {@link KeyFile} to change
+	 */
+	public void applyTo(KeyFile keyFile) {
+		switch (type) {
+		case ADD:
+			keyFile.addClientFile(clientFile);
+			break;
+		case UPDATE:
+			keyFile.updateClientFileHash(name, hash);
+			break;
+		case REMOVE:
+			keyFile.removeClientFileByName(name);
+			break;
+		default:
+			break;
+		}
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public ClientFile getClientFile() {
+		return clientFile;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "KeyFileUpdate [type=" + type + ", name=" + name + "]";
+	}
+
+}
@@ -0,0 +1,167 @@
+package org.fides.client.tools;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A pool of reusable buffers. The memory of the buffers in use and in the pool together has a hard cap: a buffer which
+ * does not fit under the cap is not allocated, free buffers of other sizes are dropped to make room for it first.
+ * {@link #acquire(int)} waits until buffers are released when the buffer still does not fit, {@link #tryAcquire(int)}
+ * gives nothing then, so the caller can ask for a smaller buffer.
+ * <p>
+ * The copies share {@link #getInstance()}, the encryption streams have pools of their own.
+ */
+public final class BufferPool {
+	/**
+	 * The default cap of the memory of the copy buffers
+	 */
+	private static final long DEFAULT_MEMORY_CAP = 16 * 1024 * 1024;
+
+	private static BufferPool instance;
+
+	private final long memoryCap;
+
+	/**
+	 * The free buffers by their size
+	 */
+	private final Map<Integer, Deque<byte[]>> free = new HashMap<>();
+
+	/**
+	 * The memory of the buffers in use and in the pool
+	 */
+	private long memory = 0;
+
+	/**
+	 * Constructor for BufferPool
+	 *
+	 * @param memoryCap
+	 *            The cap of the memory of all buffers in bytes
+	 */
+	public BufferPool(long memoryCap) {
+		this.memoryCap = memoryCap;
+	}
+
+	/**
+	 * Returns a buffer of exactly the given size, waiting until buffers are released when it does not fit under the
+	 * cap
+	 *
+	 * @param size
+	 *            The size of the buffer
+	 * @return The buffer, it has to be released when it is not used anymore
+	 */
+	public synchronized byte[] acquire(int size) {
+		if (size > memoryCap) {
+			throw new IllegalArgumentException("A buffer of " + size + " bytes never fits in the pool");
+		}
+		boolean interrupted = false;
+		try {
+			while (true) {
+				byte[] buffer = take(size);
+				if (buffer != null) {
+					return buffer;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// The buffers are released by copies which do not wait on this thread
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Returns a buffer of exactly the given size, if it fits under the cap
+	 *
+	 * @param size
+	 *            The size of the buffer
+	 * @return The buffer, it has to be released when it is not used anymore. Null if it does not fit.
+	 */
+	public synchronized byte[] tryAcquire(int size) {
+		return take(size);
+	}
+
+	/**
+	 * Takes a free buffer of the size or allocates one if it fits under the cap
+	 *
+	 * @param size
+	 *            The size of the buffer
+	 * @return The buffer, null if it does not fit
+	 */
+	private byte[] take(int size) {
+		Deque<byte[]> sameSize = free.get(size);
+		if (sameSize != null && !sameSize.isEmpty()) {
+			return sameSize.poll();
+		}
+		makeRoom(size);
+		if (memory + size <= memoryCap) {
+			memory += size;
+			return new byte[size];
+		}
+		return null;
+	}
+
+	/**
+	 * Drops free buffers until a buffer of the given size fits under the cap or none are left
+	 *
+	 * @param size
+	 *            The size of the buffer to make room for
+	 */
+	private void makeRoom(int size) {
+		Iterator<Deque<byte[]>> iterator = free.values().iterator();
+		while (iterator.hasNext() && memory + size > memoryCap) {
+			Deque<byte[]> buffers = iterator.next();
+			while (!buffers.isEmpty() && memory + size > memoryCap) {
+				memory -= buffers.poll().length;
+			}
+		}
+	}
+
+	/**
+	 * Returns a buffer to the pool, it may not be used after this
+	 *
+	 * @param buffer
+	 *            The buffer given by this pool, null is ignored
+	 */
+	public synchronized void release(byte[] buffer) {
+		if (buffer == null) {
+			return;
+		}
+		Deque<byte[]> sameSize = free.get(buffer.length);
+		if (sameSize == null) {
+			sameSize = new ArrayDeque<>();
+			free.put(buffer.length, sameSize);
+		}
+		sameSize.push(buffer);
+		notifyAll();
+	}
+
+	/**
+	 * Returns the memory of the buffers in use and in the pool
+	 *
+	 * @return The memory in bytes
+	 */
+	public synchronized long getMemory() {
+		return memory;
+	}
+
+	/**
+	 * Returns the instance of {@link BufferPool} shared by the copies
+	 *
+	 * @return The instance
+	 */
+	public static synchronized BufferPool getInstance() {
+		if (instance == null) {
+			instance = new BufferPool(DEFAULT_MEMORY_CAP);
+		}
+		return instance;
+	}
+
+}
@@ -0,0 +1,31 @@
+package org.fides.client.tools;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An {@link java.io.OutputStream} which can read a file from its {@link FileChannel} into its own buffers, instead of
+ * having the file copied to it through a byte array. {@link CopyTool} uses this when possible.
+ */
+public interface ChannelTarget {
+
+	/**
+	 * Reads the rest of a {@link FileChannel} and writes it, until the end or until the stopBoolean is true
+	 *
+	 * @param channel
+	 *            The {@link FileChannel} to read
+	 * @param digest
+	 *            The {@link MessageDigest} to update with what is read, null if it is not hashed
+	 * @param stopBoolean
+	 *            The boolean which notifies the transfer it has to stop
+	 * @return The number of bytes transferred
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws CopyInterruptedException
+	 *             if the transfer was interrupted with the stopBoolean
+	 */
+	long transferFrom(FileChannel channel, MessageDigest digest, AtomicBoolean stopBoolean) throws IOException, CopyInterruptedException;
+
+}
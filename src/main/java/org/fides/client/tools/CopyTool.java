@@ -1,18 +1,96 @@
 package org.fides.client.tools;
 
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A custom tool to use for copying.
+ * A custom tool to use for copying. The buffers come from the shared {@link BufferPool}, their size is chosen from the
+ * size of what is copied and the throughput of earlier copies: a buffer holds about {@link #TARGET_BUFFER_TIME} of
+ * copying. The copied bytes and the time spent copying are counted.
+ * <p>
+ * An overlapped copy reads on a copy thread while the calling thread writes, with a ring of
+ * {@link #RING_BUFFERS} buffers between them, so a slow disk and a slow connection do not wait on each other. A copy of
+ * less than {@link #MIN_OVERLAPPED_SIZE} is done on the calling thread.
  */
 public class CopyTool {
 
 	private static final int EOF = -1;
 
-	private static final int DEFAULT_BUFFER_SIZE = 1024 * 4;
+	/**
+	 * The smallest copy buffer size, a buffer of it is always given
+	 */
+	static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+	/**
+	 * The largest copy buffer size
+	 */
+	static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * The buffer size used for a copy of a known size before a throughput is measured. A copy of an unknown size uses
+	 * the smallest buffers then, a slow stream fills a large buffer slowly and the stopBoolean is only checked between
+	 * buffers.
+	 */
+	private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The time in nanoseconds the copying of one buffer should take
+	 */
+	private static final long TARGET_BUFFER_TIME = 10000000;
+
+	/**
+	 * Copies smaller than this are too short to measure the throughput with
+	 */
+	private static final long MIN_MEASURED_SIZE = 256 * 1024;
+
+	/**
+	 * The weight of the last copy in the measured throughput
+	 */
+	private static final double THROUGHPUT_WEIGHT = 0.25;
+
+	/**
+	 * The amount of buffers between the reading and the writing thread of an overlapped copy
+	 */
+	private static final int RING_BUFFERS = 4;
+
+	/**
+	 * A copy with less bytes available than this is not overlapped, handing a few buffers to the copy thread costs more
+	 * than it saves. A stream of which the size is not known is always overlapped.
+	 */
+	static final int MIN_OVERLAPPED_SIZE = 256 * 1024;
+
+	/**
+	 * Marks the end of what is read in the ring of an overlapped copy
+	 */
+	private static final Segment END = new Segment(null, EOF);
+
+	private static ExecutorService executor;
+
+	private static final AtomicLong BYTES_COPIED = new AtomicLong();
+
+	private static final AtomicLong COPY_NANOS = new AtomicLong();
+
+	/**
+	 * The measured throughput in bytes per second, 0 when not measured yet
+	 */
+	private static volatile double throughput = 0;
 
 	/**
 	 * Copy bytes from an {@link InputStream} to an {@link OutputStream}. This copy function works the same as the
@@ -24,26 +102,335 @@ public class CopyTool {
 	 *            the {@link OutputStream} to write to
 	 * @param stopBoolean
 	 *            the boolean which notifies the copyUntil it has to stop
-	 * @return the number of bytes copied, or -1 if Integer.MAX_VALUE
+	 * @return the number of bytes copied, also when it is more than Integer.MAX_VALUE
 	 * @throws IOException
 	 *             if an I/O error occurs
 	 * @throws CopyInterruptedException
 	 *             if the copy was interrupted with the stopBoolean
 	 */
 	public static long copyUntil(InputStream input, OutputStream output, AtomicBoolean stopBoolean) throws IOException, CopyInterruptedException {
-		byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+		BufferPool pool = BufferPool.getInstance();
+		byte[] buffer = acquireBuffer(chooseBufferSize(input.available()));
+		long start = System.nanoTime();
+		long count = 0;
+		try {
+			int n;
+			while (EOF != (n = input.read(buffer)) && !stopBoolean.get()) {
+				output.write(buffer, 0, n);
+				count += n;
+			}
+		} finally {
+			pool.release(buffer);
+			count(count, System.nanoTime() - start);
+		}
+		if (stopBoolean.get()) {
+			throw new CopyInterruptedException("The copyUntil got interrupted by the stopBoolean.");
+		}
+		return count;
+	}
+
+	/**
+	 * Copy bytes from an {@link InputStream} to an {@link OutputStream} and update a {@link MessageDigest} with them,
+	 * until the stopBoolean is true. A file is read from its {@link FileChannel} by an {@link OutputStream} which is a
+	 * {@link ChannelTarget}, otherwise this works like {@link #copyUntil(InputStream, OutputStream, AtomicBoolean)}.
+	 * 
+	 * @param input
+	 *            the {@link InputStream} to read from
+	 * @param output
+	 *            the {@link OutputStream} to write to
+	 * @param digest
+	 *            the {@link MessageDigest} to update with the bytes, null to copy without hashing
+	 * @param stopBoolean
+	 *            the boolean which notifies the copyUntil it has to stop
+	 * @return the number of bytes copied, also when it is more than Integer.MAX_VALUE
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws CopyInterruptedException
+	 *             if the copy was interrupted with the stopBoolean
+	 */
+	public static long copyUntil(InputStream input, OutputStream output, MessageDigest digest, AtomicBoolean stopBoolean) throws IOException,
+		CopyInterruptedException {
+		if (input instanceof FileInputStream && output instanceof ChannelTarget) {
+			long start = System.nanoTime();
+			long count = ((ChannelTarget) output).transferFrom(((FileInputStream) input).getChannel(), digest, stopBoolean);
+			count(count, System.nanoTime() - start);
+			return count;
+		}
+		if (digest == null) {
+			return copyUntilOverlapped(input, output, stopBoolean);
+		}
+		return copyUntilOverlapped(input, new DigestOutputStream(output, digest), stopBoolean);
+	}
+
+	/**
+	 * Copy bytes from an {@link InputStream} to an {@link OutputStream} like
+	 * {@link #copyUntil(InputStream, OutputStream, AtomicBoolean)}, but the {@link InputStream} is read on a copy thread
+	 * while the calling thread writes to the {@link OutputStream}. The reading thread is at most {@link #RING_BUFFERS}
+	 * buffers ahead, each thread blocks until the other hands it a buffer or room for one. When the stopBoolean is true
+	 * both stop after the buffer they are busy with. When less than {@link #MIN_OVERLAPPED_SIZE} bytes are available it
+	 * is copied on the calling thread.
+	 * 
+	 * @param input
+	 *            the {@link InputStream} to read from
+	 * @param output
+	 *            the {@link OutputStream} to write to
+	 * @param stopBoolean
+	 *            the boolean which notifies the copyUntil it has to stop
+	 * @return the number of bytes copied, also when it is more than Integer.MAX_VALUE
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @throws CopyInterruptedException
+	 *             if the copy was interrupted with the stopBoolean
+	 */
+	public static long copyUntilOverlapped(final InputStream input, OutputStream output, final AtomicBoolean stopBoolean) throws IOException,
+		CopyInterruptedException {
+		int available = input.available();
+		if (available > 0 && available < MIN_OVERLAPPED_SIZE) {
+			return copyUntil(input, output, stopBoolean);
+		}
+		final BufferPool pool = BufferPool.getInstance();
+		final int bufferSize = chooseBufferSize(available);
+		final BlockingQueue<Segment> ring = new ArrayBlockingQueue<>(RING_BUFFERS);
+		final AtomicBoolean done = new AtomicBoolean();
+		long start = System.nanoTime();
 		long count = 0;
-		int n;
-		while (EOF != (n = input.read(buffer)) && !stopBoolean.get()) {
-			output.write(buffer, 0, n);
-			count += n;
+
+		Future<Void> reader = getExecutor().submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					while (!stopBoolean.get() && !done.get()) {
+						byte[] buffer = acquireBuffer(bufferSize);
+						int n = input.read(buffer);
+						if (n == EOF) {
+							pool.release(buffer);
+							break;
+						}
+						// Taken by the writing side, also when it is done
+						ring.put(new Segment(buffer, n));
+					}
+				} finally {
+					ring.put(END);
+				}
+				return null;
+			}
+		});
+
+		boolean ended = false;
+		try {
+			while (!stopBoolean.get()) {
+				Segment segment = ring.take();
+				if (segment == END) {
+					ended = true;
+					break;
+				}
+				try {
+					output.write(segment.buffer, 0, segment.length);
+				} finally {
+					pool.release(segment.buffer);
+				}
+				count += segment.length;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while copying");
+		} finally {
+			done.set(true);
+			try {
+				if (!ended) {
+					// Waits for a read in progress, like a copy on one thread does
+					drain(ring, pool);
+				}
+				getResult(reader);
+			} finally {
+				count(count, System.nanoTime() - start);
+			}
 		}
 		if (stopBoolean.get()) {
 			throw new CopyInterruptedException("The copyUntil got interrupted by the stopBoolean.");
 		}
-		if (count > Integer.MAX_VALUE) {
-			return -1;
+		return count;
+	}
+
+	/**
+	 * Takes what is left in the ring of an overlapped copy after the writing side stopped, until the reading side
+	 * puts the end, and returns the buffers to the pool
+	 * 
+	 * @param ring
+	 *            The ring
+	 * @param pool
+	 *            The {@link BufferPool} of the buffers
+	 */
+	private static void drain(BlockingQueue<Segment> ring, BufferPool pool) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					Segment segment = ring.take();
+					if (segment == END) {
+						return;
+					}
+					pool.release(segment.buffer);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the reading side of an overlapped copy and throws what it failed with
+	 * 
+	 * @param reader
+	 *            The {@link Future} of the reading side
+	 * @throws IOException
+	 *             if the reading failed
+	 */
+	private static void getResult(Future<Void> reader) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					reader.get();
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Could not read", e.getCause());
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Copy Thread " + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Takes a copy buffer from the shared {@link BufferPool}. The size is rounded up to a power of two, so buffers are
+	 * reused by copies of about the same size. When it does not fit under the cap of the pool a smaller buffer is
+	 * given, down to {@link #MIN_BUFFER_SIZE} for which is waited.
+	 * 
+	 * @param size
+	 *            The wanted size
+	 * @return The buffer, it has to be released to the shared {@link BufferPool}
+	 */
+	private static byte[] acquireBuffer(int size) {
+		BufferPool pool = BufferPool.getInstance();
+		int bufferSize = MIN_BUFFER_SIZE;
+		while (bufferSize < size && bufferSize < MAX_BUFFER_SIZE) {
+			bufferSize <<= 1;
+		}
+		for (; bufferSize > MIN_BUFFER_SIZE; bufferSize >>= 1) {
+			byte[] buffer = pool.tryAcquire(bufferSize);
+			if (buffer != null) {
+				return buffer;
+			}
+		}
+		return pool.acquire(MIN_BUFFER_SIZE);
+	}
+
+	/**
+	 * Chooses the size of a copy buffer
+	 * 
+	 * @param expectedSize
+	 *            The amount of bytes expected to be copied, 0 if not known
+	 * @return The size, between {@link #MIN_BUFFER_SIZE} and {@link #MAX_BUFFER_SIZE}
+	 */
+	static int chooseBufferSize(long expectedSize) {
+		double measured = throughput;
+		long size;
+		if (measured > 0) {
+			size = (long) (measured * TARGET_BUFFER_TIME / 1e9);
+		} else {
+			size = expectedSize > 0 ? DEFAULT_BUFFER_SIZE : MIN_BUFFER_SIZE;
+		}
+		// No larger than what is copied
+		if (expectedSize > 0) {
+			size = Math.min(size, expectedSize);
+		}
+		return (int) Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, size));
+	}
+
+	/**
+	 * Counts a copy and updates the measured throughput with it
+	 * 
+	 * @param bytes
+	 *            The bytes copied
+	 * @param nanos
+	 *            The time the copy took in nanoseconds
+	 */
+	private static void count(long bytes, long nanos) {
+		BYTES_COPIED.addAndGet(bytes);
+		COPY_NANOS.addAndGet(nanos);
+		if (bytes >= MIN_MEASURED_SIZE && nanos > 0) {
+			double last = bytes * 1e9 / nanos;
+			double measured = throughput;
+			throughput = measured > 0 ? measured + THROUGHPUT_WEIGHT * (last - measured) : last;
+		}
+	}
+
+	/**
+	 * Returns the amount of bytes copied since the start
+	 * 
+	 * @return The amount of bytes
+	 */
+	public static long getBytesCopied() {
+		return BYTES_COPIED.get();
+	}
+
+	/**
+	 * Returns the time spent copying since the start, copies at the same time are all counted
+	 * 
+	 * @return The time in nanoseconds
+	 */
+	public static long getCopyNanos() {
+		return COPY_NANOS.get();
+	}
+
+	/**
+	 * Returns the measured throughput of the copies
+	 * 
+	 * @return The throughput in bytes per second, 0 if not measured yet
+	 */
+	public static double getThroughput() {
+		return throughput;
+	}
+
+	/**
+	 * A buffer in the ring of an overlapped copy with the amount of bytes read into it
+	 */
+	private static final class Segment {
+		private final byte[] buffer;
+
+		private final int length;
+
+		private Segment(byte[] buffer, int length) {
+			this.buffer = buffer;
+			this.length = length;
 		}
-		return (int) count;
 	}
 }
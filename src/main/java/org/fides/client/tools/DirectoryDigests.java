@@ -0,0 +1,123 @@
+package org.fides.client.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Remembers the digest of every directory which was in sync at the end of the last complete compare: the digest of the
+ * local files directly in the directory together with the digest of the server files directly in it. When both are still
+ * the same the files of the directory do not have to be compared again. The digests are stored in a {@link HashJournal} next to the local
+ * hashes.
+ */
+public final class DirectoryDigests {
+	/**
+	 * Log for this class
+	 */
+	private static final Logger LOG = LogManager.getLogger(DirectoryDigests.class);
+
+	private static final String DIGESTS_FILE = "directories.journal";
+
+	private static DirectoryDigests instance;
+
+	/**
+	 * The name of the directory mapped to its digest, the root directory has an empty name
+	 */
+	private final Map<String, String> digests = new ConcurrentHashMap<>();
+
+	private final HashJournal journal;
+
+	/**
+	 * Constructor for DirectoryDigests, loads the stored digests
+	 */
+	private DirectoryDigests() {
+		journal = new HashJournal(new File(UserProperties.SETTINGS_DIRECTORY, DIGESTS_FILE));
+		try {
+			journal.load(digests);
+		} catch (IOException e) {
+			LOG.error(e);
+		}
+	}
+
+	/**
+	 * Returns the digest of a directory which was in sync
+	 *
+	 * @param directory
+	 *            The name of the directory
+	 * @return The digest, null if the directory was not in sync
+	 */
+	public String getDigest(String directory) {
+		return digests.get(directory);
+	}
+
+	/**
+	 * Replaces the stored digests, only the changes are appended to the journal
+	 *
+	 * @param inSync
+	 *            The directories which are in sync mapped to their digest
+	 */
+	public synchronized void replaceAll(Map<String, String> inSync) {
+		try {
+			Iterator<String> iterator = digests.keySet().iterator();
+			while (iterator.hasNext()) {
+				String directory = iterator.next();
+				if (!inSync.containsKey(directory)) {
+					iterator.remove();
+					journal.appendRemove(directory);
+				}
+			}
+			for (Entry<String, String> entry : inSync.entrySet()) {
+				if (!entry.getValue().equals(digests.put(entry.getKey(), entry.getValue()))) {
+					journal.appendSet(entry.getKey(), entry.getValue());
+				}
+			}
+			compactIfNeeded();
+		} catch (IOException e) {
+			// We accept this, the directories are compared again
+			LOG.warn(e);
+		}
+	}
+
+	/**
+	 * Removes all digests, every directory is compared again
+	 */
+	public synchronized void removeAllDigests() {
+		digests.clear();
+		try {
+			journal.compact(digests);
+		} catch (IOException e) {
+			// We accept this
+			LOG.warn(e);
+		}
+	}
+
+	/**
+	 * Compacts the journal when it holds too many outdated records
+	 *
+	 * @throws IOException
+	 */
+	private void compactIfNeeded() throws IOException {
+		if (journal.needsCompaction(digests.size())) {
+			journal.compact(digests);
+		}
+	}
+
+	/**
+	 * Returns the instance of the {@link DirectoryDigests}, this is a singleton. If the {@link DirectoryDigests} are not
+	 * loaded they will be.
+	 *
+	 * @return The instance of the {@link DirectoryDigests}
+	 */
+	public static synchronized DirectoryDigests getInstance() {
+		if (instance == null) {
+			instance = new DirectoryDigests();
+		}
+		return instance;
+	}
+}
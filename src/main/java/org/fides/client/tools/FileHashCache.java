@@ -0,0 +1,237 @@
+package org.fides.client.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Remembers the hash of a local file together with the identity of the file at the time it was hashed: the size, the
+ * modification time and the file key (the inode on most systems). As long as the identity does not change the file
+ * does not have to be read again to know its hash. A file has an entry per hash algorithm, so hashing it with another
+ * algorithm does not replace its entry. The entries are stored in a {@link HashJournal} next to the local hashes.
+ */
+public final class FileHashCache {
+	/**
+	 * Log for this class
+	 */
+	private static final Logger LOG = LogManager.getLogger(FileHashCache.class);
+
+	private static final String CACHE_FILE = "filehashes.journal";
+
+	/**
+	 * Files modified this recently (in milliseconds) are not cached, a second change within the resolution of the
+	 * modification time would not change the identity
+	 */
+	private static final long MIN_AGE = 2000;
+
+	private static final char SEPARATOR = '|';
+
+	/**
+	 * Separates the path from the algorithm in the key of an entry, it can not be part of a path
+	 */
+	private static final char KEY_SEPARATOR = '\u0000';
+
+	private static FileHashCache instance;
+
+	/**
+	 * The path of the file and the algorithm mapped to its identity and hash
+	 */
+	private final Map<String, String> entries = new ConcurrentHashMap<>();
+
+	private final HashJournal journal;
+
+	/**
+	 * Constructor for FileHashCache, loads the stored entries
+	 *
+	 * @param journalFile
+	 *            The file of the {@link HashJournal}
+	 */
+	FileHashCache(File journalFile) {
+		journal = new HashJournal(journalFile);
+		try {
+			journal.load(entries);
+			// Entries stored by path only, before they had an algorithm, are never looked up
+			Iterator<String> iterator = entries.keySet().iterator();
+			while (iterator.hasNext()) {
+				String key = iterator.next();
+				if (key.indexOf(KEY_SEPARATOR) < 0) {
+					iterator.remove();
+					journal.appendRemove(key);
+				}
+			}
+		} catch (IOException e) {
+			LOG.error(e);
+		}
+	}
+
+	/**
+	 * Returns the cached hash of a file if the file did not change since it was hashed
+	 *
+	 * @param file
+	 *            The file
+	 * @param algorithm
+	 *            The name of the hash algorithm
+	 * @param attributes
+	 *            The current attributes of the file
+	 * @return The hash, null if not cached or the file changed
+	 */
+	public String getHash(File file, String algorithm, BasicFileAttributes attributes) {
+		String entry = entries.get(key(file, algorithm));
+		if (entry == null) {
+			return null;
+		}
+		int separator = entry.lastIndexOf(SEPARATOR);
+		if (entry.substring(0, separator).equals(identity(attributes))) {
+			return entry.substring(separator + 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Caches the hash of a file. The hash is only cached when the file did not change while it was hashed and was not
+	 * modified too recently.
+	 *
+	 * @param file
+	 *            The hashed file
+	 * @param algorithm
+	 *            The name of the hash algorithm
+	 * @param before
+	 *            The attributes of the file before hashing
+	 * @param after
+	 *            The attributes of the file after hashing
+	 * @param hash
+	 *            The hash of the file
+	 */
+	public synchronized void setHash(File file, String algorithm, BasicFileAttributes before, BasicFileAttributes after, String hash) {
+		String identity = identity(after);
+		if (!identity.equals(identity(before)) || System.currentTimeMillis() - after.lastModifiedTime().toMillis() < MIN_AGE) {
+			return;
+		}
+		String key = key(file, algorithm);
+		String entry = identity + SEPARATOR + hash;
+		if (entry.equals(entries.put(key, entry))) {
+			return;
+		}
+		try {
+			journal.appendSet(key, entry);
+			compactIfNeeded();
+		} catch (IOException e) {
+			// We accept this, it is only a cache
+			LOG.warn(e);
+		}
+	}
+
+	/**
+	 * Removes the entries of all files which are not in the collection
+	 *
+	 * @param files
+	 *            The files which still exist
+	 */
+	public synchronized void retainAll(Collection<File> files) {
+		Set<String> paths = new HashSet<>();
+		for (File file : files) {
+			paths.add(file.getAbsolutePath());
+		}
+		try {
+			Iterator<String> iterator = entries.keySet().iterator();
+			while (iterator.hasNext()) {
+				String key = iterator.next();
+				if (!paths.contains(pathOf(key))) {
+					iterator.remove();
+					journal.appendRemove(key);
+				}
+			}
+			compactIfNeeded();
+		} catch (IOException e) {
+			LOG.warn(e);
+		}
+	}
+
+	/**
+	 * Removes the entries of all files which do not exist anymore, for when the existing files are not collected
+	 */
+	public synchronized void removeMissing() {
+		try {
+			Iterator<String> iterator = entries.keySet().iterator();
+			while (iterator.hasNext()) {
+				String key = iterator.next();
+				if (!new File(pathOf(key)).isFile()) {
+					iterator.remove();
+					journal.appendRemove(key);
+				}
+			}
+			compactIfNeeded();
+		} catch (IOException e) {
+			LOG.warn(e);
+		}
+	}
+
+	/**
+	 * Compacts the journal when it holds too many outdated records
+	 *
+	 * @throws IOException
+	 */
+	private void compactIfNeeded() throws IOException {
+		if (journal.needsCompaction(entries.size())) {
+			journal.compact(entries);
+		}
+	}
+
+	/**
+	 * Returns the key of the entry of a file and a hash algorithm
+	 *
+	 * @param file
+	 *            The file
+	 * @param algorithm
+	 *            The name of the hash algorithm
+	 * @return The key
+	 */
+	private static String key(File file, String algorithm) {
+		return file.getAbsolutePath() + KEY_SEPARATOR + algorithm;
+	}
+
+	/**
+	 * Returns the path of the file of an entry
+	 *
+	 * @param key
+	 *            The key of the entry
+	 * @return The absolute path
+	 */
+	private static String pathOf(String key) {
+		return key.substring(0, key.lastIndexOf(KEY_SEPARATOR));
+	}
+
+	/**
+	 * Creates the identity of a file from its attributes, it changes when the file is changed
+	 *
+	 * @param attributes
+	 *            The attributes of the file
+	 * @return The identity
+	 */
+	public static String identity(BasicFileAttributes attributes) {
+		Object fileKey = attributes.fileKey();
+		return attributes.size() + ":" + attributes.lastModifiedTime().toMillis() + ":" + (fileKey != null ? fileKey : "");
+	}
+
+	/**
+	 * Returns the instance of the {@link FileHashCache}, this is a singleton. If the {@link FileHashCache} is not loaded
+	 * it will be.
+	 *
+	 * @return The instance of the {@link FileHashCache}
+	 */
+	public static synchronized FileHashCache getInstance() {
+		if (instance == null) {
+			instance = new FileHashCache(new File(UserProperties.SETTINGS_DIRECTORY, CACHE_FILE));
+		}
+		return instance;
+	}
+}
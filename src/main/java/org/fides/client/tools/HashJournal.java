@@ -0,0 +1,282 @@
+package org.fides.client.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An append-only binary journal of hash changes. Every change is appended as a single record, so the cost of a change
+ * does not depend on the amount of stored hashes. When the journal holds much more records than live hashes it is
+ * compacted into a new file which replaces the old one atomically.
+ * <p>
+ * The file starts with a magic number, followed by records of the form <code>length, crc32, payload</code>. On load the
+ * records are replayed until the first incomplete or damaged record, which is what a crash during an append leaves
+ * behind. The file is truncated after the last valid record.
+ */
+final class HashJournal implements Closeable {
+	/**
+	 * Log for this class
+	 */
+	private static final Logger LOG = LogManager.getLogger(HashJournal.class);
+
+	/**
+	 * "FHJ1", the magic number and version of the journal
+	 */
+	private static final int MAGIC = 0x46484a31;
+
+	private static final int HEADER_SIZE = 4;
+
+	private static final byte SET = 1;
+
+	private static final byte REMOVE = 2;
+
+	/**
+	 * The largest payload a record can have, anything larger is seen as damage
+	 */
+	private static final int MAX_RECORD_SIZE = 3 * 65536;
+
+	/**
+	 * The amount of records below which the journal is never compacted
+	 */
+	private static final int MIN_COMPACT_RECORDS = 1024;
+
+	private final File file;
+
+	private DataOutputStream out;
+
+	private int records;
+
+	/**
+	 * Constructor for HashJournal
+	 *
+	 * @param file
+	 *            The file of the journal
+	 */
+	HashJournal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Replays the journal into the map and opens it for appending. A damaged tail is cut off.
+	 *
+	 * @param hashes
+	 *            The map to put the hashes in
+	 * @throws IOException
+	 */
+	void load(Map<String, String> hashes) throws IOException {
+		close();
+		long validLength = HEADER_SIZE;
+		records = 0;
+		if (file.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				if (in.readInt() != MAGIC) {
+					throw new IOException("Not a hash journal: " + file);
+				}
+				byte[] payload;
+				while ((payload = readRecord(in)) != null && replay(payload, hashes)) {
+					validLength += 8 + payload.length;
+					records++;
+				}
+			} catch (EOFException e) {
+				// Shorter than the header, the journal was never completely created
+				validLength = 0;
+			}
+			if (validLength < file.length()) {
+				LOG.warn("Truncating damaged hash journal " + file + " from " + file.length() + " to " + validLength + " bytes");
+				try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+					raf.setLength(validLength);
+				}
+			}
+		}
+		if (!file.exists() || file.length() == 0) {
+			compact(hashes);
+		} else {
+			out = new DataOutputStream(new FileOutputStream(file, true));
+		}
+	}
+
+	/**
+	 * Reads the next record
+	 *
+	 * @param in
+	 *            The stream to read from
+	 * @return The payload of the record, or null at the end of the valid records
+	 * @throws IOException
+	 */
+	private static byte[] readRecord(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			int crc = in.readInt();
+			if (length < 0 || length > MAX_RECORD_SIZE) {
+				return null;
+			}
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			if (crc(payload) != crc) {
+				return null;
+			}
+			return payload;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Applies a record to the map
+	 *
+	 * @param payload
+	 *            The payload of the record
+	 * @param hashes
+	 *            The map to change
+	 * @return true if applied, false if the record is not valid
+	 */
+	private static boolean replay(byte[] payload, Map<String, String> hashes) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			byte type = in.readByte();
+			String name = in.readUTF();
+			if (type == SET) {
+				hashes.put(name, in.readUTF());
+				return true;
+			} else if (type == REMOVE) {
+				hashes.remove(name);
+				return true;
+			}
+		} catch (IOException e) {
+			LOG.debug(e);
+		}
+		return false;
+	}
+
+	/**
+	 * Appends the change of a hash
+	 *
+	 * @param name
+	 *            The name of the file
+	 * @param hash
+	 *            The new hash
+	 * @throws IOException
+	 */
+	void appendSet(String name, String hash) throws IOException {
+		append(payload(SET, name, hash));
+	}
+
+	/**
+	 * Appends the removal of a hash
+	 *
+	 * @param name
+	 *            The name of the file
+	 * @throws IOException
+	 */
+	void appendRemove(String name) throws IOException {
+		append(payload(REMOVE, name, null));
+	}
+
+	/**
+	 * Whether the journal holds so many records compared to the live hashes that it should be compacted
+	 *
+	 * @param liveHashes
+	 *            The amount of current hashes
+	 * @return true if a compaction is advised
+	 */
+	boolean needsCompaction(int liveHashes) {
+		return records > MIN_COMPACT_RECORDS && records > 2 * liveHashes;
+	}
+
+	/**
+	 * Writes a new journal with one record per hash and replaces the old journal with it
+	 *
+	 * @param hashes
+	 *            The current hashes
+	 * @throws IOException
+	 */
+	void compact(Map<String, String> hashes) throws IOException {
+		close();
+		File tempFile = new File(file.getPath() + ".tmp");
+		int written = 0;
+		try (FileOutputStream fileOut = new FileOutputStream(tempFile)) {
+			DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(fileOut));
+			tempOut.writeInt(MAGIC);
+			for (Entry<String, String> entry : hashes.entrySet()) {
+				writeRecord(tempOut, payload(SET, entry.getKey(), entry.getValue()));
+				written++;
+			}
+			tempOut.flush();
+			// The new journal has to be on disk before it replaces the old one
+			fileOut.getFD().sync();
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		records = written;
+		out = new DataOutputStream(new FileOutputStream(file, true));
+	}
+
+	/**
+	 * Appends a record to the journal, the record is written with a single write
+	 *
+	 * @param payload
+	 *            The payload of the record
+	 * @throws IOException
+	 */
+	private void append(byte[] payload) throws IOException {
+		if (out == null) {
+			throw new IOException("The hash journal is not loaded");
+		}
+		ByteArrayOutputStream record = new ByteArrayOutputStream(payload.length + 8);
+		writeRecord(new DataOutputStream(record), payload);
+		record.writeTo(out);
+		out.flush();
+		records++;
+	}
+
+	private static void writeRecord(DataOutputStream dataOut, byte[] payload) throws IOException {
+		dataOut.writeInt(payload.length);
+		dataOut.writeInt(crc(payload));
+		dataOut.write(payload);
+	}
+
+	private static byte[] payload(byte type, String name, String hash) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream dataOut = new DataOutputStream(bytes);
+		dataOut.writeByte(type);
+		dataOut.writeUTF(name);
+		if (hash != null) {
+			dataOut.writeUTF(hash);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static int crc(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+	int getRecords() {
+		return records;
+	}
+
+	@Override
+	public void close() {
+		IOUtils.closeQuietly(out);
+		out = null;
+	}
+}
@@ -2,17 +2,19 @@ package org.fides.client.tools;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
- * Used for loading and storing local hashes
+ * Used for loading and storing local hashes. Every change is appended to a {@link HashJournal}, hashes stored by older
+ * versions in an XML file are moved to the journal once.
  *
  */
 public final class LocalHashes {
@@ -21,20 +23,47 @@ public final class LocalHashes {
 	 */
 	private static final Logger LOG = LogManager.getLogger(LocalHashes.class);
 
-	private static final String LOCAL_HASHES_FILE = "hashes.xml";
+	private static final String LOCAL_HASHES_FILE = "hashes.journal";
+
+	/**
+	 * The file the hashes were stored in before the journal
+	 */
+	private static final String LEGACY_HASHES_FILE = "hashes.xml";
 
 	private static LocalHashes instance;
 
-	private final Properties localHashes = new Properties();
+	private final Map<String, String> localHashes = new ConcurrentHashMap<>();
+
+	private final HashJournal journal;
 
 	/**
-	 * Constructor for LocalHashes, checks if the hash file exists and loads the local hashes
+	 * Constructor for LocalHashes, replays the journal and moves the hashes of an old hash file into it
 	 */
 	private LocalHashes() {
-		File file = new File(UserProperties.SETTINGS_DIRECTORY, LOCAL_HASHES_FILE);
-		if (file.exists()) {
-			try (InputStream in = new FileInputStream(file)) {
-				localHashes.loadFromXML(in);
+		journal = new HashJournal(new File(UserProperties.SETTINGS_DIRECTORY, LOCAL_HASHES_FILE));
+		try {
+			journal.load(localHashes);
+		} catch (IOException e) {
+			LOG.error(e);
+		}
+
+		File legacyFile = new File(UserProperties.SETTINGS_DIRECTORY, LEGACY_HASHES_FILE);
+		if (legacyFile.exists()) {
+			Properties legacyHashes = new Properties();
+			try (InputStream in = new FileInputStream(legacyFile)) {
+				legacyHashes.loadFromXML(in);
+			} catch (IOException e) {
+				LOG.error(e);
+				return;
+			}
+			for (Entry<Object, Object> entry : legacyHashes.entrySet()) {
+				localHashes.put((String) entry.getKey(), (String) entry.getValue());
+			}
+			try {
+				journal.compact(localHashes);
+				if (!legacyFile.delete()) {
+					LOG.warn("Could not delete " + legacyFile);
+				}
 			} catch (IOException e) {
 				LOG.error(e);
 			}
@@ -49,7 +78,7 @@ public final class LocalHashes {
 	 * @return The hash for the file, null if not existing
 	 */
 	public String getHash(String filename) {
-		return localHashes.getProperty(filename);
+		return localHashes.get(filename);
 	}
 
 	/**
@@ -60,21 +89,27 @@ public final class LocalHashes {
 	 * @param hash
 	 *            The has of the file
 	 */
-	public void setHash(String fileName, String hash) {
-		localHashes.setProperty(fileName, hash);
-		saveHashes();
+	public synchronized void setHash(String fileName, String hash) {
+		if (hash.equals(localHashes.put(fileName, hash))) {
+			return;
+		}
+		try {
+			journal.appendSet(fileName, hash);
+			compactIfNeeded();
+		} catch (IOException e) {
+			// We accept this
+			LOG.warn(e);
+		}
 	}
 
 	/**
-	 * Saves the Properties with the current hashes
+	 * Compacts the journal when it holds too many outdated records
+	 * 
+	 * @throws IOException
 	 */
-	private synchronized void saveHashes() {
-		File file = new File(UserProperties.SETTINGS_DIRECTORY, LOCAL_HASHES_FILE);
-		try (OutputStream out = new FileOutputStream(file)) {
-			localHashes.storeToXML(out, "Local file hashes");
-		} catch (IOException e) {
-			// We accept this
-			LOG.warn(e);
+	private void compactIfNeeded() throws IOException {
+		if (journal.needsCompaction(localHashes.size())) {
+			journal.compact(localHashes);
 		}
 	}
 
@@ -85,10 +120,17 @@ public final class LocalHashes {
 	 *            The filename of the hash
 	 * @return Whether the remove was successful or not
 	 */
-	public boolean removeHash(String fileName) {
+	public synchronized boolean removeHash(String fileName) {
 		if (fileName != null) {
-			localHashes.remove(fileName);
-			saveHashes();
+			if (localHashes.remove(fileName) != null) {
+				try {
+					journal.appendRemove(fileName);
+					compactIfNeeded();
+				} catch (IOException e) {
+					// We accept this
+					LOG.warn(e);
+				}
+			}
 			return true;
 		}
 		LOG.debug("Given filename was NULL");
@@ -98,9 +140,14 @@ public final class LocalHashes {
 	/**
 	 * Removes all hashes from the local hashes
 	 */
-	public void removeAllHashes() {
+	public synchronized void removeAllHashes() {
 		localHashes.clear();
-		saveHashes();
+		try {
+			journal.compact(localHashes);
+		} catch (IOException e) {
+			// We accept this
+			LOG.warn(e);
+		}
 	}
 
 	/**
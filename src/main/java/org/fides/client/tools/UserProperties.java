@@ -35,6 +35,16 @@ public final class UserProperties {
 	 */
 	private static final String DEFAULT_FILE_DIR = "./Fides";
 
+	/**
+	 * The default quiet period of local changes in milliseconds
+	 */
+	private static final int DEFAULT_QUIET_PERIOD = 500;
+
+	/**
+	 * The default memory budget of a sorted compare in megabytes
+	 */
+	private static final int DEFAULT_COMPARE_MEMORY = 64;
+
 	/**
 	 * The file containing the user settings
 	 */
@@ -80,6 +90,21 @@ public final class UserProperties {
 	 */
 	private static final String CHECK_TIME_KEY = "CheckTime";
 
+	/**
+	 * The maximum amount of files opened at the same time while hashing
+	 */
+	private static final String HASH_OPEN_FILES_KEY = "HashOpenFiles";
+
+	/**
+	 * The time in milliseconds a local file has to be unchanged before it is synchronized
+	 */
+	private static final String QUIET_PERIOD_KEY = "QuietPeriod";
+
+	/**
+	 * The memory in megabytes a compare of a huge tree may use for the sorted names before it spills them to disk
+	 */
+	private static final String COMPARE_MEMORY_KEY = "CompareMemory";
+
 	/**
 	 * Singleton instance
 	 */
@@ -305,6 +330,47 @@ public final class UserProperties {
 
 	}
 
+	/**
+	 * Get the quiet period of local changes
+	 * 
+	 * @return The time in milliseconds a local file has to be unchanged before it is synchronized, 500 if not set or
+	 *         incorrect
+	 */
+	public int getQuietPeriodInMillis() {
+		String quietPeriod = properties.getProperty(QUIET_PERIOD_KEY);
+		if (StringUtils.isNotBlank(quietPeriod) && StringUtils.isNumeric(quietPeriod) && Integer.parseInt(quietPeriod) > 0) {
+			return Integer.parseInt(quietPeriod);
+		}
+		return DEFAULT_QUIET_PERIOD;
+	}
+
+	/**
+	 * Get the maximum amount of files opened at the same time while hashing. A low value suits spinning disks, where
+	 * parallel reads cause seeking.
+	 * 
+	 * @return The maximum amount of open files, the amount of cores if not set or incorrect
+	 */
+	public int getHashOpenFiles() {
+		String openFiles = properties.getProperty(HASH_OPEN_FILES_KEY);
+		if (StringUtils.isNotBlank(openFiles) && StringUtils.isNumeric(openFiles) && Integer.parseInt(openFiles) > 0) {
+			return Integer.parseInt(openFiles);
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Get the memory budget of a sorted compare of a huge tree, above which the sorted names are spilled to disk
+	 * 
+	 * @return The memory budget in bytes, 64 megabytes if not set or incorrect
+	 */
+	public long getCompareMemory() {
+		String compareMemory = properties.getProperty(COMPARE_MEMORY_KEY);
+		if (StringUtils.isNotBlank(compareMemory) && StringUtils.isNumeric(compareMemory) && Integer.parseInt(compareMemory) > 0) {
+			return Integer.parseInt(compareMemory) * 1024L * 1024L;
+		}
+		return DEFAULT_COMPARE_MEMORY * 1024L * 1024L;
+	}
+
 	/**
 	 * Save the properties
 	 */
@@ -17,6 +17,7 @@ import org.fides.client.connector.ServerConnector;
 import org.fides.client.encryption.EncryptionManager;
 import org.fides.client.files.data.KeyFile;
 import org.fides.client.tools.CertificateUtil;
+import org.fides.client.tools.DirectoryDigests;
 import org.fides.client.tools.LocalHashes;
 import org.fides.client.tools.UserProperties;
 import org.fides.client.ui.AuthenticateUser;
@@ -86,6 +87,7 @@ public class ChangeServerPanel extends SettingsJPanel {
 						UserProperties.getInstance().setServerAddress(serverAddress);
 						UserProperties.getInstance().setCertificate(certificate);
 						LocalHashes.getInstance().removeAllHashes();
+						DirectoryDigests.getInstance().removeAllDigests();
 						keyFileCheck();
 					} else {
 						errorMessages.add(new UserMessage("Could not authenticate user", true));
@@ -0,0 +1,101 @@
+package org.fides.client.connector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Tests for the {@link ServerConnection}
+ */
+public class ServerConnectionTest {
+
+	private static final byte[] FIRST = "First response".getBytes();
+
+	private static final byte[] SECOND = "Second response".getBytes();
+
+	private SocketInput socketInput;
+
+	private ServerConnection connection;
+
+	/**
+	 * Creates a connection on a socket with two responses waiting
+	 *
+	 * @throws IOException
+	 */
+	@Before
+	public void setUp() throws IOException {
+		ByteArrayOutputStream responses = new ByteArrayOutputStream();
+		responses.write(FIRST);
+		responses.write(SECOND);
+		socketInput = new SocketInput(responses.toByteArray());
+
+		SSLSocket socket = Mockito.mock(SSLSocket.class);
+		Mockito.when(socket.getSession()).thenReturn(Mockito.mock(SSLSession.class));
+		Mockito.when(socket.getInputStream()).thenReturn(socketInput);
+		Mockito.when(socket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+		Mockito.when(socket.isConnected()).thenReturn(true);
+		connection = new ServerConnection(new InetSocketAddress("localhost", 4444), socket);
+	}
+
+	/**
+	 * Tests that a response stream closed before its end is drained, and that the connection is reused for the next
+	 * response without its socket stream being closed
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testReuseAfterClose() throws IOException {
+		InputStream first = connection.trackInput(new BoundedInputStream(connection.getInputStream(), FIRST.length));
+		assertFalse(connection.isReusable());
+		assertEquals(FIRST[0], first.read());
+		first.close();
+		assertTrue(connection.isReusable());
+		assertFalse(socketInput.closed);
+		try {
+			first.read();
+			fail("A closed response stream could be read");
+		} catch (IOException e) {
+			// Expected
+		}
+
+		try (InputStream second = connection.trackInput(new BoundedInputStream(connection.getInputStream(), SECOND.length))) {
+			assertArrayEquals(SECOND, IOUtils.toByteArray(second));
+		}
+		assertTrue(connection.isReusable());
+		assertFalse(socketInput.closed);
+	}
+
+	/**
+	 * The stream of the socket, which remembers whether it was closed
+	 */
+	private static final class SocketInput extends ByteArrayInputStream {
+		private boolean closed = false;
+
+		private SocketInput(byte[] bytes) {
+			super(bytes);
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			super.close();
+		}
+	}
+}
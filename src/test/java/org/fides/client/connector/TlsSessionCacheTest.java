@@ -0,0 +1,90 @@
+package org.fides.client.connector;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetSocketAddress;
+
+import javax.net.ssl.SSLSession;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Tests how the {@link TlsSessionCache} counts resumed and full handshakes
+ */
+public class TlsSessionCacheTest {
+
+	private static final InetSocketAddress SERVER = InetSocketAddress.createUnresolved("server", 4444);
+
+	private static final InetSocketAddress OTHER_PORT = InetSocketAddress.createUnresolved("server", 4445);
+
+	private static final InetSocketAddress OTHER_HOST = InetSocketAddress.createUnresolved("other", 4444);
+
+	private TlsSessionCache cache;
+
+	/**
+	 * Creates a new cache for each test
+	 */
+	@Before
+	public void setUp() {
+		cache = new TlsSessionCache();
+	}
+
+	/**
+	 * Tests that a new session is a full handshake and the same session id again is a resumed one
+	 */
+	@Test
+	public void testSameSessionId() {
+		cache.registerSession(SERVER, createSession(new byte[] { 1, 2 }, 1000), 1000);
+		assertCounts(0, 1);
+		cache.registerSession(SERVER, createSession(new byte[] { 1, 2 }, 2000), 2000);
+		assertCounts(1, 1);
+		cache.registerSession(SERVER, createSession(new byte[] { 3, 4 }, 3000), 3000);
+		assertCounts(1, 2);
+	}
+
+	/**
+	 * Tests that a session created before the handshake started is resumed, also when its id was not seen before
+	 */
+	@Test
+	public void testCreationTime() {
+		cache.registerSession(SERVER, createSession(new byte[] { 1, 2 }, 1000), 2000);
+		assertCounts(1, 0);
+		// An empty session id is never taken for the same session
+		cache.registerSession(SERVER, createSession(new byte[0], 3000), 3000);
+		cache.registerSession(SERVER, createSession(new byte[0], 4000), 4000);
+		assertCounts(1, 2);
+	}
+
+	/**
+	 * Tests that the last session is kept per host and port, the same id for another host or port is a full handshake
+	 */
+	@Test
+	public void testPerHostAndPort() {
+		byte[] sessionId = new byte[] { 1, 2 };
+		cache.registerSession(SERVER, createSession(sessionId, 1000), 1000);
+		cache.registerSession(OTHER_PORT, createSession(sessionId, 2000), 2000);
+		cache.registerSession(OTHER_HOST, createSession(sessionId, 3000), 3000);
+		assertCounts(0, 3);
+
+		// Each of them still knows its own last session
+		cache.registerSession(SERVER, createSession(sessionId, 4000), 4000);
+		cache.registerSession(OTHER_PORT, createSession(sessionId, 5000), 5000);
+		assertCounts(2, 3);
+		cache.registerSession(OTHER_HOST, createSession(new byte[] { 5 }, 6000), 6000);
+		assertCounts(2, 4);
+	}
+
+	private void assertCounts(long resumed, long full) {
+		assertEquals(resumed, cache.getResumedHandshakes());
+		assertEquals(full, cache.getFullHandshakes());
+	}
+
+	private static SSLSession createSession(byte[] id, long creationTime) {
+		SSLSession session = Mockito.mock(SSLSession.class);
+		Mockito.when(session.getId()).thenReturn(id);
+		Mockito.when(session.getCreationTime()).thenReturn(creationTime);
+		return session;
+	}
+}
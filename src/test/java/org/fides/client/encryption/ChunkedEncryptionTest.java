@@ -0,0 +1,266 @@
+package org.fides.client.encryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.io.IOUtils;
+import org.fides.client.tools.CopyInterruptedException;
+import org.fides.client.tools.CopyTool;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ChunkedEncryption}
+ */
+public class ChunkedEncryptionTest {
+
+	private static final Key KEY = new SecretKeySpec(new byte[32], "AES");
+
+	/**
+	 * Tests that files of several sizes around the chunk size are decrypted to what was encrypted
+	 */
+	@Test
+	public void testEncryptAndDecrypt() throws IOException {
+		int chunk = ChunkedEncryption.CHUNK_SIZE;
+		for (int size : new int[] { 0, 1, chunk - 1, chunk, chunk + 1, 5 * chunk + 17 }) {
+			byte[] content = createContent(size);
+			byte[] encrypted = encrypt(content, KEY);
+			assertTrue(encrypted.length > content.length);
+			assertArrayEquals("Size " + size, content, decrypt(encrypted, KEY));
+		}
+	}
+
+	/**
+	 * Tests that the same content with the same key is encrypted the same, and different content or another key is
+	 * encrypted differently
+	 */
+	@Test
+	public void testDeterministic() throws IOException {
+		byte[] content = createContent(3 * ChunkedEncryption.CHUNK_SIZE);
+		byte[] encrypted = encrypt(content, KEY);
+		assertArrayEquals(encrypted, encrypt(content, KEY));
+
+		Key otherKey = new SecretKeySpec(createContent(32), "AES");
+		assertFalse(Arrays.equals(encrypted, encrypt(content, otherKey)));
+		content[content.length - 1]++;
+		assertFalse(Arrays.equals(encrypted, encrypt(content, KEY)));
+	}
+
+	/**
+	 * Tests that a changed, truncated or reordered file is not decrypted
+	 */
+	@Test
+	public void testTampered() throws IOException {
+		int chunk = ChunkedEncryption.CHUNK_SIZE;
+		byte[] encrypted = encrypt(createContent(2 * chunk + 10), KEY);
+
+		byte[] changed = encrypted.clone();
+		changed[changed.length / 2]++;
+		assertNotDecrypted(changed);
+
+		// Without the last chunk
+		int chunkRecord = 1 + 4 + ChunkedEncryption.NONCE_SIZE + chunk + ChunkedEncryption.TAG_SIZE;
+		int header = ChunkedEncryption.MAGIC.length + 4;
+		assertNotDecrypted(Arrays.copyOf(encrypted, header + 2 * chunkRecord));
+
+		// The first two chunks swapped
+		byte[] swapped = encrypted.clone();
+		System.arraycopy(encrypted, header, swapped, header + chunkRecord, chunkRecord);
+		System.arraycopy(encrypted, header + chunkRecord, swapped, header, chunkRecord);
+		assertNotDecrypted(swapped);
+	}
+
+	/**
+	 * Tests that a file without the magic number is decrypted like before the chunked format
+	 */
+	@Test
+	public void testLegacyFormat() throws IOException {
+		byte[] legacy = new byte[] { 1, 2, 3 };
+		InputStream in = ChunkedEncryption.getDecryptionStream(new ByteArrayInputStream(legacy), KEY);
+		assertTrue(!(in instanceof ChunkedDecryptionInputStream));
+		IOUtils.closeQuietly(in);
+	}
+
+	/**
+	 * Tests that a file read from its channel is encrypted and hashed the same as when it is written to the stream
+	 */
+	@Test
+	public void testTransferFromChannel() throws Exception {
+		byte[] content = createContent(2 * ChunkedEncryption.CHUNK_SIZE + ChunkedEncryption.CHUNK_SIZE / 2);
+		File file = File.createTempFile("chunked", ".bin");
+		try {
+			Files.write(file.toPath(), content);
+			ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			try (InputStream in = new FileInputStream(file); OutputStream out = ChunkedEncryption.getEncryptionStream(encrypted, KEY)) {
+				assertEquals(content.length, CopyTool.copyUntil(in, out, digest, new AtomicBoolean()));
+			}
+			assertArrayEquals(encrypt(content, KEY), encrypted.toByteArray());
+			assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), digest.digest());
+
+			try (InputStream in = new FileInputStream(file); OutputStream out = ChunkedEncryption.getEncryptionStream(encrypted, KEY)) {
+				CopyTool.copyUntil(in, out, digest, new AtomicBoolean(true));
+				fail("The transfer was not stopped");
+			} catch (CopyInterruptedException e) {
+				// Expected
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Tests that a failure of writing the encrypted chunks is thrown by the stream, and does not keep it waiting
+	 */
+	@Test(timeout = 10000)
+	public void testWriterFailure() {
+		// The header is written, the chunks fail on the writer
+		OutputStream failing = new OutputStream() {
+			private int count = 0;
+
+			@Override
+			public void write(int b) throws IOException {
+				if (++count > ChunkedEncryption.MAGIC.length + 4) {
+					throw new IOException("Test failure");
+				}
+			}
+		};
+		byte[] content = createContent(ChunkedEncryption.CHUNK_SIZE);
+		try (OutputStream out = ChunkedEncryption.getEncryptionStream(failing, KEY)) {
+			for (int i = 0; i < 20; i++) {
+				out.write(content);
+			}
+			fail("The failure was not thrown");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Tests that more streams than there are pooled chunks can write at the same time, waiting for buffers, and that
+	 * every buffer is returned to the pools afterwards, also by failed streams
+	 *
+	 * @throws InterruptedException
+	 */
+	@Test(timeout = 60000)
+	public void testBufferCap() throws InterruptedException {
+		final byte[] content = createContent(ChunkedEncryption.CHUNK_SIZE);
+		final AtomicBoolean failed = new AtomicBoolean();
+		Thread[] threads = new Thread[ChunkedEncryption.POOLED_CHUNKS + 2];
+		for (int i = 0; i < threads.length; i++) {
+			final boolean failing = i % 2 == 0;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					OutputStream target = failing ? new OutputStream() {
+						@Override
+						public void write(int b) throws IOException {
+							throw new IOException("Test failure");
+						}
+					} : new ByteArrayOutputStream();
+					try (OutputStream out = ChunkedEncryption.getEncryptionStream(target, KEY)) {
+						for (int j = 0; j < 3; j++) {
+							out.write(content);
+						}
+					} catch (IOException e) {
+						if (!failing) {
+							failed.set(true);
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertFalse(failed.get());
+
+		// Nothing is in use anymore, so every buffer fits
+		assertTrue(ChunkedEncryption.CHUNK_BUFFERS.getMemory() <= (long) ChunkedEncryption.POOLED_CHUNKS * ChunkedEncryption.CHUNK_SIZE);
+		List<byte[]> buffers = new ArrayList<>();
+		for (int i = 0; i < ChunkedEncryption.POOLED_CHUNKS; i++) {
+			byte[] chunk = ChunkedEncryption.CHUNK_BUFFERS.tryAcquire(ChunkedEncryption.CHUNK_SIZE);
+			byte[] encrypted = ChunkedEncryption.ENCRYPTED_BUFFERS.tryAcquire(ChunkedEncryption.ENCRYPTED_CHUNK_SIZE);
+			assertNotNull(chunk);
+			assertNotNull(encrypted);
+			buffers.add(chunk);
+			buffers.add(encrypted);
+		}
+		for (byte[] buffer : buffers) {
+			if (buffer.length == ChunkedEncryption.CHUNK_SIZE) {
+				ChunkedEncryption.CHUNK_BUFFERS.release(buffer);
+			} else {
+				ChunkedEncryption.ENCRYPTED_BUFFERS.release(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Tests that streams which are never written to or closed hold no buffer, so they do not block other streams
+	 *
+	 * @throws IOException
+	 */
+	@Test(timeout = 60000)
+	public void testUnusedStreams() throws IOException {
+		for (int i = 0; i <= ChunkedEncryption.POOLED_CHUNKS; i++) {
+			ChunkedEncryption.getEncryptionStream(new ByteArrayOutputStream(), KEY);
+		}
+		byte[] content = createContent(2 * ChunkedEncryption.CHUNK_SIZE + 1);
+		assertArrayEquals(content, decrypt(encrypt(content, KEY), KEY));
+	}
+
+	private static void assertNotDecrypted(byte[] encrypted) {
+		try {
+			decrypt(encrypted, KEY);
+			fail("A tampered file was decrypted");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	private static byte[] createContent(int size) {
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		return content;
+	}
+
+	private static byte[] encrypt(byte[] content, Key key) throws IOException {
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		OutputStream out = ChunkedEncryption.getEncryptionStream(encrypted, key);
+		// Written in small parts like a copy does
+		for (int offset = 0; offset < content.length; offset += 4096) {
+			out.write(content, offset, Math.min(4096, content.length - offset));
+		}
+		out.close();
+		return encrypted.toByteArray();
+	}
+
+	private static byte[] decrypt(byte[] encrypted, Key key) throws IOException {
+		try (InputStream in = ChunkedEncryption.getDecryptionStream(new ByteArrayInputStream(encrypted), key)) {
+			return IOUtils.toByteArray(in);
+		}
+	}
+
+}
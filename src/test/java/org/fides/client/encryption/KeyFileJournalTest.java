@@ -0,0 +1,441 @@
+package org.fides.client.encryption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.fides.client.connector.OutputStreamData;
+import org.fides.client.connector.ServerConnector;
+import org.fides.client.files.data.ClientFile;
+import org.fides.client.files.data.KeyFile;
+import org.fides.client.files.data.KeyFileUpdate;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the sharded {@link KeyFile} of the {@link EncryptionManager} against a local stand-in for the server
+ */
+public class KeyFileJournalTest {
+
+	private static final String PASS = "DEFAULT PASSWORD";
+
+	private static final int SHARDS = 4;
+
+	private LocalServerConnector server;
+
+	private EncryptionManager manager;
+
+	private File cacheDirectory;
+
+	/**
+	 * Setup before each test
+	 */
+	@Before
+	public void setUp() {
+		server = new LocalServerConnector();
+		manager = new EncryptionManager(server, PASS);
+	}
+
+	/**
+	 * Removes the directory of the {@link KeyFileCache}
+	 */
+	@After
+	public void tearDown() {
+		if (cacheDirectory != null) {
+			FileUtils.deleteQuietly(cacheDirectory);
+		}
+	}
+
+	/**
+	 * Tests that a small {@link KeyFile} is stored whole, without shards
+	 */
+	@Test
+	public void testSmallKeyFileIsWhole() throws Exception {
+		KeyFile keyFile = createKeyFile(10);
+		assertTrue(manager.updateKeyFile(keyFile, Collections.<KeyFileUpdate> emptyList()));
+		assertNull(keyFile.getShards());
+		assertTrue(server.files.isEmpty());
+
+		KeyFile requested = manager.requestKeyFile();
+		assertEquals(10, requested.getAllClientFiles().size());
+	}
+
+	/**
+	 * Tests that changes to a large {@link KeyFile} only upload the journal, and the requested {@link KeyFile} contains
+	 * them
+	 */
+	@Test
+	public void testJournal() throws Exception {
+		KeyFile keyFile = createKeyFile(EncryptionManager.MAX_WHOLE_ENTRIES + 1);
+		assertTrue(manager.updateKeyFile(keyFile));
+		assertNotNull(keyFile.getShards());
+		assertEquals(SHARDS, keyFile.getShards().size());
+		int shardSize = server.files.get(keyFile.getShards().get("Dir 0").getLocation()).length;
+
+		// Change the requested keyfile like a commit does
+		KeyFile requested = manager.requestKeyFile();
+		assertEquals(keyFile.getAllClientFiles().size(), requested.getAllClientFiles().size());
+		List<KeyFileUpdate> updates = new ArrayList<>();
+		updates.add(KeyFileUpdate.added(new ClientFile("Dir 0/Added", "0a0b", null, "sha256:00"), 0));
+		updates.add(KeyFileUpdate.updated("Dir 1/File 1", "New hash", 0));
+		updates.add(KeyFileUpdate.removed("Dir 2/File 2"));
+		for (KeyFileUpdate update : updates) {
+			update.applyTo(requested);
+		}
+		assertTrue(manager.updateKeyFile(requested, updates));
+		// Only the root with the journal is uploaded, it is much smaller than a shard
+		assertTrue(server.keyFile.length * 10 < shardSize);
+		assertEquals(SHARDS, server.files.size());
+
+		KeyFile result = manager.requestKeyFile();
+		assertEquals(keyFile.getShards(), result.getShards());
+		assertEquals(3, result.getJournal().size());
+		assertNotNull(result.getClientFileByName("Dir 0/Added"));
+		assertEquals("New hash", result.getClientFileByName("Dir 1/File 1").getHash());
+		assertNull(result.getClientFileByName("Dir 2/File 2"));
+		assertEquals(keyFile.getAllClientFiles().size(), result.getAllClientFiles().size());
+	}
+
+	/**
+	 * Tests that a long journal is compacted into the changed shards, and the replaced shard is removed
+	 */
+	@Test
+	public void testCompaction() throws Exception {
+		KeyFile keyFile = createKeyFile(EncryptionManager.MAX_WHOLE_ENTRIES + 1);
+		assertTrue(manager.updateKeyFile(keyFile));
+		Map<String, ClientFile> oldShards = keyFile.getShards();
+
+		List<KeyFileUpdate> updates = new ArrayList<>();
+		for (int i = 0; i <= EncryptionManager.MAX_JOURNAL_SIZE; i++) {
+			updates.add(KeyFileUpdate.updated("Dir 0/File 0", "Hash " + i, 0));
+		}
+		for (KeyFileUpdate update : updates) {
+			update.applyTo(keyFile);
+		}
+		assertTrue(manager.updateKeyFile(keyFile, updates));
+
+		Map<String, ClientFile> newShards = keyFile.getShards();
+		assertTrue(keyFile.getJournal().isEmpty());
+		// Only the shard with the changes is replaced
+		assertTrue(!oldShards.get("Dir 0").equals(newShards.get("Dir 0")));
+		for (int i = 1; i < SHARDS; i++) {
+			assertEquals(oldShards.get("Dir " + i), newShards.get("Dir " + i));
+		}
+		Set<String> locations = new HashSet<>();
+		for (ClientFile shard : newShards.values()) {
+			locations.add(shard.getLocation());
+		}
+		assertEquals(locations, server.files.keySet());
+
+		KeyFile result = manager.requestKeyFile();
+		assertEquals("Hash " + EncryptionManager.MAX_JOURNAL_SIZE, result.getClientFileByName("Dir 0/File 0").getHash());
+	}
+
+	/**
+	 * Tests that looking up a file only loads the shard it is in
+	 */
+	@Test
+	public void testLazyShards() throws Exception {
+		KeyFile keyFile = createKeyFile(EncryptionManager.MAX_WHOLE_ENTRIES + 1);
+		assertTrue(manager.updateKeyFile(keyFile));
+
+		KeyFile result = manager.requestKeyFile();
+		assertEquals(0, server.requests);
+		assertNotNull(result.getClientFileByName("Dir 3/File 3"));
+		assertNull(result.getClientFileByName("Dir 3/Missing"));
+		assertEquals(1, server.requests);
+		assertTrue(result.loadShards(Arrays.asList("Dir 1/File 1", "Dir 2/File 2")));
+		assertEquals(3, server.requests);
+		assertEquals(keyFile.getAllClientFiles().size(), result.getAllClientFiles().size());
+		assertEquals(SHARDS, server.requests);
+
+		// A shard which can not be loaded is reported instead of looking empty
+		KeyFile broken = manager.requestKeyFile();
+		server.files.remove(keyFile.getShards().get("Dir 0").getLocation());
+		assertTrue(!broken.loadShards(Collections.singletonList("Dir 0/File 0")));
+	}
+
+	/**
+	 * Tests that visiting the files reads the shards with the journal applied, without keeping them loaded
+	 */
+	@Test
+	public void testVisitWithoutLoading() throws Exception {
+		KeyFile keyFile = createKeyFile(EncryptionManager.MAX_WHOLE_ENTRIES + 1);
+		assertTrue(manager.updateKeyFile(keyFile));
+		KeyFile requested = manager.requestKeyFile();
+		List<KeyFileUpdate> updates = new ArrayList<>();
+		updates.add(KeyFileUpdate.added(new ClientFile("Dir 0/Added", "0a0b", null, "sha256:00"), 0));
+		updates.add(KeyFileUpdate.updated("Dir 1/File 1", "New hash", 0));
+		updates.add(KeyFileUpdate.removed("Dir 2/File 2"));
+		for (KeyFileUpdate update : updates) {
+			update.applyTo(requested);
+		}
+		assertTrue(manager.updateKeyFile(requested, updates));
+		Set<String> expected = new HashSet<>(requested.getAllClientFiles().keySet());
+		int requests = server.requests;
+
+		KeyFile result = manager.requestKeyFile();
+		final Map<String, String> visited = new HashMap<>();
+		result.visitClientFiles(new KeyFile.ClientFileVisitor() {
+			@Override
+			public void visit(ClientFile clientFile) {
+				assertNull(visited.put(clientFile.getName(), clientFile.getHash()));
+			}
+		});
+		assertEquals(requests + SHARDS, server.requests);
+		assertEquals(expected, visited.keySet());
+		assertEquals("New hash", visited.get("Dir 1/File 1"));
+
+		// The shards were not kept
+		assertNotNull(result.getClientFileByName("Dir 3/File 3"));
+		assertEquals(requests + SHARDS + 1, server.requests);
+	}
+
+	/**
+	 * Tests that a directory with more files than fit in a shard is split into shards for its subdirectories, and that
+	 * a file of a directory without a shard of its own is in the shard of its parent
+	 */
+	@Test
+	public void testDeepShards() throws Exception {
+		KeyFile keyFile = new KeyFile();
+		for (int i = 0; i <= EncryptionManager.MAX_SHARD_ENTRIES; i++) {
+			keyFile.addClientFile(new ClientFile("Top/Dir " + (i % SHARDS) + "/File " + i, String.format("%08x", i), null, "Hash " + i));
+		}
+		keyFile.addClientFile(new ClientFile("Top/File", "0a0b", null, "Hash"));
+		assertTrue(manager.updateKeyFile(keyFile));
+		Set<String> expected = new HashSet<>();
+		for (int i = 0; i < SHARDS; i++) {
+			expected.add("Top/Dir " + i);
+		}
+		expected.add("Top");
+		assertEquals(expected, keyFile.getShards().keySet());
+		assertEquals("Top/Dir 2", keyFile.shardOf("Top/Dir 2/Sub/File"));
+		assertEquals("Top", keyFile.shardOf("Top/New/File"));
+		assertEquals("", keyFile.shardOf("Other/File"));
+
+		KeyFile requested = manager.requestKeyFile();
+		List<KeyFileUpdate> updates = Collections.singletonList(KeyFileUpdate.added(new ClientFile("Other/File", "0c0d", null, "Hash"), 0));
+		updates.get(0).applyTo(requested);
+		assertTrue(manager.updateKeyFile(requested, updates));
+
+		KeyFile result = manager.requestKeyFile();
+		assertNotNull(result.getClientFileByName("Top/Dir 2/File 2"));
+		assertEquals(1, server.requests);
+		assertNotNull(result.getClientFileByName("Other/File"));
+		assertEquals(1, server.requests);
+		assertNotNull(result.getDirectoryDigest("Top/Dir 1"));
+		assertEquals(2, server.requests);
+		assertEquals(keyFile.getAllClientFiles().size() + 1, result.getAllClientFiles().size());
+	}
+
+	/**
+	 * Tests that an unchanged keyfile is read from the {@link KeyFileCache} and its shards are not requested again,
+	 * while a changed keyfile is read again
+	 */
+	@Test
+	public void testCachedKeyFile() throws Exception {
+		KeyFileCache cache = new KeyFileCache(createCacheDirectory());
+		manager.setKeyFileCache(cache);
+		KeyFile keyFile = createKeyFile(EncryptionManager.MAX_WHOLE_ENTRIES + 1);
+		assertTrue(manager.updateKeyFile(keyFile));
+
+		assertEquals(keyFile.getAllClientFiles().size(), manager.requestKeyFile().getAllClientFiles().size());
+		assertEquals(SHARDS, server.requests);
+		// Another manager with the same cache does not request the shards again
+		EncryptionManager session = new EncryptionManager(server, PASS);
+		session.setKeyFileCache(cache);
+		assertEquals(keyFile.getAllClientFiles().size(), session.requestKeyFile().getAllClientFiles().size());
+		assertEquals(SHARDS, server.requests);
+
+		// A changed keyfile is not taken from the cache
+		KeyFile requested = manager.requestKeyFile();
+		List<KeyFileUpdate> updates = Collections.singletonList(KeyFileUpdate.updated("Dir 1/File 1", "New hash", 0));
+		updates.get(0).applyTo(requested);
+		assertTrue(manager.updateKeyFile(requested, updates));
+		assertEquals("New hash", session.requestKeyFile().getClientFileByName("Dir 1/File 1").getHash());
+		assertEquals(SHARDS, server.requests);
+	}
+
+	/**
+	 * Tests that the stored shards which are replaced by a compaction are removed from the {@link KeyFileCache}
+	 */
+	@Test
+	public void testCachedShardsRemoved() throws Exception {
+		File cacheDirectory = createCacheDirectory();
+		manager.setKeyFileCache(new KeyFileCache(cacheDirectory));
+		KeyFile keyFile = createKeyFile(EncryptionManager.MAX_WHOLE_ENTRIES + 1);
+		assertTrue(manager.updateKeyFile(keyFile));
+		assertTrue(manager.requestKeyFile().loadAllShards());
+		assertEquals(SHARDS, countShards(cacheDirectory));
+
+		KeyFile requested = manager.requestKeyFile();
+		List<KeyFileUpdate> updates = new ArrayList<>();
+		for (int i = 0; i <= EncryptionManager.MAX_JOURNAL_SIZE; i++) {
+			updates.add(KeyFileUpdate.updated("Dir 0/File 0", "Hash " + i, 0));
+		}
+		for (KeyFileUpdate update : updates) {
+			update.applyTo(requested);
+		}
+		assertTrue(manager.updateKeyFile(requested, updates));
+
+		manager.requestKeyFile();
+		assertEquals(SHARDS - 1, countShards(cacheDirectory));
+	}
+
+	/**
+	 * Tests that the keyfile this client uploaded is stored, and that only its start is read when it is requested
+	 * again, also by a new {@link KeyFileCache} on the same directory. After a failed upload it is read whole again.
+	 */
+	@Test
+	public void testUploadedKeyFileStored() throws Exception {
+		File cacheDirectory = createCacheDirectory();
+		manager.setKeyFileCache(new KeyFileCache(cacheDirectory));
+		KeyFile keyFile = createKeyFile(EncryptionManager.MAX_WHOLE_ENTRIES + 1);
+		assertTrue(manager.updateKeyFile(keyFile));
+		assertTrue(manager.requestKeyFile().loadAllShards());
+		assertTrue(server.keyFileIn.getByteCount() < server.keyFile.length);
+
+		EncryptionManager restarted = new EncryptionManager(server, PASS);
+		restarted.setKeyFileCache(new KeyFileCache(cacheDirectory));
+		KeyFile requested = restarted.requestKeyFile();
+		assertEquals(keyFile.getAllClientFiles().size(), requested.getAllClientFiles().size());
+		assertTrue(server.keyFileIn.getByteCount() < server.keyFile.length);
+		assertEquals(SHARDS, server.requests);
+
+		server.failUploads = true;
+		List<KeyFileUpdate> updates = Collections.singletonList(KeyFileUpdate.updated("Dir 1/File 1", "New hash", 0));
+		updates.get(0).applyTo(requested);
+		assertFalse(restarted.updateKeyFile(requested, updates));
+		assertEquals(keyFile.getAllClientFiles().size(), restarted.requestKeyFile().getAllClientFiles().size());
+		assertEquals(server.keyFile.length, server.keyFileIn.getByteCount());
+	}
+
+	private static int countShards(File directory) {
+		int shards = 0;
+		for (String name : directory.list()) {
+			if (name.endsWith(".shard")) {
+				shards++;
+			}
+		}
+		return shards;
+	}
+
+	private File createCacheDirectory() throws IOException {
+		cacheDirectory = File.createTempFile("keyfile", "cache");
+		cacheDirectory.delete();
+		return cacheDirectory;
+	}
+
+	private static KeyFile createKeyFile(int entries) {
+		KeyFile keyFile = new KeyFile();
+		for (int i = 0; i < entries; i++) {
+			keyFile.addClientFile(new ClientFile("Dir " + (i % SHARDS) + "/File " + i, String.format("%08x", i), null, "Hash " + i));
+		}
+		return keyFile;
+	}
+
+	/**
+	 * A stand-in for the server, keeping the keyfile and the files in memory
+	 */
+	private static class LocalServerConnector extends ServerConnector {
+
+		private final Map<String, byte[]> files = new HashMap<>();
+
+		private byte[] keyFile;
+
+		private ByteArrayOutputStream upload;
+
+		private String uploadLocation;
+
+		private int nextLocation = 0;
+
+		private int requests = 0;
+
+		/**
+		 * The last requested keyfile, counting how much of it was read
+		 */
+		private CountingInputStream keyFileIn;
+
+		private boolean failUploads = false;
+
+		@Override
+		public InputStream requestKeyFile() {
+			if (keyFile == null) {
+				return null;
+			}
+			keyFileIn = new CountingInputStream(new ByteArrayInputStream(keyFile));
+			return keyFileIn;
+		}
+
+		@Override
+		public boolean isReusable() {
+			return true;
+		}
+
+		@Override
+		public OutputStream updateKeyFile() {
+			upload = new ByteArrayOutputStream();
+			uploadLocation = null;
+			return upload;
+		}
+
+		@Override
+		public OutputStreamData uploadFile() {
+			upload = new ByteArrayOutputStream();
+			uploadLocation = "location" + nextLocation++;
+			return new OutputStreamData(upload, uploadLocation);
+		}
+
+		@Override
+		public InputStream requestFile(String location) {
+			requests++;
+			byte[] file = files.get(location);
+			return file == null ? null : new ByteArrayInputStream(file);
+		}
+
+		@Override
+		public boolean removeFile(String location) {
+			return files.remove(location) != null;
+		}
+
+		@Override
+		public boolean confirmUpload(boolean uploadSuccessful) {
+			if (failUploads) {
+				return false;
+			}
+			if (uploadSuccessful) {
+				if (uploadLocation == null) {
+					keyFile = upload.toByteArray();
+				} else {
+					files.put(uploadLocation, upload.toByteArray());
+				}
+			}
+			return uploadSuccessful;
+		}
+
+		@Override
+		public Set<String> requestLocations() {
+			return new HashSet<>(files.keySet());
+		}
+	}
+}
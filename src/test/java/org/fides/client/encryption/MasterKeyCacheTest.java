@@ -0,0 +1,66 @@
+package org.fides.client.encryption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.Key;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link MasterKeyCache}
+ */
+public class MasterKeyCacheTest {
+
+	private static final String PASS = "DEFAULT PASSWORD";
+
+	private static final int SALT_SIZE = 16;
+
+	private static final int ROUNDS = 1000;
+
+	/**
+	 * Tests that a key is only derived once for the same password, salt and rounds
+	 */
+	@Test
+	public void testKeyIsCached() {
+		MasterKeyCache cache = new MasterKeyCache(1, Long.MAX_VALUE);
+		byte[] salt = cache.getWriteSalt(PASS, ROUNDS, SALT_SIZE);
+		Key key = cache.getKey(PASS, salt, ROUNDS);
+
+		assertSame(key, cache.getKey(PASS, Arrays.copyOf(salt, salt.length), ROUNDS));
+		assertNotSame(key, cache.getKey(PASS, salt, ROUNDS + 1));
+		assertNotSame(key, cache.getKey("OTHER PASSWORD", salt, ROUNDS));
+	}
+
+	/**
+	 * Tests that the salt for writing is reused a limited amount of times
+	 */
+	@Test
+	public void testSaltUses() {
+		MasterKeyCache cache = new MasterKeyCache(3, Long.MAX_VALUE);
+		byte[] salt = cache.getWriteSalt(PASS, ROUNDS, SALT_SIZE);
+		assertArrayEquals(salt, cache.getWriteSalt(PASS, ROUNDS, SALT_SIZE));
+		assertArrayEquals(salt, cache.getWriteSalt(PASS, ROUNDS, SALT_SIZE));
+		assertTrue(!Arrays.equals(salt, cache.getWriteSalt(PASS, ROUNDS, SALT_SIZE)));
+	}
+
+	/**
+	 * Tests that the salt for writing is not reused when it is too old, or for another password or amount of rounds
+	 */
+	@Test
+	public void testNewSalt() {
+		MasterKeyCache cache = new MasterKeyCache(Integer.MAX_VALUE, Long.MAX_VALUE);
+		byte[] salt = cache.getWriteSalt(PASS, ROUNDS, SALT_SIZE);
+		assertTrue(!Arrays.equals(salt, cache.getWriteSalt("OTHER PASSWORD", ROUNDS, SALT_SIZE)));
+		salt = cache.getWriteSalt(PASS, ROUNDS, SALT_SIZE);
+		assertTrue(!Arrays.equals(salt, cache.getWriteSalt(PASS, ROUNDS + 1, SALT_SIZE)));
+
+		MasterKeyCache expiring = new MasterKeyCache(Integer.MAX_VALUE, 0);
+		salt = expiring.getWriteSalt(PASS, ROUNDS, SALT_SIZE);
+		assertTrue(!Arrays.equals(salt, expiring.getWriteSalt(PASS, ROUNDS, SALT_SIZE)));
+	}
+
+}
@@ -0,0 +1,66 @@
+package org.fides.client.encryption;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.fides.client.tools.Benchmark;
+import org.fides.client.tools.CopyTool;
+
+/**
+ * Compares uploading a file through a {@link DigestOutputStream} into the encryption stream with reading the file from
+ * its channel into the buffers of the encryption. It is not a unit test, run it with the size of the file in megabytes
+ * as argument (default 256). Each step is measured with the {@link Benchmark} harness.
+ */
+public final class UploadPipelineBenchmark {
+
+	private static final Key KEY = new SecretKeySpec(new byte[32], "AES");
+
+	private UploadPipelineBenchmark() {
+	}
+
+	/**
+	 * Runs the benchmark
+	 *
+	 * @param args
+	 *            The size of the file in megabytes
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int megabytes = Benchmark.intArgument(args, 256);
+		final File file = Benchmark.createRandomFile("upload", megabytes);
+		try {
+			System.out.println("File of " + megabytes + " MB, best of " + Benchmark.ROUNDS + " rounds");
+			Benchmark.report("Stream, DigestOutputStream", megabytes, new Benchmark.Step() {
+				@Override
+				public void run() throws Exception {
+					MessageDigest digest = MessageDigest.getInstance("SHA-256");
+					try (InputStream in = new FileInputStream(file);
+						OutputStream out = new DigestOutputStream(ChunkedEncryption.getEncryptionStream(new NullOutputStream(), KEY), digest)) {
+						CopyTool.copyUntil(in, out, new AtomicBoolean());
+					}
+				}
+			});
+			Benchmark.report("FileChannel into buffers", megabytes, new Benchmark.Step() {
+				@Override
+				public void run() throws Exception {
+					MessageDigest digest = MessageDigest.getInstance("SHA-256");
+					try (InputStream in = new FileInputStream(file);
+						OutputStream out = ChunkedEncryption.getEncryptionStream(new NullOutputStream(), KEY)) {
+						CopyTool.copyUntil(in, out, digest, new AtomicBoolean());
+					}
+				}
+			});
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package org.fides.client.files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link DirectoryWalker}
+ */
+public class DirectoryWalkerTest {
+
+	private Path root;
+
+	/**
+	 * Creates a tree of directories with files
+	 *
+	 * @throws IOException
+	 */
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("fides-walk");
+		for (int i = 0; i < 5; i++) {
+			Path dir = Files.createDirectories(root.resolve("Dir" + i).resolve("Sub"));
+			for (int j = 0; j < 10; j++) {
+				Files.write(dir.resolve("File" + j + ".txt"), new byte[i * 10 + j]);
+			}
+		}
+		Files.write(root.resolve("Root.txt"), new byte[3]);
+	}
+
+	/**
+	 * Removes the tree
+	 *
+	 * @throws IOException
+	 */
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(root.toFile());
+	}
+
+	/**
+	 * Tests that all directories and files are visited once, with their attributes
+	 */
+	@Test
+	public void testWalk() {
+		final Set<Path> directories = Collections.synchronizedSet(new HashSet<Path>());
+		final Set<Path> files = Collections.synchronizedSet(new HashSet<Path>());
+		DirectoryWalker.walk(root, new DirectoryWalker.Visitor() {
+			@Override
+			public boolean visitDirectory(Path directory, BasicFileAttributes attributes, Map<Path, BasicFileAttributes> dirFiles) {
+				assertTrue(attributes.isDirectory());
+				assertTrue(directories.add(directory));
+				for (Map.Entry<Path, BasicFileAttributes> entry : dirFiles.entrySet()) {
+					assertTrue(entry.getValue().isRegularFile());
+					assertEquals(entry.getKey().toFile().length(), entry.getValue().size());
+					assertTrue(files.add(entry.getKey()));
+				}
+				return true;
+			}
+		});
+		assertEquals(11, directories.size());
+		assertEquals(51, files.size());
+		assertTrue(files.contains(root.resolve("Root.txt")));
+	}
+
+	/**
+	 * Tests that a link to a directory above it is not followed, and that other links are
+	 *
+	 * @throws IOException
+	 */
+	@Test(timeout = 10000)
+	public void testLinkCycle() throws IOException {
+		Path sub = root.resolve("Dir0").resolve("Sub");
+		try {
+			Files.createSymbolicLink(sub.resolve("Loop"), root);
+			Files.createSymbolicLink(root.resolve("Linked"), root.resolve("Dir1"));
+		} catch (UnsupportedOperationException | IOException e) {
+			Assume.assumeNoException(e);
+		}
+		final Set<Path> directories = Collections.synchronizedSet(new HashSet<Path>());
+		DirectoryWalker.walk(root, new DirectoryWalker.Visitor() {
+			@Override
+			public boolean visitDirectory(Path directory, BasicFileAttributes attributes, Map<Path, BasicFileAttributes> dirFiles) {
+				assertTrue(directories.add(directory));
+				return true;
+			}
+		});
+		assertFalse(directories.contains(sub.resolve("Loop")));
+		assertTrue(directories.contains(root.resolve("Linked").resolve("Sub")));
+		assertEquals(13, directories.size());
+	}
+
+	/**
+	 * Tests that the subdirectories are not walked when the visitor stops, and a missing root visits nothing
+	 */
+	@Test
+	public void testStop() {
+		final Set<Path> directories = Collections.synchronizedSet(new HashSet<Path>());
+		DirectoryWalker.Visitor visitor = new DirectoryWalker.Visitor() {
+			@Override
+			public boolean visitDirectory(Path directory, BasicFileAttributes attributes, Map<Path, BasicFileAttributes> dirFiles) {
+				directories.add(directory);
+				return false;
+			}
+		};
+		DirectoryWalker.walk(root, visitor);
+		assertEquals(Collections.singleton(root), directories);
+
+		directories.clear();
+		DirectoryWalker.walk(new File(root.toFile(), "Missing").toPath(), visitor);
+		assertFalse(directories.contains(root));
+		assertTrue(directories.isEmpty());
+	}
+
+	/**
+	 * Tests that a listing is sorted by name with the attributes of every entry, also when the attributes are read by
+	 * several tasks
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testList() throws IOException {
+		Path many = Files.createDirectory(root.resolve("Many"));
+		for (int i = 199; i >= 0; i--) {
+			Files.write(many.resolve("File" + i + ".txt"), new byte[i]);
+		}
+		DirectoryWalker.Listing listing = DirectoryWalker.list(many, null);
+		assertEquals(200, listing.size());
+		for (int i = 1; i < listing.size(); i++) {
+			assertTrue(listing.getEntry(i - 1).getFileName().toString().compareTo(listing.getEntry(i).getFileName().toString()) < 0);
+		}
+		for (int i = 0; i < listing.size(); i++) {
+			assertTrue(listing.getAttributes(i).isRegularFile());
+			assertEquals(listing.getEntry(i).toFile().length(), listing.getAttributes(i).size());
+		}
+
+		DirectoryWalker.Listing top = DirectoryWalker.list(root, null);
+		assertEquals(7, top.size());
+		assertEquals(root.resolve("Dir0"), top.getEntry(0));
+		assertTrue(top.getAttributes(0).isDirectory());
+		assertEquals(root.resolve("Root.txt"), top.getEntry(6));
+		assertEquals(null, DirectoryWalker.list(root.resolve("Missing"), null));
+	}
+
+	/**
+	 * Tests that a listing leaves out a link to a directory of the listings above it
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testListLinkCycle() throws IOException {
+		Path dir = root.resolve("Dir0");
+		try {
+			Files.createSymbolicLink(dir.resolve("Loop"), root);
+			Files.createSymbolicLink(dir.resolve("Linked"), root.resolve("Dir1"));
+		} catch (UnsupportedOperationException | IOException e) {
+			Assume.assumeNoException(e);
+		}
+		DirectoryWalker.Listing listing = DirectoryWalker.list(dir, DirectoryWalker.list(root, null));
+		Set<Path> entries = new HashSet<>();
+		for (int i = 0; i < listing.size(); i++) {
+			entries.add(listing.getEntry(i));
+		}
+		assertEquals(new HashSet<>(Arrays.asList(dir.resolve("Linked"), dir.resolve("Sub"))), entries);
+		assertEquals(3, DirectoryWalker.list(dir, null).size());
+	}
+}
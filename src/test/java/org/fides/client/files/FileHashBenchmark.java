@@ -0,0 +1,85 @@
+package org.fides.client.files;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.fides.client.tools.Benchmark;
+
+/**
+ * Compares the throughput of the ways to hash a file: the old {@link DigestInputStream} with a 1000 byte array, the
+ * {@link FileUtil#digestFile(File, MessageDigest, boolean)} channel path and its memory mapped path, all with MD5, and
+ * the channel path with every {@link HashAlgorithm}. It is not a unit
+ * test, run it with the size of the test file in megabytes as argument (default 256). The file is read several times,
+ * so after the first round it is served from the page cache and the numbers show the cost of the reading code itself.
+ */
+public final class FileHashBenchmark {
+
+	private FileHashBenchmark() {
+	}
+
+	/**
+	 * Runs the benchmark
+	 *
+	 * @param args
+	 *            The size of the test file in megabytes
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int megabytes = Benchmark.intArgument(args, 256);
+		final File file = Benchmark.createRandomFile("hashbenchmark", megabytes);
+
+		System.out.println("File of " + megabytes + " MB, best of " + Benchmark.ROUNDS + " rounds");
+		Benchmark.report("DigestInputStream, 1000 byte reads", megabytes, new Benchmark.Step() {
+			@Override
+			public void run() throws IOException {
+				streamHash(file);
+			}
+		});
+		Benchmark.report("FileChannel, 256 KB direct buffer", megabytes, new Benchmark.Step() {
+			@Override
+			public void run() throws IOException {
+				channelHash(file, false);
+			}
+		});
+		Benchmark.report("FileChannel, memory mapped", megabytes, new Benchmark.Step() {
+			@Override
+			public void run() throws IOException {
+				channelHash(file, true);
+			}
+		});
+		for (final HashAlgorithm algorithm : HashAlgorithm.values()) {
+			Benchmark.report("FileChannel, " + algorithm, megabytes, new Benchmark.Step() {
+				@Override
+				public void run() throws IOException {
+					FileUtil.digestFile(file, algorithm.createDigest(), false);
+				}
+			});
+		}
+
+		if (!Arrays.equals(streamHash(file), channelHash(file, false)) || !Arrays.equals(streamHash(file), channelHash(file, true))) {
+			throw new IllegalStateException("The hashes are not the same");
+		}
+		file.delete();
+	}
+
+	private static byte[] streamHash(File file) throws IOException {
+		MessageDigest messageDigest = HashAlgorithm.MD5.createDigest();
+		try (DigestInputStream dis = new DigestInputStream(new FileInputStream(file), messageDigest)) {
+			byte[] bytes = new byte[1000];
+			while (dis.read(bytes) != -1) {
+				// Do nothing
+			}
+		}
+		return messageDigest.digest();
+	}
+
+	private static byte[] channelHash(File file, boolean mapped) throws IOException {
+		MessageDigest messageDigest = HashAlgorithm.MD5.createDigest();
+		FileUtil.digestFile(file, messageDigest, mapped);
+		return messageDigest.digest();
+	}
+}
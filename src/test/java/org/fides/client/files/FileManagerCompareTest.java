@@ -1,6 +1,7 @@
 package org.fides.client.files;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -8,13 +9,21 @@ import static org.mockito.Mockito.when;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import org.apache.commons.io.FileUtils;
 import org.fides.client.files.data.ClientFile;
 import org.fides.client.files.data.CompareResultType;
 import org.fides.client.files.data.FileCompareResult;
 import org.fides.client.files.data.KeyFile;
+import org.fides.client.tools.DirectoryDigests;
+import org.fides.client.tools.FileHashCache;
 import org.fides.client.tools.LocalHashes;
 import org.fides.client.tools.UserProperties;
 import org.junit.After;
@@ -35,7 +44,7 @@ import org.powermock.modules.junit4.PowerMockRunner;
  *
  */
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({ UserProperties.class, FileUtil.class, LocalHashes.class })
+@PrepareForTest({ UserProperties.class, FileUtil.class, LocalHashes.class, FileHashCache.class, DirectoryDigests.class })
 @PowerMockIgnore("javax.management.*")
 public class FileManagerCompareTest {
 
@@ -90,13 +99,17 @@ public class FileManagerCompareTest {
 
 		// Mock the FileUtil hash function
 		PowerMockito.mockStatic(FileUtil.class);
-		Mockito.when(FileUtil.generateFileHash((File) Matchers.any())).then(new Answer<String>() {
+		Mockito.when(FileUtil.generateFileHash((File) Matchers.any(), (HashAlgorithm) Matchers.any())).then(new Answer<String>() {
 			@Override
 			public String answer(InvocationOnMock invocation) throws Throwable {
 				return invocation.getArgumentAt(0, File.class).getName();
 			}
 		});
 
+		// Mock the FileHashCache so nothing is written to the settings directory
+		PowerMockito.mockStatic(FileHashCache.class);
+		Mockito.when(FileHashCache.getInstance()).thenReturn(PowerMockito.mock(FileHashCache.class));
+
 		fileManager = new FileManager();
 	}
 
@@ -340,4 +353,139 @@ public class FileManagerCompareTest {
 		assertEquals(expected, resultServer);
 	}
 
+	/**
+	 * Test that the streaming compare gives the same results as the compare of all files, also in subdirectories
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testStreamingCompare() throws IOException {
+		File subDir = new File(testDir, "Dir/Sub");
+		assertTrue(subDir.mkdirs());
+		// Added on the server
+		keyFile.addClientFile(new ClientFile("Dir/Server.txt", "", null, "Server.txt"));
+		// Added locally
+		assertTrue(new File(subDir, "Local.txt").createNewFile());
+		// Updated locally, the mocked hash is the name of the file
+		keyFile.addClientFile(new ClientFile("Dir/Updated.txt", "", null, "Old"));
+		localHashes.setProperty("Dir/Updated.txt", "Old");
+		assertTrue(new File(testDir, "Dir/Updated.txt").createNewFile());
+		// Removed on the server
+		localHashes.setProperty("Dir/Sub/Removed.txt", "Removed.txt");
+		assertTrue(new File(subDir, "Removed.txt").createNewFile());
+		// The same on both sides
+		keyFile.addClientFile(new ClientFile("Same.txt", "", null, "Same.txt"));
+		assertTrue(new File(testDir, "Same.txt").createNewFile());
+
+		Set<FileCompareResult> streamed = new HashSet<>();
+		Iterator<FileCompareResult> iterator = fileManager.compareFilesStreaming(keyFile);
+		while (iterator.hasNext()) {
+			assertTrue(streamed.add(iterator.next()));
+		}
+
+		assertEquals(4, streamed.size());
+		assertEquals(new HashSet<>(fileManager.compareFiles(keyFile)), streamed);
+		assertTrue(streamed.contains(new FileCompareResult("Dir/Updated.txt", CompareResultType.LOCAL_UPDATED)));
+		assertTrue(streamed.contains(new FileCompareResult("Dir/Sub/Removed.txt", CompareResultType.SERVER_REMOVED)));
+	}
+
+	/**
+	 * Test that the sorted compare gives the same results as the compare of all files, also when the server names are
+	 * spilled to disk
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testSortedCompare() throws IOException {
+		File subDir = new File(testDir, "Dir/Sub");
+		assertTrue(subDir.mkdirs());
+		for (int i = 0; i < 20; i++) {
+			// Added on the server
+			keyFile.addClientFile(new ClientFile("Dir/Server" + i + ".txt", "", null, "Server.txt"));
+			// Added locally, next to a directory which sorts in between
+			assertTrue(new File(testDir, "Dir.local" + i).createNewFile());
+			// The same on both sides
+			keyFile.addClientFile(new ClientFile("Dir/Sub/Same" + i + ".txt", "", null, "Same" + i + ".txt"));
+			assertTrue(new File(subDir, "Same" + i + ".txt").createNewFile());
+		}
+		// Updated locally, the mocked hash is the name of the file
+		keyFile.addClientFile(new ClientFile("Dir/Updated.txt", "", null, "Old"));
+		localHashes.setProperty("Dir/Updated.txt", "Old");
+		assertTrue(new File(testDir, "Dir/Updated.txt").createNewFile());
+
+		Set<FileCompareResult> sorted = new HashSet<>();
+		Iterator<FileCompareResult> iterator = fileManager.compareFilesSorted(keyFile, 1024);
+		while (iterator.hasNext()) {
+			assertTrue(sorted.add(iterator.next()));
+		}
+
+		assertEquals(41, sorted.size());
+		assertEquals(new HashSet<>(fileManager.compareFiles(keyFile)), sorted);
+	}
+
+	/**
+	 * Test that the files of a directory which did not change on either side are not hashed again, and that they are
+	 * when a file in it changes
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testSkipUnchangedDirectories() throws IOException {
+		// Mock the DirectoryDigests so the digests are kept in the test
+		final Map<String, String> storedDigests = new HashMap<>();
+		DirectoryDigests directoryDigestsMock = PowerMockito.mock(DirectoryDigests.class);
+		when(directoryDigestsMock.getDigest(Matchers.anyString())).then(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) throws Throwable {
+				return storedDigests.get(invocation.getArgumentAt(0, String.class));
+			}
+		});
+		Mockito.doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				storedDigests.clear();
+				storedDigests.putAll(invocation.getArgumentAt(0, Map.class));
+				return null;
+			}
+		}).when(directoryDigestsMock).replaceAll(Matchers.anyMapOf(String.class, String.class));
+		fileManager.setDirectoryDigests(directoryDigestsMock);
+
+		File subDir = new File(testDir, "Dir/Sub");
+		assertTrue(subDir.mkdirs());
+		for (int i = 0; i < 3; i++) {
+			// The same on both sides, the mocked hash is the name of the file
+			String name = "Dir/Sub/Same" + i + ".txt";
+			keyFile.addClientFile(new ClientFile(name, "", null, "Same" + i + ".txt"));
+			localHashes.setProperty(name, "Same" + i + ".txt");
+			assertTrue(new File(subDir, "Same" + i + ".txt").createNewFile());
+		}
+		// Added on the server
+		keyFile.addClientFile(new ClientFile("Dir/Server.txt", "", null, "Server.txt"));
+		Set<FileCompareResult> expected = Collections.singleton(new FileCompareResult("Dir/Server.txt", CompareResultType.SERVER_ADDED));
+		File same = new File(subDir, "Same0.txt");
+
+		assertEquals(expected, collect(fileManager.compareFilesStreaming(keyFile)));
+		assertTrue(storedDigests.containsKey("Dir/Sub"));
+		assertFalse(storedDigests.containsKey("Dir"));
+
+		// Skipped, so not hashed again
+		assertEquals(expected, collect(fileManager.compareFilesSorted(keyFile, 1024)));
+		PowerMockito.verifyStatic(Mockito.times(1));
+		FileUtil.generateFileHash(Matchers.eq(same), (HashAlgorithm) Matchers.any());
+
+		// Changed locally, so compared again
+		FileUtils.writeStringToFile(same, "Changed");
+		assertEquals(expected, collect(fileManager.compareFilesStreaming(keyFile)));
+		PowerMockito.verifyStatic(Mockito.times(2));
+		FileUtil.generateFileHash(Matchers.eq(same), (HashAlgorithm) Matchers.any());
+	}
+
+	private static Set<FileCompareResult> collect(Iterator<FileCompareResult> iterator) {
+		Set<FileCompareResult> results = new HashSet<>();
+		while (iterator.hasNext()) {
+			assertTrue(results.add(iterator.next()));
+		}
+		return results;
+	}
+
 }
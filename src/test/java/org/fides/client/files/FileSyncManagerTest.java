@@ -1,6 +1,7 @@
 package org.fides.client.files;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.verify;
@@ -8,9 +9,12 @@ import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import org.fides.client.connector.EncryptedOutputStreamData;
@@ -21,12 +25,16 @@ import org.fides.client.files.data.ClientFile;
 import org.fides.client.files.data.CompareResultType;
 import org.fides.client.files.data.FileCompareResult;
 import org.fides.client.files.data.KeyFile;
+import org.fides.client.files.data.KeyFileUpdate;
 import org.fides.client.tools.LocalHashes;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
@@ -38,7 +46,7 @@ import org.powermock.modules.junit4.PowerMockRunner;
  */
 @PowerMockIgnore("javax.management.*")
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({ LocalHashes.class })
+@PrepareForTest({ LocalHashes.class, FileUtil.class })
 public class FileSyncManagerTest {
 
 	private Collection<FileCompareResult> compareResults;
@@ -66,6 +74,12 @@ public class FileSyncManagerTest {
 
 		fileManagerMock = Mockito.mock(FileManager.class);
 		Mockito.when(fileManagerMock.compareFiles((KeyFile) Mockito.any())).thenReturn(compareResults);
+		Mockito.when(fileManagerMock.compareFilesStreaming((KeyFile) Mockito.any())).thenAnswer(new Answer<Iterator<FileCompareResult>>() {
+			@Override
+			public Iterator<FileCompareResult> answer(InvocationOnMock invocation) throws Throwable {
+				return compareResults.iterator();
+			}
+		});
 
 		keyFile = new KeyFile();
 
@@ -74,6 +88,8 @@ public class FileSyncManagerTest {
 		encManagerMock = Mockito.mock(EncryptionManager.class);
 		Mockito.when(encManagerMock.requestKeyFile()).thenReturn(keyFile);
 		Mockito.when(encManagerMock.getConnector()).thenReturn(serverConnectorMock);
+		// The transfer workers use the same mock as their session
+		Mockito.when(encManagerMock.createSession()).thenReturn(encManagerMock);
 
 		fileSyncManager = new FileSyncManager(fileManagerMock, encManagerMock);
 	}
@@ -115,6 +131,19 @@ public class FileSyncManagerTest {
 		assertEquals("This is an in update file", new String(out.toByteArray()));
 	}
 
+	/**
+	 * Tests that no upload is started for a local file which can not be read anymore
+	 */
+	@Test
+	public void testHandleLocalAddedMissingFile() {
+		compareResults.add(new FileCompareResult("AddedLocalFile", CompareResultType.LOCAL_ADDED));
+		when(fileManagerMock.readFile("AddedLocalFile")).thenReturn(null);
+
+		assertFalse(fileSyncManager.fileManagerCheck());
+		verify(encManagerMock, Mockito.never()).uploadFile();
+		verify(serverConnectorMock, Mockito.never()).confirmUpload(Mockito.anyBoolean());
+	}
+
 	/**
 	 * Test to handle a {@link FileCompareResult} with a {@link CompareResultType#LOCAL_REMOVED}
 	 */
@@ -157,6 +186,53 @@ public class FileSyncManagerTest {
 		assertEquals("This is an in update file", new String(out.toByteArray()));
 	}
 
+	/**
+	 * Test that a {@link CompareResultType#LOCAL_UPDATED} file which did not change since the compare is uploaded with
+	 * the hash of the compare
+	 * 
+	 * @throws InvalidClientFileException
+	 */
+	@Test
+	public void testHandleLocalUpdatedReusesHash() throws InvalidClientFileException {
+		final String compareHash = HashAlgorithm.getDefault().format(new byte[] { 1, 2, 3 });
+		compareResults.add(new FileCompareResult("UpdatedLocalFile", CompareResultType.LOCAL_UPDATED, compareHash, "identity"));
+		when(fileManagerMock.readFile("UpdatedLocalFile")).thenReturn(new ByteArrayInputStream("This is an in update file".getBytes()));
+		when(fileManagerMock.getFileIdentity("UpdatedLocalFile")).thenReturn("identity");
+		when(serverConnectorMock.confirmUpload(true)).thenReturn(true);
+
+		ClientFile updatedFile = new ClientFile("UpdatedLocalFile", "ulf", null, "");
+		keyFile.addClientFile(updatedFile);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		when(encManagerMock.updateFile(updatedFile)).thenReturn(out);
+		when(encManagerMock.updateKeyFile(Mockito.eq(keyFile), Mockito.anyListOf(KeyFileUpdate.class))).thenReturn(true);
+		PowerMockito.mockStatic(FileUtil.class);
+
+		// The real test
+		fileSyncManager.fileManagerCheck();
+		assertEquals("This is an in update file", new String(out.toByteArray()));
+		assertEquals(compareHash, keyFile.getClientFileByName("UpdatedLocalFile").getHash());
+		verify(encManagerMock).updateKeyFile(Mockito.eq(keyFile), Mockito.argThat(new ArgumentMatcher<List<KeyFileUpdate>>() {
+			@Override
+			public boolean matches(Object argument) {
+				for (Object element : (List<?>) argument) {
+					KeyFileUpdate update = (KeyFileUpdate) element;
+					if (update.getType() == KeyFileUpdate.Type.UPDATE && "UpdatedLocalFile".equals(update.getName())
+						&& compareHash.equals(update.getHash())) {
+						return true;
+					}
+				}
+				return false;
+			}
+		}));
+
+		// The file is only read for the upload, it is not hashed again
+		verify(fileManagerMock, Mockito.times(1)).readFile("UpdatedLocalFile");
+		PowerMockito.verifyStatic(Mockito.never());
+		FileUtil.generateFileHash(Mockito.any(File.class));
+		PowerMockito.verifyStatic(Mockito.never());
+		FileUtil.generateFileHash(Mockito.any(File.class), Mockito.any(HashAlgorithm.class));
+	}
+
 	/**
 	 * Test to handle a {@link FileCompareResult} with a {@link CompareResultType#SERVER_ADDED}
 	 */
@@ -0,0 +1,46 @@
+package org.fides.client.files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for the {@link HashAlgorithm}
+ */
+public class HashAlgorithmTest {
+
+	/**
+	 * Tests that hashes without a tag are seen as MD5 hashes of older versions
+	 */
+	@Test
+	public void testUntaggedHash() {
+		assertEquals(HashAlgorithm.MD5, HashAlgorithm.fromHash("d41d8cd98f00b204e9800998ecf8427e"));
+		assertEquals(HashAlgorithm.MD5, HashAlgorithm.fromHash(""));
+		assertEquals(HashAlgorithm.MD5, HashAlgorithm.fromHash(null));
+		assertEquals("d41d8cd98f00b204e9800998ecf8427e", HashAlgorithm.MD5.format(HashAlgorithm.MD5.createDigest().digest()));
+	}
+
+	/**
+	 * Tests that a formatted hash is tagged and recognized
+	 */
+	@Test
+	public void testTaggedHash() {
+		for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+			String hash = algorithm.format(algorithm.createDigest().digest("test".getBytes()));
+			assertEquals(algorithm, HashAlgorithm.fromHash(hash));
+		}
+		String sha256 = HashAlgorithm.SHA256.format(HashAlgorithm.SHA256.createDigest().digest());
+		assertTrue(sha256.startsWith("sha256:"));
+		assertEquals("sha256:e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", sha256);
+	}
+
+	/**
+	 * Tests that an unknown tag gives no algorithm
+	 */
+	@Test
+	public void testUnknownTag() {
+		assertNull(HashAlgorithm.fromHash("blake3:abcdef"));
+	}
+}
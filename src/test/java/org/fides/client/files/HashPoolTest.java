@@ -0,0 +1,66 @@
+package org.fides.client.files;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link HashPool}
+ */
+public class HashPoolTest {
+
+	private File testDir;
+
+	private Map<String, HashAlgorithm> files;
+
+	/**
+	 * Creates the files to hash
+	 * 
+	 * @throws IOException
+	 */
+	@Before
+	public void setUp() throws IOException {
+		testDir = new File("./hashPoolTestDir");
+		files = new HashMap<>();
+		for (int i = 0; i < 20; i++) {
+			String fileName = "dir" + (i % 3) + "/File" + i;
+			FileUtils.writeStringToFile(new File(testDir, fileName), "Content of file " + i);
+			files.put(fileName, HashAlgorithm.values()[i % HashAlgorithm.values().length]);
+		}
+	}
+
+	/**
+	 * Removes the test files
+	 * 
+	 * @throws IOException
+	 */
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(testDir);
+	}
+
+	/**
+	 * Tests that the parallel hashes are the same as the hashes generated one by one with the requested algorithm, also
+	 * with a single open file
+	 */
+	@Test
+	public void testHashFiles() {
+		files.put("Missing", HashAlgorithm.getDefault());
+		Map<String, String> hashes = new HashPool(4, 1).hashFiles(testDir, files);
+
+		assertEquals(files.size() - 1, hashes.size());
+		for (String fileName : hashes.keySet()) {
+			HashAlgorithm algorithm = files.get(fileName);
+			assertEquals(algorithm, HashAlgorithm.fromHash(hashes.get(fileName)));
+			assertEquals(FileUtil.generateFileHash(new File(testDir, fileName), algorithm), hashes.get(fileName));
+		}
+	}
+}
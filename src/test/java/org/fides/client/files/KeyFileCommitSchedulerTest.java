@@ -0,0 +1,124 @@
+package org.fides.client.files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.fides.client.encryption.EncryptionManager;
+import org.fides.client.files.data.ClientFile;
+import org.fides.client.files.data.KeyFile;
+import org.fides.client.files.data.KeyFileUpdate;
+import org.fides.client.tools.LocalHashes;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+/**
+ * Tests for the {@link KeyFileCommitScheduler}
+ */
+@PowerMockIgnore("javax.management.*")
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ LocalHashes.class })
+public class KeyFileCommitSchedulerTest {
+
+	private EncryptionManager encManagerMock;
+
+	private LocalHashes localHashesMock;
+
+	/**
+	 * Setup before each test
+	 */
+	@Before
+	public void setUp() {
+		localHashesMock = Mockito.mock(LocalHashes.class);
+		PowerMockito.mockStatic(LocalHashes.class);
+		Mockito.when(LocalHashes.getInstance()).thenReturn(localHashesMock);
+
+		encManagerMock = Mockito.mock(EncryptionManager.class);
+	}
+
+	/**
+	 * Tests that a commit is due when the amount of changes or bytes reaches its limit
+	 */
+	@Test
+	public void testCommitDueByCountAndBytes() {
+		KeyFileCommitScheduler scheduler = new KeyFileCommitScheduler(encManagerMock, 3, 100, Long.MAX_VALUE);
+		assertFalse(scheduler.isCommitDue());
+
+		scheduler.schedule(Arrays.asList(KeyFileUpdate.removed("File1"), KeyFileUpdate.removed("File2")));
+		assertFalse(scheduler.isCommitDue());
+		scheduler.schedule(Collections.singletonList(KeyFileUpdate.removed("File3")));
+		assertTrue(scheduler.isCommitDue());
+
+		scheduler = new KeyFileCommitScheduler(encManagerMock, 3, 100, Long.MAX_VALUE);
+		scheduler.schedule(Collections.singletonList(KeyFileUpdate.updated("File1", "hash", 100)));
+		assertTrue(scheduler.isCommitDue());
+	}
+
+	/**
+	 * Tests that a commit is due when a change is pending longer than the delay
+	 */
+	@Test
+	public void testCommitDueByDelay() throws InterruptedException {
+		KeyFileCommitScheduler scheduler = new KeyFileCommitScheduler(encManagerMock, 100, Long.MAX_VALUE, 50);
+		scheduler.schedule(Collections.singletonList(KeyFileUpdate.removed("File1")));
+		assertFalse(scheduler.isCommitDue());
+		Thread.sleep(100);
+		assertTrue(scheduler.isCommitDue());
+	}
+
+	/**
+	 * Tests that all pending changes are uploaded with one keyfile and the local hashes are updated afterwards
+	 */
+	@Test
+	public void testCommit() {
+		Mockito.when(encManagerMock.updateKeyFile(Mockito.any(KeyFile.class), Mockito.anyListOf(KeyFileUpdate.class))).thenReturn(true);
+		KeyFile keyFile = new KeyFile();
+		keyFile.addClientFile(new ClientFile("Removed", "l1", null, "h1"));
+		keyFile.addClientFile(new ClientFile("Updated", "l2", null, "h2"));
+
+		KeyFileCommitScheduler scheduler = new KeyFileCommitScheduler(encManagerMock);
+		scheduler.schedule(Arrays.asList(KeyFileUpdate.removed("Removed"), KeyFileUpdate.updated("Updated", "h3", 10),
+			KeyFileUpdate.added(new ClientFile("Added", "l4", null, "h4"), 10)));
+
+		assertTrue(scheduler.commit(keyFile));
+		assertFalse(scheduler.hasPending());
+		assertNull(keyFile.getClientFileByName("Removed"));
+		assertEquals("h3", keyFile.getClientFileByName("Updated").getHash());
+		assertNotNull(keyFile.getClientFileByName("Added"));
+
+		Mockito.verify(encManagerMock, Mockito.times(1)).updateKeyFile(Mockito.eq(keyFile), Mockito.anyListOf(KeyFileUpdate.class));
+		Mockito.verify(localHashesMock).removeHash("Removed");
+		Mockito.verify(localHashesMock).setHash("Updated", "h3");
+		Mockito.verify(localHashesMock).setHash("Added", "h4");
+	}
+
+	/**
+	 * Tests that the changes of a failed commit stay pending and the local hashes are not touched
+	 */
+	@Test
+	public void testFailedCommit() {
+		Mockito.when(encManagerMock.updateKeyFile(Mockito.any(KeyFile.class), Mockito.anyListOf(KeyFileUpdate.class))).thenReturn(false);
+		KeyFileCommitScheduler scheduler = new KeyFileCommitScheduler(encManagerMock);
+		scheduler.schedule(Collections.singletonList(KeyFileUpdate.added(new ClientFile("Added", "l1", null, "h1"), 10)));
+
+		assertFalse(scheduler.commit(new KeyFile()));
+		assertTrue(scheduler.hasPending());
+		Mockito.verifyZeroInteractions(localHashesMock);
+
+		// A newly requested keyfile still shows the pending change
+		KeyFile keyFile = new KeyFile();
+		scheduler.applyPending(keyFile);
+		assertNotNull(keyFile.getClientFileByName("Added"));
+	}
+}
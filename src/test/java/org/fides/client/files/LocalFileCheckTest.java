@@ -7,8 +7,12 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
 import org.fides.client.tools.UserProperties;
@@ -40,6 +44,13 @@ public class LocalFileCheckTest {
 
 	private Collection<String> calledFiles;
 
+	/**
+	 * The names of every call to checkClientSideFiles, in the order of the calls
+	 */
+	private List<Collection<String>> calls;
+
+	private UserProperties userPropMock;
+
 	private Thread thread;
 
 	/**
@@ -50,12 +61,16 @@ public class LocalFileCheckTest {
 	@Before
 	public void setUp() throws Exception {
 		calledFiles = new HashSet<>();
+		calls = Collections.synchronizedList(new ArrayList<Collection<String>>());
 
 		syncManagerMock = Mockito.mock(FileSyncManager.class);
-		Mockito.when(syncManagerMock.checkClientSideFile(Matchers.anyString())).then(new Answer<Boolean>() {
+		Mockito.when(syncManagerMock.checkClientSideFiles(Matchers.anyCollectionOf(String.class))).then(new Answer<Boolean>() {
 			@Override
+			@SuppressWarnings("unchecked")
 			public Boolean answer(InvocationOnMock invocation) throws Throwable {
-				calledFiles.add(invocation.getArgumentAt(0, String.class));
+				Collection<String> names = invocation.getArgumentAt(0, Collection.class);
+				calledFiles.addAll(names);
+				calls.add(new ArrayList<>(names));
 				return true;
 			}
 		});
@@ -66,7 +81,7 @@ public class LocalFileCheckTest {
 		}
 		assertTrue(testDir.mkdirs());
 
-		UserProperties userPropMock = Mockito.mock(UserProperties.class);
+		userPropMock = Mockito.mock(UserProperties.class);
 		Mockito.when(userPropMock.getFileDirectory()).thenReturn(testDir);
 		PowerMockito.mockStatic(UserProperties.class);
 		Mockito.when(UserProperties.getInstance()).thenReturn(userPropMock);
@@ -172,4 +187,70 @@ public class LocalFileCheckTest {
 		assertTrue(calledFiles.contains("subDir/subDir2/File3.txt"));
 		assertTrue(calledFiles.contains("preSubDir/File4.txt"));
 	}
+
+	/**
+	 * Tests that several events of one file are checked once, after the quiet period of the last event
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testCoalesced() throws IOException, InterruptedException {
+		Mockito.when(userPropMock.getQuietPeriodInMillis()).thenReturn(500);
+		thread = new LocalFileChecker(syncManagerMock);
+		thread.start();
+		Thread.sleep(1000);
+
+		File file = new File(testDir, "Coalesced.txt");
+		for (int i = 0; i < 5; i++) {
+			try (OutputStream out = new FileOutputStream(file, true)) {
+				out.write(i);
+			}
+			Thread.sleep(50);
+		}
+		// Still within the quiet period of the last write
+		assertEquals(0, countCalls("Coalesced.txt"));
+
+		Thread.sleep(1500);
+		assertEquals(1, countCalls("Coalesced.txt"));
+	}
+
+	/**
+	 * Tests that a file which keeps changing is checked after the maximum delay, without waiting for it to be quiet
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testMaximumDelay() throws IOException, InterruptedException {
+		// The maximum delay is 20 quiet periods, one second
+		Mockito.when(userPropMock.getQuietPeriodInMillis()).thenReturn(50);
+		thread = new LocalFileChecker(syncManagerMock);
+		thread.start();
+		Thread.sleep(1000);
+
+		File file = new File(testDir, "Busy.txt");
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+		int i = 0;
+		while (System.nanoTime() < end) {
+			try (OutputStream out = new FileOutputStream(file, true)) {
+				out.write(i++);
+			}
+			Thread.sleep(10);
+		}
+		// Checked while it was still being written
+		assertTrue(countCalls("Busy.txt") > 0);
+	}
+
+	private int countCalls(String name) {
+		int count = 0;
+		synchronized (calls) {
+			for (Collection<String> names : calls) {
+				if (names.contains(name)) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
 }
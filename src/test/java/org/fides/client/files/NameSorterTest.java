@@ -0,0 +1,87 @@
+package org.fides.client.files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link NameSorter}
+ */
+public class NameSorterTest {
+
+	/**
+	 * Tests that names are ordered per directory level, like a walk which sorts every directory by name
+	 */
+	@Test
+	public void testWalkOrder() {
+		assertTrue(NameSorter.WALK_ORDER.compare("a/b", "a.txt") < 0);
+		assertTrue(NameSorter.WALK_ORDER.compare("a.txt", "a0") < 0);
+		assertTrue(NameSorter.WALK_ORDER.compare("a/z", "a0/a") < 0);
+		assertTrue(NameSorter.WALK_ORDER.compare("a", "a/b") < 0);
+		assertEquals(0, NameSorter.WALK_ORDER.compare("a/b", "a/b"));
+	}
+
+	/**
+	 * Tests that names which fit in the budget are sorted in memory
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testInMemory() throws IOException {
+		List<String> names = createNames(1000);
+		try (NameSorter sorter = new NameSorter(Long.MAX_VALUE)) {
+			for (String name : names) {
+				sorter.add(name);
+			}
+			assertSorted(names, sorter.sorted());
+			assertEquals(0, sorter.getRunCount());
+		}
+	}
+
+	/**
+	 * Tests that names which pass the budget are spilled to runs and merged in order
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testSpilled() throws IOException {
+		List<String> names = createNames(10000);
+		try (NameSorter sorter = new NameSorter(32 * 1024)) {
+			for (String name : names) {
+				sorter.add(name);
+			}
+			Iterator<String> sorted = sorter.sorted();
+			assertTrue(sorter.getRunCount() > 1);
+			assertSorted(names, sorted);
+			assertFalse(sorter.isFailed());
+		}
+	}
+
+	private static void assertSorted(List<String> names, Iterator<String> sorted) {
+		List<String> expected = new ArrayList<>(names);
+		Collections.sort(expected, NameSorter.WALK_ORDER);
+		for (String name : expected) {
+			assertTrue(sorted.hasNext());
+			assertEquals(name, sorted.next());
+		}
+		assertFalse(sorted.hasNext());
+	}
+
+	private static List<String> createNames(int count) {
+		Random random = new Random(count);
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			names.add("Dir" + random.nextInt(10) + (random.nextBoolean() ? "/Sub" + random.nextInt(5) : ".d") + "/File " + i + ".txt");
+		}
+		return names;
+	}
+}
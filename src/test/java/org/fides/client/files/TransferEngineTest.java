@@ -0,0 +1,170 @@
+package org.fides.client.files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.fides.client.connector.ServerConnector;
+import org.fides.client.encryption.EncryptionManager;
+import org.fides.client.files.TransferEngine.TransferHandler;
+import org.fides.client.files.data.CompareResultType;
+import org.fides.client.files.data.FileCompareResult;
+import org.fides.client.files.data.KeyFile;
+import org.fides.client.files.data.KeyFileUpdate;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests for the {@link TransferEngine}
+ */
+public class TransferEngineTest {
+
+	private static final int WORKERS = 3;
+
+	private EncryptionManager encManagerMock;
+
+	private List<FileCompareResult> results;
+
+	private KeyFileCommitScheduler scheduler;
+
+	/**
+	 * Setup before each test
+	 */
+	@Before
+	public void setUp() {
+		encManagerMock = Mockito.mock(EncryptionManager.class);
+		Mockito.when(encManagerMock.createSession()).thenAnswer(new Answer<EncryptionManager>() {
+			@Override
+			public EncryptionManager answer(InvocationOnMock invocation) throws Throwable {
+				EncryptionManager session = Mockito.mock(EncryptionManager.class);
+				Mockito.when(session.getConnector()).thenReturn(Mockito.mock(ServerConnector.class));
+				return session;
+			}
+		});
+
+		results = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			results.add(new FileCompareResult("File" + i, CompareResultType.LOCAL_REMOVED));
+		}
+
+		// Never due, so the scheduled updates stay pending
+		scheduler = new KeyFileCommitScheduler(encManagerMock, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Tests that the transfers run in parallel, bounded by the amount of workers, and that the updates keep the order of
+	 * the results
+	 */
+	@Test
+	public void testParallelOrderedTransfer() {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+
+		TransferEngine engine = new TransferEngine(encManagerMock, WORKERS, new AtomicBoolean(false));
+		boolean successful = engine.transfer(results, new TransferHandler() {
+			@Override
+			public boolean handle(FileCompareResult result, EncryptionManager session, List<KeyFileUpdate> resultUpdates) {
+				int current = running.incrementAndGet();
+				synchronized (maxRunning) {
+					maxRunning.set(Math.max(maxRunning.get(), current));
+				}
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					return false;
+				}
+				resultUpdates.add(KeyFileUpdate.removed(result.getName()));
+				running.decrementAndGet();
+				return true;
+			}
+		}, scheduler, new KeyFile());
+		List<KeyFileUpdate> updates = scheduler.getPending();
+
+		assertTrue(successful);
+		assertEquals(results.size(), updates.size());
+		for (int i = 0; i < results.size(); i++) {
+			assertEquals(results.get(i).getName(), updates.get(i).getName());
+		}
+		assertTrue(maxRunning.get() > 1);
+		assertTrue(maxRunning.get() <= WORKERS);
+		Mockito.verify(encManagerMock, Mockito.times(WORKERS)).createSession();
+		Mockito.verify(encManagerMock, Mockito.never()).updateKeyFile(Mockito.any(KeyFile.class), Mockito.anyListOf(KeyFileUpdate.class));
+	}
+
+	/**
+	 * Tests that the updates of a failed transfer are not scheduled
+	 */
+	@Test
+	public void testFailedTransfer() {
+		TransferEngine engine = new TransferEngine(encManagerMock, WORKERS, new AtomicBoolean(false));
+		boolean successful = engine.transfer(results, new TransferHandler() {
+			@Override
+			public boolean handle(FileCompareResult result, EncryptionManager session, List<KeyFileUpdate> resultUpdates) {
+				resultUpdates.add(KeyFileUpdate.removed(result.getName()));
+				return !"File3".equals(result.getName());
+			}
+		}, scheduler, new KeyFile());
+		List<KeyFileUpdate> updates = scheduler.getPending();
+
+		assertFalse(successful);
+		assertEquals(results.size() - 1, updates.size());
+		for (KeyFileUpdate update : updates) {
+			assertFalse("File3".equals(update.getName()));
+		}
+	}
+
+	/**
+	 * Tests that the workers are kept between transfers, and that the engine starts new workers after a shutdown
+	 */
+	@Test
+	public void testWorkersKept() {
+		final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+		TransferHandler handler = new TransferHandler() {
+			@Override
+			public boolean handle(FileCompareResult result, EncryptionManager session, List<KeyFileUpdate> resultUpdates) {
+				threads.add(Thread.currentThread());
+				return true;
+			}
+		};
+		TransferEngine engine = new TransferEngine(encManagerMock, WORKERS, new AtomicBoolean(false));
+		assertTrue(engine.transfer(results, handler, scheduler, new KeyFile()));
+		assertTrue(engine.transfer(results, handler, scheduler, new KeyFile()));
+		int kept = threads.size();
+		assertTrue(kept <= WORKERS);
+
+		engine.shutdown();
+		assertTrue(engine.transfer(results, handler, scheduler, new KeyFile()));
+		assertTrue(threads.size() > kept);
+		engine.shutdown();
+	}
+
+	/**
+	 * Tests that no transfer is started when stopped
+	 */
+	@Test
+	public void testStopped() {
+		TransferEngine engine = new TransferEngine(encManagerMock, WORKERS, new AtomicBoolean(true));
+		boolean successful = engine.transfer(results, new TransferHandler() {
+			@Override
+			public boolean handle(FileCompareResult result, EncryptionManager session, List<KeyFileUpdate> resultUpdates) {
+				resultUpdates.add(KeyFileUpdate.removed(result.getName()));
+				return true;
+			}
+		}, scheduler, new KeyFile());
+		List<KeyFileUpdate> updates = scheduler.getPending();
+
+		assertFalse(successful);
+		assertTrue(updates.isEmpty());
+	}
+}
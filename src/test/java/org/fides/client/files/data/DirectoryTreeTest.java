@@ -0,0 +1,99 @@
+package org.fides.client.files.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link DirectoryTree}
+ */
+public class DirectoryTreeTest {
+
+	/**
+	 * Tests that the digests do not depend on the order the files are added in
+	 */
+	@Test
+	public void testOrder() {
+		List<ClientFile> files = createFiles();
+		DirectoryTree first = DirectoryTree.ofClientFiles(files);
+		Collections.reverse(files);
+		DirectoryTree second = DirectoryTree.ofClientFiles(files);
+		for (String directory : first.getDirectories()) {
+			assertEquals(first.getDigest(directory), second.getDigest(directory));
+		}
+		assertEquals(first.getDirectories(), second.getDirectories());
+		assertNull(first.getDigest("Missing"));
+	}
+
+	/**
+	 * Tests that a change only changes the digest of the directory the file is in
+	 */
+	@Test
+	public void testChange() {
+		List<ClientFile> files = createFiles();
+		DirectoryTree before = DirectoryTree.ofClientFiles(files);
+		files.get(0).setHash("Changed");
+		DirectoryTree after = DirectoryTree.ofClientFiles(files);
+
+		assertNotEquals(before.getDigest("A/Sub"), after.getDigest("A/Sub"));
+		assertEquals(before.getDigest(""), after.getDigest(""));
+		assertEquals(before.getDigest("A"), after.getDigest("A"));
+		assertEquals(before.getDigest("B"), after.getDigest("B"));
+		assertEquals(before.getDigest("B/Sub"), after.getDigest("B/Sub"));
+	}
+
+	/**
+	 * Tests that only directories with files or added on their own are in the tree, and that the parents are found
+	 */
+	@Test
+	public void testDirectories() {
+		DirectoryTree.Builder builder = new DirectoryTree.Builder();
+		builder.addFile("A/B/C/File.txt", "1");
+		builder.addDirectory("Empty");
+		DirectoryTree tree = builder.build();
+		assertEquals(2, tree.getDirectories().size());
+		assertNotEquals(tree.getDigest("A/B/C"), tree.getDigest("Empty"));
+		assertNull(tree.getDigest("A/B"));
+
+		assertEquals("A/B", DirectoryTree.parentOf("A/B/C"));
+		assertEquals("", DirectoryTree.parentOf("File.txt"));
+		assertNull(DirectoryTree.parentOf(""));
+	}
+
+	/**
+	 * Tests that removing a file from a {@link DirectoryTree.Builder} gives the digest without it, and removes its
+	 * directory with the last file
+	 */
+	@Test
+	public void testRemove() {
+		DirectoryTree.Builder builder = new DirectoryTree.Builder();
+		builder.addFile("A/First.txt", "1");
+		String first = builder.getDigest("A");
+		builder.addFile("A/Second.txt", "2");
+		assertNotEquals(first, builder.getDigest("A"));
+
+		builder.removeFile("A/Second.txt", "2");
+		assertEquals(first, builder.getDigest("A"));
+		builder.removeFile("A/First.txt", "1");
+		assertNull(builder.getDigest("A"));
+		assertTrue(builder.build().getDirectories().isEmpty());
+	}
+
+	private static List<ClientFile> createFiles() {
+		List<ClientFile> files = new ArrayList<>();
+		for (String directory : new String[] { "A/Sub", "B/Sub", "A", "" }) {
+			for (int i = 0; i < 3; i++) {
+				String name = (directory.isEmpty() ? "" : directory + "/") + "File" + i + ".txt";
+				files.add(new ClientFile(name, "Location" + i, null, "Hash" + i));
+			}
+		}
+		return files;
+	}
+}
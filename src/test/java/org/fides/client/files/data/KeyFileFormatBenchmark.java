@@ -0,0 +1,100 @@
+package org.fides.client.files.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.fides.client.files.HashAlgorithm;
+import org.fides.client.tools.Benchmark;
+
+/**
+ * Compares the size and the encode and decode times of a {@link KeyFile} in Java serialization and in the format of
+ * the {@link KeyFileSerializer}. It is not a unit test, run it with the amount of entries as argument (default 100000).
+ * Each step is measured with the {@link Benchmark} harness.
+ */
+public final class KeyFileFormatBenchmark {
+
+	private KeyFileFormatBenchmark() {
+	}
+
+	/**
+	 * Runs the benchmark
+	 *
+	 * @param args
+	 *            The amount of entries in the {@link KeyFile}
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		int entries = Benchmark.intArgument(args, 100000);
+		final KeyFile keyFile = createKeyFile(entries);
+
+		final byte[] serialized = serialize(keyFile);
+		final byte[] binary = binary(keyFile);
+		System.out.println("KeyFile of " + entries + " entries, best of " + Benchmark.ROUNDS + " rounds");
+		System.out.println(String.format("%-40s %10d bytes", "Java serialization", serialized.length));
+		System.out.println(String.format("%-40s %10d bytes", "KeyFileSerializer", binary.length));
+
+		Benchmark.report("Java serialization, encode", new Benchmark.Step() {
+			@Override
+			public void run() throws Exception {
+				serialize(keyFile);
+			}
+		});
+		Benchmark.report("KeyFileSerializer, encode", new Benchmark.Step() {
+			@Override
+			public void run() throws Exception {
+				binary(keyFile);
+			}
+		});
+		Benchmark.report("Java serialization, decode", new Benchmark.Step() {
+			@Override
+			public void run() throws Exception {
+				try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+					objectIn.readObject();
+				}
+			}
+		});
+		Benchmark.report("KeyFileSerializer, decode", new Benchmark.Step() {
+			@Override
+			public void run() throws Exception {
+				KeyFileSerializer.read(new ByteArrayInputStream(binary));
+			}
+		});
+	}
+
+	private static byte[] serialize(KeyFile keyFile) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ObjectOutputStream objectOut = new ObjectOutputStream(out)) {
+			objectOut.writeObject(keyFile);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] binary(KeyFile keyFile) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		KeyFileSerializer.write(keyFile, out);
+		return out.toByteArray();
+	}
+
+	private static KeyFile createKeyFile(int entries) {
+		Random random = new Random(42);
+		KeyFile keyFile = new KeyFile();
+		byte[] location = new byte[32];
+		byte[] content = new byte[64];
+		for (int i = 0; i < entries; i++) {
+			byte[] key = new byte[32];
+			random.nextBytes(key);
+			random.nextBytes(location);
+			random.nextBytes(content);
+			String hash = HashAlgorithm.SHA256.format(HashAlgorithm.SHA256.createDigest().digest(content));
+			String locationHex = HashAlgorithm.MD5.format(location);
+			keyFile.addClientFile(new ClientFile("Folder " + (i % 100) + "/File " + i + ".txt", locationHex, new SecretKeySpec(key, "AES"), hash));
+		}
+		return keyFile;
+	}
+}
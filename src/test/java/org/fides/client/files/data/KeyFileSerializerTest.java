@@ -0,0 +1,92 @@
+package org.fides.client.files.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.fides.client.files.HashAlgorithm;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link KeyFileSerializer}
+ */
+public class KeyFileSerializerTest {
+
+	private static final byte[] KEY_BYTES = new byte[32];
+
+	/**
+	 * Tests that all kinds of fields are read back as they were written
+	 */
+	@Test
+	public void testWriteAndRead() throws Exception {
+		KeyFile keyFile = new KeyFile();
+		String sha256 = HashAlgorithm.SHA256.format(HashAlgorithm.SHA256.createDigest().digest("test".getBytes()));
+		String md5 = HashAlgorithm.MD5.format(HashAlgorithm.MD5.createDigest().digest("test".getBytes()));
+		keyFile.addClientFile(new ClientFile("dir/N\u00e4me.txt", "0a1b2c3d4e5f", new SecretKeySpec(KEY_BYTES, "AES"), sha256));
+		keyFile.addClientFile(new ClientFile("Md5", "Location", new SecretKeySpec(KEY_BYTES, "Blowfish"), md5));
+		keyFile.addClientFile(new ClientFile("Other", "ABCDEF", null, "Hash"));
+		keyFile.addClientFile(new ClientFile("Empty", null, null, null));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		KeyFileSerializer.write(keyFile, out);
+		KeyFile read = KeyFileSerializer.read(new ByteArrayInputStream(out.toByteArray()));
+
+		assertEquals(keyFile.getAllClientFiles().size(), read.getAllClientFiles().size());
+		for (ClientFile clientFile : keyFile.getAllClientFiles().values()) {
+			ClientFile readFile = read.getClientFileByName(clientFile.getName());
+			assertEquals(clientFile, readFile);
+			assertEquals(clientFile.getHash(), readFile.getHash());
+			if (clientFile.getKey() == null) {
+				assertNull(readFile.getKey());
+			} else {
+				assertEquals(clientFile.getKey().getAlgorithm(), readFile.getKey().getAlgorithm());
+				assertArrayEquals(clientFile.getKey().getEncoded(), readFile.getKey().getEncoded());
+			}
+		}
+	}
+
+	/**
+	 * Tests that a {@link KeyFile} written with Java serialization can still be read, and is larger
+	 */
+	@Test
+	public void testReadSerialized() throws Exception {
+		KeyFile keyFile = new KeyFile();
+		String hash = HashAlgorithm.SHA256.format(HashAlgorithm.SHA256.createDigest().digest());
+		keyFile.addClientFile(new ClientFile("Name", "0a1b2c3d", new SecretKeySpec(KEY_BYTES, "AES"), hash));
+
+		ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+		try (ObjectOutputStream objectOut = new ObjectOutputStream(serialized)) {
+			objectOut.writeObject(keyFile);
+		}
+		KeyFile read = KeyFileSerializer.read(new ByteArrayInputStream(serialized.toByteArray()));
+		assertEquals(hash, read.getClientFileByName("Name").getHash());
+		assertArrayEquals(KEY_BYTES, read.getClientFileByName("Name").getKey().getEncoded());
+
+		ByteArrayOutputStream binary = new ByteArrayOutputStream();
+		KeyFileSerializer.write(keyFile, binary);
+		assertTrue(binary.size() < serialized.size());
+	}
+
+	/**
+	 * Tests that a stream in neither format is seen as corrupt
+	 */
+	@Test
+	public void testCorrupt() throws IOException, ClassNotFoundException {
+		try {
+			KeyFileSerializer.read(new ByteArrayInputStream("Not a keyfile at all".getBytes()));
+			fail("An expected StreamCorruptedException was not thrown");
+		} catch (StreamCorruptedException e) {
+			// Expected
+		}
+	}
+}
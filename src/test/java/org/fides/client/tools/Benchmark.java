@@ -0,0 +1,120 @@
+package org.fides.client.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * The shared harness of the benchmarks, which are not unit tests but are run from their main method. Every step is run
+ * once to warm up the JIT and the page cache, then several rounds, and the best round is reported.
+ */
+public final class Benchmark {
+
+	/**
+	 * The amount of measured rounds of a step
+	 */
+	public static final int ROUNDS = 5;
+
+	private Benchmark() {
+	}
+
+	/**
+	 * A step to measure
+	 */
+	public interface Step {
+		/**
+		 * Runs the step once
+		 *
+		 * @throws Exception
+		 */
+		void run() throws Exception;
+	}
+
+	/**
+	 * Returns the first argument of a benchmark as a number
+	 *
+	 * @param args
+	 *            The arguments of the main method
+	 * @param defaultValue
+	 *            The value without arguments
+	 * @return The number
+	 */
+	public static int intArgument(String[] args, int defaultValue) {
+		return args.length > 0 ? Integer.parseInt(args[0]) : defaultValue;
+	}
+
+	/**
+	 * Runs a step after a warm up and returns the time of the best round
+	 *
+	 * @param step
+	 *            The {@link Step} to measure
+	 * @return The best time in nanoseconds
+	 * @throws Exception
+	 */
+	public static long measure(Step step) throws Exception {
+		step.run();
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < ROUNDS; i++) {
+			long start = System.nanoTime();
+			step.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	/**
+	 * Measures a step and prints its best time
+	 *
+	 * @param name
+	 *            The name of the step
+	 * @param step
+	 *            The {@link Step} to measure
+	 * @throws Exception
+	 */
+	public static void report(String name, Step step) throws Exception {
+		long best = measure(step);
+		System.out.println(String.format("%-40s %10.1f ms", name, best / 1e6));
+	}
+
+	/**
+	 * Measures a step which processes an amount of data and prints its best time and throughput
+	 *
+	 * @param name
+	 *            The name of the step
+	 * @param megabytes
+	 *            The amount of data the step processes
+	 * @param step
+	 *            The {@link Step} to measure
+	 * @throws Exception
+	 */
+	public static void report(String name, int megabytes, Step step) throws Exception {
+		long best = measure(step);
+		System.out.println(String.format("%-40s %10.1f ms %8.1f MB/s", name, best / 1e6, megabytes / (best / 1e9)));
+	}
+
+	/**
+	 * Creates a temporary file of random content, the same content for every run
+	 *
+	 * @param prefix
+	 *            The prefix of the name of the file
+	 * @param megabytes
+	 *            The size of the file
+	 * @return The file, it is removed when the JVM exits
+	 * @throws IOException
+	 */
+	public static File createRandomFile(String prefix, int megabytes) throws IOException {
+		File file = File.createTempFile(prefix, ".bin");
+		file.deleteOnExit();
+		Random random = new Random(42);
+		byte[] block = new byte[1024 * 1024];
+		try (OutputStream out = new FileOutputStream(file)) {
+			for (int i = 0; i < megabytes; i++) {
+				random.nextBytes(block);
+				out.write(block);
+			}
+		}
+		return file;
+	}
+}
@@ -0,0 +1,75 @@
+package org.fides.client.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link BufferPool}
+ */
+public class BufferPoolTest {
+
+	private static final int SIZE = 4 * 1024;
+
+	/**
+	 * Tests that buffers have the asked size and are reused after they are released
+	 */
+	@Test
+	public void testReuse() {
+		BufferPool pool = new BufferPool(Long.MAX_VALUE);
+		assertEquals(100, pool.acquire(100).length);
+
+		byte[] buffer = pool.acquire(SIZE);
+		pool.release(buffer);
+		assertSame(buffer, pool.acquire(SIZE));
+		assertEquals(SIZE + 100, pool.getMemory());
+	}
+
+	/**
+	 * Tests that no buffer is given past the cap, and that acquire waits until a buffer is released
+	 *
+	 * @throws InterruptedException
+	 */
+	@Test(timeout = 10000)
+	public void testCap() throws InterruptedException {
+		final BufferPool pool = new BufferPool(2 * SIZE);
+		final byte[] first = pool.acquire(SIZE);
+		pool.acquire(SIZE);
+		assertNull(pool.tryAcquire(SIZE));
+		assertEquals(2 * SIZE, pool.getMemory());
+
+		final AtomicReference<byte[]> acquired = new AtomicReference<>();
+		Thread waiting = new Thread() {
+			@Override
+			public void run() {
+				acquired.set(pool.acquire(SIZE));
+			}
+		};
+		waiting.start();
+		Thread.sleep(100);
+		assertNull(acquired.get());
+		pool.release(first);
+		waiting.join();
+		assertSame(first, acquired.get());
+		assertEquals(2 * SIZE, pool.getMemory());
+	}
+
+	/**
+	 * Tests that free buffers are dropped to make room for a buffer of another size
+	 */
+	@Test
+	public void testMakeRoom() {
+		BufferPool pool = new BufferPool(4 * SIZE);
+		pool.release(pool.acquire(SIZE));
+		pool.release(pool.acquire(2 * SIZE));
+		assertEquals(3 * SIZE, pool.getMemory());
+
+		assertEquals(4 * SIZE, pool.acquire(4 * SIZE).length);
+		assertEquals(4 * SIZE, pool.getMemory());
+	}
+
+}
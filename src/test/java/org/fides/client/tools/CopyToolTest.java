@@ -1,12 +1,14 @@
 package org.fides.client.tools;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
@@ -119,4 +121,114 @@ public class CopyToolTest {
 
 		assertArrayEquals(testArray, out.toByteArray());
 	}
+
+	/**
+	 * Tests that the copied bytes are counted and the buffer size stays within the limits of the pool
+	 * 
+	 * @throws IOException
+	 * @throws CopyInterruptedException
+	 */
+	@Test
+	public void testCountersAndBufferSize() throws IOException, CopyInterruptedException {
+		byte[] testArray = new byte[1024 * 1024];
+		long bytesBefore = CopyTool.getBytesCopied();
+		CopyTool.copyUntil(new ByteArrayInputStream(testArray), new ByteArrayOutputStream(), stopBoolean);
+		assertTrue(CopyTool.getBytesCopied() - bytesBefore >= testArray.length);
+		assertTrue(CopyTool.getCopyNanos() > 0);
+		assertTrue(CopyTool.getThroughput() > 0);
+
+		// Never larger than what is copied, and within the limits
+		assertEquals(CopyTool.MIN_BUFFER_SIZE, CopyTool.chooseBufferSize(10));
+		int size = CopyTool.chooseBufferSize(Long.MAX_VALUE);
+		assertTrue(size >= CopyTool.MIN_BUFFER_SIZE && size <= CopyTool.MAX_BUFFER_SIZE);
+	}
+
+	/**
+	 * Tests that an overlapped copy copies everything in order, and that a failure of the reading thread is thrown
+	 * 
+	 * @throws IOException
+	 * @throws CopyInterruptedException
+	 */
+	@Test
+	public void testOverlappedCopy() throws IOException, CopyInterruptedException {
+		byte[] testArray = new byte[3 * 1024 * 1024 + 17];
+		new Random(1).nextBytes(testArray);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(testArray.length, CopyTool.copyUntilOverlapped(new ByteArrayInputStream(testArray), out, stopBoolean));
+		assertArrayEquals(testArray, out.toByteArray());
+
+		InputStream failing = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("Test failure");
+			}
+		};
+		try {
+			CopyTool.copyUntilOverlapped(failing, new ByteArrayOutputStream(), stopBoolean);
+			fail("The failure was not thrown");
+		} catch (IOException e) {
+			assertEquals("Test failure", e.getMessage());
+		}
+	}
+
+	/**
+	 * Tests that a small copy is not handed to a copy thread
+	 * 
+	 * @throws IOException
+	 * @throws CopyInterruptedException
+	 */
+	@Test
+	public void testSmallCopyInline() throws IOException, CopyInterruptedException {
+		final Thread caller = Thread.currentThread();
+		byte[] testArray = new byte[CopyTool.MIN_OVERLAPPED_SIZE - 1];
+		new Random(1).nextBytes(testArray);
+		InputStream in = new ByteArrayInputStream(testArray) {
+			@Override
+			public synchronized int read(byte[] bytes, int offset, int length) {
+				assertTrue(Thread.currentThread() == caller);
+				return super.read(bytes, offset, length);
+			}
+		};
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(testArray.length, CopyTool.copyUntilOverlapped(in, out, stopBoolean));
+		assertArrayEquals(testArray, out.toByteArray());
+	}
+
+	/**
+	 * Tests that an overlapped copy of an endless stream is interrupted by the stopBoolean
+	 * 
+	 * @throws IOException
+	 */
+	@Test(timeout = 10000)
+	public void testOverlappedInterruption() throws IOException {
+		InputStream endless = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				return 0;
+			}
+
+			@Override
+			public int read(byte[] bytes, int offset, int length) throws IOException {
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					// Doesn't matter if this wait gets interrupted
+				}
+				return length;
+			}
+		};
+		ByteArrayOutputStream out = new ByteArrayOutputStream() {
+			@Override
+			public void write(byte[] bytes, int offset, int length) {
+				// The stop is set while copying
+				stopBoolean.set(true);
+			}
+		};
+		try {
+			CopyTool.copyUntilOverlapped(endless, out, stopBoolean);
+			fail("The copy was not interrupted");
+		} catch (CopyInterruptedException e) {
+			// Expected
+		}
+	}
 }
@@ -0,0 +1,169 @@
+package org.fides.client.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link FileHashCache}, when a cached hash is still valid and when its entries are removed
+ */
+public class FileHashCacheTest {
+
+	private static final String ALGORITHM = "SHA256";
+
+	private File directory;
+
+	private File journalFile;
+
+	private FileHashCache cache;
+
+	/**
+	 * Creates a directory with a journal for each test
+	 *
+	 * @throws IOException
+	 */
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("hashcache").toFile();
+		journalFile = new File(directory, "filehashes.journal");
+		cache = new FileHashCache(journalFile);
+	}
+
+	/**
+	 * Removes the directory
+	 *
+	 * @throws IOException
+	 */
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	/**
+	 * Tests that the hash is returned while the identity of the file does not change, per algorithm
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testHit() throws IOException {
+		File file = createOldFile("File1", "Content");
+		BasicFileAttributes attributes = readAttributes(file);
+		cache.setHash(file, ALGORITHM, attributes, attributes, "Hash1");
+		assertEquals("Hash1", cache.getHash(file, ALGORITHM, readAttributes(file)));
+		assertNull(cache.getHash(file, "MD5", attributes));
+
+		// Another algorithm does not replace the entry
+		cache.setHash(file, "MD5", attributes, attributes, "Hash2");
+		assertEquals("Hash1", cache.getHash(file, ALGORITHM, attributes));
+		assertEquals("Hash2", cache.getHash(file, "MD5", attributes));
+
+		// The entries are stored
+		assertEquals("Hash1", new FileHashCache(journalFile).getHash(file, ALGORITHM, attributes));
+	}
+
+	/**
+	 * Tests that a change of the size or the modification time makes the hash invalid
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testChanged() throws IOException {
+		File file = createOldFile("File1", "Content");
+		BasicFileAttributes attributes = readAttributes(file);
+		cache.setHash(file, ALGORITHM, attributes, attributes, "Hash1");
+
+		FileUtils.writeStringToFile(file, "Longer content");
+		file.setLastModified(attributes.lastModifiedTime().toMillis());
+		assertNull(cache.getHash(file, ALGORITHM, readAttributes(file)));
+
+		FileUtils.writeStringToFile(file, "Content");
+		file.setLastModified(attributes.lastModifiedTime().toMillis() - 60000);
+		assertNull(cache.getHash(file, ALGORITHM, readAttributes(file)));
+	}
+
+	/**
+	 * Tests that a file modified within the minimum age, or while it was hashed, is not cached
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testNotCached() throws IOException {
+		File recent = new File(directory, "Recent");
+		FileUtils.writeStringToFile(recent, "Content");
+		BasicFileAttributes attributes = readAttributes(recent);
+		cache.setHash(recent, ALGORITHM, attributes, attributes, "Hash1");
+		assertNull(cache.getHash(recent, ALGORITHM, attributes));
+
+		File file = createOldFile("File1", "Content");
+		BasicFileAttributes before = readAttributes(file);
+		FileUtils.writeStringToFile(file, "Changed while hashing");
+		file.setLastModified(before.lastModifiedTime().toMillis());
+		BasicFileAttributes after = readAttributes(file);
+		cache.setHash(file, ALGORITHM, before, after, "Hash2");
+		assertNull(cache.getHash(file, ALGORITHM, after));
+	}
+
+	/**
+	 * Tests that retainAll removes the entries of the files which are not given, and removeMissing those of the files
+	 * which do not exist anymore
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testRemove() throws IOException {
+		File file1 = createOldFile("File1", "Content 1");
+		File file2 = createOldFile("File2", "Content 2");
+		File file3 = createOldFile("File3", "Content 3");
+		BasicFileAttributes attributes1 = readAttributes(file1);
+		BasicFileAttributes attributes2 = readAttributes(file2);
+		BasicFileAttributes attributes3 = readAttributes(file3);
+		cache.setHash(file1, ALGORITHM, attributes1, attributes1, "Hash1");
+		cache.setHash(file1, "MD5", attributes1, attributes1, "Hash1b");
+		cache.setHash(file2, ALGORITHM, attributes2, attributes2, "Hash2");
+		cache.setHash(file3, ALGORITHM, attributes3, attributes3, "Hash3");
+
+		cache.retainAll(Arrays.asList(file1, file3));
+		assertEquals("Hash1", cache.getHash(file1, ALGORITHM, attributes1));
+		assertEquals("Hash1b", cache.getHash(file1, "MD5", attributes1));
+		assertNull(cache.getHash(file2, ALGORITHM, attributes2));
+		assertEquals("Hash3", cache.getHash(file3, ALGORITHM, attributes3));
+
+		assertTrue(file3.delete());
+		cache.removeMissing();
+		assertNull(cache.getHash(file3, ALGORITHM, attributes3));
+		assertEquals("Hash1", cache.getHash(file1, ALGORITHM, attributes1));
+
+		// The removals are stored
+		FileHashCache reloaded = new FileHashCache(journalFile);
+		assertEquals("Hash1b", reloaded.getHash(file1, "MD5", attributes1));
+		assertNull(reloaded.getHash(file2, ALGORITHM, attributes2));
+		assertNull(reloaded.getHash(file3, ALGORITHM, attributes3));
+
+		reloaded.retainAll(Collections.<File> emptyList());
+		assertNull(reloaded.getHash(file1, ALGORITHM, attributes1));
+	}
+
+	private File createOldFile(String name, String content) throws IOException {
+		File file = new File(directory, name);
+		FileUtils.writeStringToFile(file, content);
+		// Modified long enough ago to be cached
+		file.setLastModified((System.currentTimeMillis() - 60000) / 1000 * 1000);
+		return file;
+	}
+
+	private static BasicFileAttributes readAttributes(File file) throws IOException {
+		return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+	}
+}
@@ -0,0 +1,132 @@
+package org.fides.client.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link HashJournal}, the replay after a restart, the recovery of a damaged tail and the compaction.
+ */
+public class HashJournalTest {
+
+	private File file;
+
+	/**
+	 * Creates a new journal file for each test
+	 *
+	 * @throws IOException
+	 */
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("hashes", ".journal");
+		file.delete();
+	}
+
+	/**
+	 * Removes the journal file
+	 */
+	@After
+	public void tearDown() {
+		file.delete();
+		new File(file.getPath() + ".tmp").delete();
+	}
+
+	/**
+	 * Tests that the appended changes are replayed by a new journal
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testReplay() throws IOException {
+		HashJournal journal = new HashJournal(file);
+		journal.load(new HashMap<String, String>());
+		journal.appendSet("File1", "Hash1");
+		journal.appendSet("File2", "Hash2");
+		journal.appendSet("File1", "Hash3");
+		journal.appendRemove("File2");
+		journal.close();
+
+		Map<String, String> hashes = new HashMap<>();
+		HashJournal replayed = new HashJournal(file);
+		replayed.load(hashes);
+		replayed.close();
+		assertEquals(1, hashes.size());
+		assertEquals("Hash3", hashes.get("File1"));
+		assertNull(hashes.get("File2"));
+	}
+
+	/**
+	 * Tests that a record cut off by a crash is dropped and the journal can be appended to afterwards
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testTruncatedRecord() throws IOException {
+		HashJournal journal = new HashJournal(file);
+		journal.load(new HashMap<String, String>());
+		journal.appendSet("File1", "Hash1");
+		journal.appendSet("File2", "Hash2");
+		journal.close();
+
+		// Cut the last record in half
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() - 5);
+		}
+
+		Map<String, String> hashes = new HashMap<>();
+		journal = new HashJournal(file);
+		journal.load(hashes);
+		assertEquals(1, hashes.size());
+		assertEquals("Hash1", hashes.get("File1"));
+
+		journal.appendSet("File3", "Hash3");
+		journal.close();
+
+		hashes = new HashMap<>();
+		journal = new HashJournal(file);
+		journal.load(hashes);
+		journal.close();
+		assertEquals(2, hashes.size());
+		assertEquals("Hash3", hashes.get("File3"));
+	}
+
+	/**
+	 * Tests that a compaction keeps the hashes and shrinks the journal
+	 *
+	 * @throws IOException
+	 */
+	@Test
+	public void testCompaction() throws IOException {
+		Map<String, String> hashes = new HashMap<>();
+		HashJournal journal = new HashJournal(file);
+		journal.load(hashes);
+		for (int i = 0; i < 2000; i++) {
+			String hash = "Hash" + i;
+			hashes.put("File", hash);
+			journal.appendSet("File", hash);
+		}
+		assertTrue(journal.needsCompaction(hashes.size()));
+		long length = file.length();
+
+		journal.compact(hashes);
+		assertEquals(1, journal.getRecords());
+		assertTrue(file.length() < length);
+		journal.close();
+
+		Map<String, String> replayed = new HashMap<>();
+		journal = new HashJournal(file);
+		journal.load(replayed);
+		journal.close();
+		assertEquals(hashes, replayed);
+	}
+}